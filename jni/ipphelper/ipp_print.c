@@ -55,6 +55,7 @@ typedef struct {
     http_status_t status;
     ifc_print_job_t ifc;
     const char *useragent;
+    bool reused;
 } ipp_print_job_t;
 
 /*
@@ -102,18 +103,12 @@ static status_t _init(const ifc_print_job_t *this_p, const char *printer_address
     httpAssembleURIf(HTTP_URI_CODING_ALL, ipp_job->printer_uri, sizeof(ipp_job->printer_uri),
             ipp_scheme, NULL, printer_address, ippPortNumber, "%s", printer_uri);
     getResourceFromURI(ipp_job->printer_uri, ipp_job->http_resource, 1024);
-    if (use_secure_uri) {
-        ipp_job->http = httpConnect2(printer_address, ippPortNumber, NULL, AF_UNSPEC,
-                HTTP_ENCRYPTION_ALWAYS, 1, HTTP_TIMEOUT_MILLIS, NULL);
-
-        // If ALWAYS doesn't work, fall back to REQUIRED
-        if (ipp_job->http == NULL) {
-            ipp_job->http = httpConnect2(printer_address, ippPortNumber, NULL, AF_UNSPEC,
-                    HTTP_ENCRYPTION_REQUIRED, 1, HTTP_TIMEOUT_MILLIS, NULL);
-        }
+    ipp_job->http = ipp_take_connection(ipp_job->printer_uri);
+    ipp_job->reused = (ipp_job->http != NULL);
+    if (ipp_job->reused) {
+        LOGD("_init: reusing connection to %s", ipp_job->printer_uri);
     } else {
-        ipp_job->http = httpConnect2(printer_address, ippPortNumber, NULL, AF_UNSPEC,
-                HTTP_ENCRYPTION_IF_REQUESTED, 1, HTTP_TIMEOUT_MILLIS, NULL);
+        ipp_job->http = ipp_open_connection(printer_address, ippPortNumber, use_secure_uri);
     }
 
     httpSetTimeout(ipp_job->http, DEFAULT_IPP_TIMEOUT, NULL, 0);
@@ -130,7 +125,7 @@ static void _destroy(const ifc_print_job_t *this_p) {
 
     ipp_job = IMPL(ipp_print_job_t, ifc, this_p);
     if (ipp_job->http != NULL) {
-        httpClose(ipp_job->http);
+        ipp_release_connection(ipp_job->http, ipp_job->printer_uri);
     }
 
     free(ipp_job);
@@ -187,6 +182,9 @@ static ipp_t *_fill_job(int ipp_op, char *printer_uri, const wprint_job_params_t
         return request;
     }
 
+    // Capabilities may have been stored before this process negotiated a version
+    ipp_set_known_version(printer_uri, printer_caps->ippVersionMajor,
+            printer_caps->ippVersionMinor, false);
     if (set_ipp_version(request, printer_uri, NULL, IPP_VERSION_RESOLVED) != 0) {
         ippDelete(request);
         return NULL;
@@ -544,6 +542,10 @@ static status_t _start_job(const ifc_print_job_t *this_p, const wprint_job_param
                 // We will retry for one of these failures since we could have just
                 // lost our connection to the server and cups will not always attempt
                 // a reconnect for us.
+                if (ipp_job->reused) {
+                    // The printer may have closed a pooled connection
+                    httpReconnect2(ipp_job->http, HTTP_TIMEOUT_MILLIS, NULL);
+                }
                 ippDelete(request);
                 continue;
             }
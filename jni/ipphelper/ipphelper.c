@@ -16,6 +16,9 @@
  * limitations under the License.
  */
 
+#include <pthread.h>
+#include <time.h>
+
 #include "lib_wprint.h"
 #include "cups.h"
 #include "http-private.h"
@@ -152,19 +155,96 @@ typedef struct {
 
 static const char *__request_ipp_version[] = {"ipp-versions-supported"};
 
-static int __ipp_version_major = 2;
-static int __ipp_version_minor = 0;
+/*
+ * Number of printers for which a negotiated IPP version is remembered
+ */
+#define IPP_VERSION_CACHE_SIZE 16
+
+/*
+ * IPP version last negotiated with a printer
+ */
+typedef struct {
+    char printer_uri[MAX_URI_LENGTH + 1];
+    int major;
+    int minor;
+} ipp_version_entry_t;
+
+/*
+ * Negotiated versions are held per printer so that requests to different printers may run
+ * concurrently on different threads. Entries are replaced round-robin.
+ */
+static ipp_version_entry_t __ipp_versions[IPP_VERSION_CACHE_SIZE];
+static int __ipp_versions_next = 0;
+static pthread_mutex_t __ipp_versions_lock = PTHREAD_MUTEX_INITIALIZER;
+
+/*
+ * Returns the IPP version known for a printer, or 2.0 if none is known. Returns true if the
+ * version is known.
+ */
+static bool _get_ipp_version(const char *printer_uri, int *major, int *minor) {
+    int i;
+    bool found = false;
+    *major = 2;
+    *minor = 0;
+    if (printer_uri == NULL) return false;
+
+    pthread_mutex_lock(&__ipp_versions_lock);
+    for (i = 0; i < IPP_VERSION_CACHE_SIZE; i++) {
+        if (strcmp(__ipp_versions[i].printer_uri, printer_uri) == 0) {
+            *major = __ipp_versions[i].major;
+            *minor = __ipp_versions[i].minor;
+            found = true;
+            break;
+        }
+    }
+    pthread_mutex_unlock(&__ipp_versions_lock);
+    return found;
+}
+
+/*
+ * Records the IPP version to use for a printer
+ */
+static void _put_ipp_version(const char *printer_uri, int major, int minor) {
+    int i;
+    ipp_version_entry_t *entry = NULL;
+    if (printer_uri == NULL) return;
+
+    pthread_mutex_lock(&__ipp_versions_lock);
+    for (i = 0; i < IPP_VERSION_CACHE_SIZE; i++) {
+        if (strcmp(__ipp_versions[i].printer_uri, printer_uri) == 0) {
+            entry = &__ipp_versions[i];
+            break;
+        }
+    }
+    if (entry == NULL) {
+        entry = &__ipp_versions[__ipp_versions_next];
+        __ipp_versions_next = (__ipp_versions_next + 1) % IPP_VERSION_CACHE_SIZE;
+        strlcpy(entry->printer_uri, printer_uri, sizeof(entry->printer_uri));
+    }
+    entry->major = major;
+    entry->minor = minor;
+    pthread_mutex_unlock(&__ipp_versions_lock);
+}
+
+void ipp_set_known_version(const char *printer_uri, int major, int minor, bool replace) {
+    int known_major, known_minor;
+    if (major < 1) return;
+
+    // A version negotiated since the capabilities were fetched is more recent
+    if (!replace && _get_ipp_version(printer_uri, &known_major, &known_minor)) return;
+    _put_ipp_version(printer_uri, major, minor);
+}
 
 status_t set_ipp_version(ipp_t *op_to_set, char *printer_uri, http_t *http,
         ipp_version_state use_existing_version) {
+    int major, minor;
     LOGD("set_ipp_version(): Enter %d", use_existing_version);
     if (op_to_set == NULL) {
         return ERROR;
     }
     switch (use_existing_version) {
         case NEW_REQUEST_SEQUENCE:
-            __ipp_version_major = 2;
-            __ipp_version_minor = 0;
+            _put_ipp_version(printer_uri, 2, 0);
             break;
         case IPP_VERSION_RESOLVED:
             break;
@@ -174,7 +254,8 @@ status_t set_ipp_version(ipp_t *op_to_set, char *printer_uri, http_t *http,
             }
             break;
     }
-    ippSetVersion(op_to_set, __ipp_version_major, __ipp_version_minor);
+    _get_ipp_version(printer_uri, &major, &minor);
+    ippSetVersion(op_to_set, major, minor);
     LOGD("set_ipp_version(): Done");
     return OK;
 }
@@ -260,23 +341,17 @@ static status_t test_and_set_ipp_version(char *printer_uri, http_t *http, int ma
 
             parse_IPPVersions(response, &ippVersions);
             if (ippVersions.supportsIpp20) {
-                __ipp_version_major = 2;
-                __ipp_version_minor = 0;
+                _put_ipp_version(printer_uri, 2, 0);
                 return_value = OK;
-                LOGD("test_and_set_ipp_version(): ipp version set to %d,%d",
-                        __ipp_version_major, __ipp_version_minor);
+                LOGD("test_and_set_ipp_version(): ipp version set to 2,0");
             } else if (ippVersions.supportsIpp11) {
-                __ipp_version_major = 1;
-                __ipp_version_minor = 1;
+                _put_ipp_version(printer_uri, 1, 1);
                 return_value = OK;
-                LOGD("test_and_set_ipp_version(): ipp version set to %d,%d",
-                        __ipp_version_major, __ipp_version_minor);
+                LOGD("test_and_set_ipp_version(): ipp version set to 1,1");
             } else if (ippVersions.supportsIpp10) {
-                __ipp_version_major = 1;
-                __ipp_version_minor = 0;
+                _put_ipp_version(printer_uri, 1, 0);
                 return_value = OK;
-                LOGD("test_and_set_ipp_version(): ipp version set to %d,%d",
-                        __ipp_version_major, __ipp_version_minor);
+                LOGD("test_and_set_ipp_version(): ipp version set to 1,0");
             } else {
                 LOGD("test_and_set_ipp_version: ipp version not found");
                 return_value = ERROR;
@@ -1711,13 +1786,309 @@ static int ipp_server_cert_cb(http_t *http, void *tls, cups_array_t *certs, void
     return error;
 }
 
+/*
+ * Maximum number of idle connections held in the pool
+ */
+#define MAX_POOLED_CONNECTIONS 8
+
+/*
+ * Time for which an idle connection is held in the pool before being closed
+ */
+#define POOLED_CONNECTION_TIMEOUT_MILLIS (15 * 1000)
+
+/*
+ * Time for which an idle encrypted connection is held in the pool before being closed. These
+ * are kept longer since replacing them requires a TLS handshake, which is slow on some printers.
+ */
+#define POOLED_SECURE_CONNECTION_TIMEOUT_MILLIS (60 * 1000)
+
+/*
+ * Number of printers remembered as requiring encryption to be negotiated after connecting
+ */
+#define TLS_UPGRADE_CACHE_SIZE 16
+
+/*
+ * Time for which a printer is remembered as requiring encryption to be negotiated after
+ * connecting, after which immediate encryption is attempted again
+ */
+#define TLS_UPGRADE_TIMEOUT_MILLIS (10 * 60 * 1000)
+
+/*
+ * Failed attempts at immediate encryption taking at least this long are assumed to have timed
+ * out rather than been rejected by the printer, so are not remembered
+ */
+#define TLS_REJECT_MAX_MILLIS (HTTP_TIMEOUT_MILLIS / 2)
+
+/*
+ * A printer which refused encryption from the start of a connection but accepted it when
+ * negotiated afterwards
+ */
+typedef struct {
+    char host_port[MAX_URI_LENGTH + 1];
+    int64_t since;
+} tls_upgrade_host_t;
+
+/*
+ * An idle connection held for reuse
+ */
+typedef struct {
+    http_t *http;
+    char key[MAX_URI_LENGTH + 1];
+    int64_t idle_since;
+} pooled_connection_t;
+
+/*
+ * Idle connections shared by capability, status, cancel and print requests so that each may
+ * avoid connection (and for IPPS, TLS handshake) costs when another has recently finished
+ * with the same printer.
+ */
+static pooled_connection_t __pooled_connections[MAX_POOLED_CONNECTIONS];
+static pthread_mutex_t __pool_lock = PTHREAD_MUTEX_INITIALIZER;
+
+/*
+ * Printers (as "host:port") requiring encryption to be negotiated after connecting. Entries are
+ * replaced round-robin.
+ */
+static tls_upgrade_host_t __tls_upgrade_hosts[TLS_UPGRADE_CACHE_SIZE];
+static int __tls_upgrade_hosts_next = 0;
+
+/*
+ * Returns the current time in milliseconds from a clock unaffected by changes to the time of day
+ */
+static int64_t _pool_now(void) {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+/*
+ * Writes the scheme, host and port of printer_uri into key, which identify the connections
+ * usable for requests to it
+ */
+static void _pool_key(const char *printer_uri, char *key, size_t key_len) {
+    char scheme[32], username[256], host[256], resource[MAX_URI_LENGTH];
+    int port = 0;
+
+    httpSeparateURI(HTTP_URI_CODING_ALL, printer_uri, scheme, sizeof(scheme), username,
+            sizeof(username), host, sizeof(host), &port, resource, sizeof(resource));
+    snprintf(key, key_len, "%s://%s:%d", scheme, host, port);
+}
+
+/*
+ * Returns the time in milliseconds for which a connection with the specified pool key may idle
+ */
+static int64_t _pool_timeout(const char *key) {
+    if (strncmp(key, IPPS_PREFIX "://", strlen(IPPS_PREFIX "://")) == 0) {
+        return POOLED_SECURE_CONNECTION_TIMEOUT_MILLIS;
+    }
+    return POOLED_CONNECTION_TIMEOUT_MILLIS;
+}
+
+http_t *ipp_take_connection(const char *printer_uri) {
+    char key[MAX_URI_LENGTH + 1];
+    http_t *http = NULL;
+    http_t *expired[MAX_POOLED_CONNECTIONS];
+    int num_expired = 0;
+    int64_t now = _pool_now();
+    int i;
+
+    if (printer_uri == NULL) return NULL;
+    _pool_key(printer_uri, key, sizeof(key));
+
+    pthread_mutex_lock(&__pool_lock);
+    for (i = 0; i < MAX_POOLED_CONNECTIONS; i++) {
+        pooled_connection_t *pooled = &__pooled_connections[i];
+        if (pooled->http == NULL) {
+            continue;
+        }
+        if (now - pooled->idle_since > _pool_timeout(pooled->key)) {
+            expired[num_expired++] = pooled->http;
+            pooled->http = NULL;
+        } else if ((http == NULL) && (strcmp(pooled->key, key) == 0)) {
+            http = pooled->http;
+            pooled->http = NULL;
+        }
+    }
+    pthread_mutex_unlock(&__pool_lock);
+
+    for (i = 0; i < num_expired; i++) {
+        httpClose(expired[i]);
+    }
+
+    // An idle connection has nothing to read unless the printer has closed it
+    if ((http != NULL) && httpWait(http, 0)) {
+        LOGD("ipp_take_connection: %s was closed by the printer", key);
+        httpClose(http);
+        http = NULL;
+    }
+
+    if (http != NULL) {
+        LOGD("ipp_take_connection: reusing connection to %s", key);
+    }
+    return http;
+}
+
+void ipp_release_connection(http_t *http, const char *printer_uri) {
+    pooled_connection_t *slot = NULL;
+    http_t *evicted;
+    const char *connection;
+    int i;
+
+    if (http == NULL) return;
+
+    // Only a connection between requests which the printer will keep open can be reused
+    connection = httpGetField(http, HTTP_FIELD_CONNECTION);
+    if ((printer_uri == NULL) || (httpGetState(http) != HTTP_STATE_WAITING)
+            || ((connection != NULL) && (strcasecmp(connection, "close") == 0))) {
+        httpClose(http);
+        return;
+    }
+    httpSetDefaultField(http, HTTP_FIELD_USER_AGENT, NULL);
+
+    pthread_mutex_lock(&__pool_lock);
+    for (i = 0; i < MAX_POOLED_CONNECTIONS; i++) {
+        pooled_connection_t *pooled = &__pooled_connections[i];
+        if (pooled->http == NULL) {
+            slot = pooled;
+            break;
+        }
+        if ((slot == NULL) || (pooled->idle_since < slot->idle_since)) {
+            slot = pooled;
+        }
+    }
+    evicted = slot->http;
+    slot->http = http;
+    _pool_key(printer_uri, slot->key, sizeof(slot->key));
+    slot->idle_since = _pool_now();
+    pthread_mutex_unlock(&__pool_lock);
+
+    if (evicted != NULL) {
+        httpClose(evicted);
+    }
+}
+
+void ipp_close_idle_connections(void) {
+    int i;
+
+    pthread_mutex_lock(&__pool_lock);
+    for (i = 0; i < MAX_POOLED_CONNECTIONS; i++) {
+        if (__pooled_connections[i].http != NULL) {
+            httpClose(__pooled_connections[i].http);
+            __pooled_connections[i].http = NULL;
+        }
+    }
+    pthread_mutex_unlock(&__pool_lock);
+}
+
+/*
+ * Returns true if the printer at host_port is known to accept encryption only when negotiated
+ * after connecting
+ */
+static bool _is_tls_upgrade_host(const char *host_port) {
+    bool found = false;
+    int64_t now = _pool_now();
+    int i;
+
+    pthread_mutex_lock(&__pool_lock);
+    for (i = 0; i < TLS_UPGRADE_CACHE_SIZE; i++) {
+        tls_upgrade_host_t *entry = &__tls_upgrade_hosts[i];
+        if (strcmp(entry->host_port, host_port) == 0) {
+            if (now - entry->since > TLS_UPGRADE_TIMEOUT_MILLIS) {
+                entry->host_port[0] = '\0';
+            } else {
+                found = true;
+            }
+            break;
+        }
+    }
+    pthread_mutex_unlock(&__pool_lock);
+    return found;
+}
+
+/*
+ * Records whether the printer at host_port accepts encryption only when negotiated after
+ * connecting
+ */
+static void _set_tls_upgrade_host(const char *host_port, bool upgrade) {
+    int i;
+
+    pthread_mutex_lock(&__pool_lock);
+    for (i = 0; i < TLS_UPGRADE_CACHE_SIZE; i++) {
+        if (strcmp(__tls_upgrade_hosts[i].host_port, host_port) == 0) {
+            __tls_upgrade_hosts[i].host_port[0] = '\0';
+        }
+    }
+    if (upgrade) {
+        tls_upgrade_host_t *entry = &__tls_upgrade_hosts[__tls_upgrade_hosts_next];
+        strlcpy(entry->host_port, host_port, sizeof(entry->host_port));
+        entry->since = _pool_now();
+        __tls_upgrade_hosts_next = (__tls_upgrade_hosts_next + 1) % TLS_UPGRADE_CACHE_SIZE;
+    }
+    pthread_mutex_unlock(&__pool_lock);
+}
+
+http_t *ipp_open_connection(const char *printer_addr, int port, bool secure) {
+    char host_port[MAX_URI_LENGTH + 1];
+    http_t *http;
+    bool upgrade, rejected = false;
+
+    if (!secure) {
+        return httpConnect2(printer_addr, port, NULL, AF_UNSPEC, HTTP_ENCRYPTION_IF_REQUESTED, 1,
+                HTTP_TIMEOUT_MILLIS, NULL);
+    }
+
+    snprintf(host_port, sizeof(host_port), "%s:%d", printer_addr, port);
+    upgrade = _is_tls_upgrade_host(host_port);
+    if (!upgrade) {
+        int64_t start = _pool_now();
+        http = httpConnect2(printer_addr, port, NULL, AF_UNSPEC, HTTP_ENCRYPTION_ALWAYS, 1,
+                HTTP_TIMEOUT_MILLIS, NULL);
+        if (http != NULL) {
+            return http;
+        }
+
+        // Only a prompt failure suggests the printer rejected the handshake
+        rejected = (_pool_now() - start) < TLS_REJECT_MAX_MILLIS;
+    }
+
+    // If ALWAYS doesn't work, fall back to REQUIRED
+    http = httpConnect2(printer_addr, port, NULL, AF_UNSPEC, HTTP_ENCRYPTION_REQUIRED, 1,
+            HTTP_TIMEOUT_MILLIS, NULL);
+    if (http == NULL) {
+        if (upgrade) {
+            // Nothing is known about the printer now, so try everything next time
+            _set_tls_upgrade_host(host_port, false);
+        }
+    } else if (rejected) {
+        // Skip the failing handshake when connecting again
+        LOGD("ipp_open_connection: %s requires TLS upgrade", host_port);
+        _set_tls_upgrade_host(host_port, true);
+    }
+    return http;
+}
+
+/*
+ * Presents the certificate of an already established connection for validation as if a new
+ * handshake had taken place. Returns 0 if the certificate is accepted.
+ */
+static int _validate_pooled_certificate(http_t *http,
+        const wprint_connect_info_t *connect_info) {
+    cups_array_t *certs = NULL;
+    int error;
+
+    if ((httpCopyCredentials(http, &certs) != 0) || (certs == NULL)) {
+        return -1;
+    }
+    error = ipp_server_cert_cb(http, NULL, certs, (void *)connect_info);
+    httpFreeCredentials(certs);
+    return error;
+}
+
 http_t *ipp_cups_connect(const wprint_connect_info_t *connect_info, char *printer_uri,
         unsigned int uriLength) {
     const char *uri_path;
     http_t *curl_http = NULL;
 
-    cupsSetServerCertCB(ipp_server_cert_cb, (void *)connect_info);
-
     if ((connect_info->uri_path == NULL) || (strlen(connect_info->uri_path) == 0)) {
         uri_path = DEFAULT_IPP_URI_RESOURCE;
     } else {
@@ -1725,24 +2096,27 @@ http_t *ipp_cups_connect(const wprint_connect_info_t *connect_info, char *printe
     }
 
     int ippPortNumber = ((connect_info->port_num == IPP_PORT) ? ippPort() : connect_info->port_num);
+    httpAssembleURIf(HTTP_URI_CODING_ALL, printer_uri, uriLength, connect_info->uri_scheme, NULL,
+            connect_info->printer_addr, ippPortNumber, "%s", uri_path);
 
-    if (strstr(connect_info->uri_scheme,IPPS_PREFIX) != NULL) {
-        curl_http = httpConnect2(connect_info->printer_addr, ippPortNumber, NULL, AF_UNSPEC,
-                HTTP_ENCRYPTION_ALWAYS, 1, HTTP_TIMEOUT_MILLIS, NULL);
-
-        // If ALWAYS doesn't work, fall back to REQUIRED
-        if (curl_http == NULL) {
-            curl_http = httpConnect2(connect_info->printer_addr, ippPortNumber, NULL, AF_UNSPEC,
-                    HTTP_ENCRYPTION_REQUIRED, 1, HTTP_TIMEOUT_MILLIS, NULL);
-        }
-    } else {
-        curl_http = httpConnect2(connect_info->printer_addr, ippPortNumber, NULL, AF_UNSPEC,
-                HTTP_ENCRYPTION_IF_REQUESTED, 1, HTTP_TIMEOUT_MILLIS, NULL);
+    curl_http = ipp_take_connection(printer_uri);
+    if ((curl_http != NULL) && (connect_info->validate_certificate != NULL)
+            && (_validate_pooled_certificate(curl_http, connect_info) != 0)) {
+        // Connect again so that the certificate is presented and rejected in the usual way
+        httpClose(curl_http);
+        curl_http = NULL;
+    }
+    if (curl_http != NULL) {
+        httpSetTimeout(curl_http, (double)connect_info->timeout / 1000, NULL, 0);
+        return curl_http;
     }
 
+    cupsSetServerCertCB(ipp_server_cert_cb, (void *)connect_info);
+
+    curl_http = ipp_open_connection(connect_info->printer_addr, ippPortNumber,
+            strstr(connect_info->uri_scheme, IPPS_PREFIX) != NULL);
+
     httpSetTimeout(curl_http, (double)connect_info->timeout / 1000, NULL, 0);
-    httpAssembleURIf(HTTP_URI_CODING_ALL, printer_uri, uriLength, connect_info->uri_scheme, NULL,
-            connect_info->printer_addr, ippPortNumber, "%s", uri_path);
 
     if (curl_http == NULL) {
         LOGD("ipp_cups_connect failed addr=%s port=%d", connect_info->printer_addr, ippPortNumber);
@@ -139,6 +139,37 @@ extern void getResourceFromURI(const char *uri, char *resource, int resourcelen)
 http_t *ipp_cups_connect(const wprint_connect_info_t *info, char *printer_uri,
         unsigned int uriLength);
 
+/*
+ * Opens a new connection to a printer, encrypted if secure is true. Printers which promptly
+ * reject encryption from the start of a connection but accept it when negotiated afterwards are
+ * remembered for a time, so that later connections to them need not first attempt and fail a
+ * TLS handshake.
+ */
+http_t *ipp_open_connection(const char *printer_addr, int port, bool secure);
+
+/*
+ * Returns an idle pooled connection to the host, port and scheme of printer_uri if one is still
+ * usable, else NULL
+ */
+http_t *ipp_take_connection(const char *printer_uri);
+
+/*
+ * Returns a connection no longer needed to the pool for reuse if it is ready for another
+ * request, otherwise closes it
+ */
+void ipp_release_connection(http_t *http, const char *printer_uri);
+
+/*
+ * Closes all idle pooled connections
+ */
+void ipp_close_idle_connections(void);
+
+/*
+ * Records the IPP version reported in a printer's capabilities for use in requests to
+ * printer_uri. An existing record is replaced only if replace is true.
+ */
+extern void ipp_set_known_version(const char *printer_uri, int major, int minor, bool replace);
+
 /*
  * Executes a CUPS request with the given ipp request structure
  */
@@ -182,6 +182,10 @@ static status_t _get_capabilities(const ifc_printer_capabilities_t *this_p,
             LOGD("ipp CUPS last ERROR: %d, %s", ipp_status, ippErrorString(ipp_status));
             LOGD("%s received, now call parse_printerAttributes:", ippOpString(op));
             parse_printerAttributes(response, capabilities);
+            if (capabilities != NULL) {
+                ipp_set_known_version(caps->printer_caps.printerUri,
+                        capabilities->ippVersionMajor, capabilities->ippVersionMinor, true);
+            }
 
 #if LOG_LEVEL <= LEVEL_DEBUG
             for (attrptr = ippFirstAttribute(response); attrptr; attrptr = ippNextAttribute(
@@ -225,7 +229,7 @@ static void _destroy(const ifc_printer_capabilities_t *this_p) {
 
         caps = IMPL(ipp_capabilities_t, ifc, this_p);
         if (caps->http != NULL) {
-            httpClose(caps->http);
+            ipp_release_connection(caps->http, caps->printer_caps.printerUri);
         }
         free(caps);
     } while (0);
@@ -137,7 +137,7 @@ static void _destroy(const ifc_status_monitor_t *this_p) {
         }
 
         if (monitor->http != NULL) {
-            httpClose(monitor->http);
+            ipp_release_connection(monitor->http, monitor->printer_uri);
         }
 
         free(monitor);
@@ -66,6 +66,9 @@
 #define _MAX_SPOOLED_JOBS     100
 #define _MAX_MSGS             (_MAX_SPOOLED_JOBS * 5)
 
+/* Number of jobs which may be delivered at once, each to a different printer */
+#define _MAX_JOB_THREADS      4
+
 #define _MAX_PAGES_PER_JOB   1000
 
 #define MAX_IDLE_WAIT        (5 * 60)
@@ -158,6 +161,14 @@ typedef struct {
     /* A buffer of bytes containing the certificate received while setting up this job, if any. */
     uint8 *certificate;
     int certificate_len;
+
+    /* Capabilities of the printer receiving this job */
+    printer_capabilities_t printer_caps;
+
+    /* Status monitor thread and the semaphores it uses to signal job start and end */
+    pthread_t status_tid;
+    sem_t job_start_wait_sem;
+    sem_t job_end_wait_sem;
 } _job_queue_t;
 
 /*
@@ -186,21 +197,15 @@ typedef struct {
 static _job_queue_t _job_queue[_MAX_SPOOLED_JOBS];
 static msg_q_id _msgQ;
 
-static pthread_t _job_status_tid;
-static pthread_t _job_tid;
+static pthread_t _job_tids[_MAX_JOB_THREADS];
 
 static pthread_mutex_t _q_lock;
 static pthread_mutexattr_t _q_lock_attr;
 
-static sem_t _job_end_wait_sem;
-static sem_t _job_start_wait_sem;
-
 static _io_plugin_t _io_plugins[2];
 
 static volatile bool stop_run = false;
 
-static printer_capabilities_t g_printer_caps = {0};
-
 char g_osName[MAX_ID_STRING_LENGTH + 1] = {0};
 char g_appName[MAX_ID_STRING_LENGTH + 1] = {0};
 char g_appVersion[MAX_ID_STRING_LENGTH + 1] = {0};
@@ -449,6 +454,9 @@ static wJob_t _get_handle(void) {
 
                 _job_queue[index].job_state = JOB_STATE_QUEUED;
                 _job_queue[index].job_handle = _ENCODE_HANDLE(index);
+                _job_queue[index].status_tid = pthread_self();
+                sem_init(&_job_queue[index].job_start_wait_sem, 0, 0);
+                sem_init(&_job_queue[index].job_end_wait_sem, 0, 0);
 
                 job_handle = _job_queue[index].job_handle;
             }
@@ -495,6 +503,8 @@ static int _recycle_handle(wJob_t job_handle) {
             free(jq->certificate);
             jq->certificate = NULL;
         }
+        sem_destroy(&jq->job_start_wait_sem);
+        sem_destroy(&jq->job_end_wait_sem);
         return OK;
     } else {
         return ERROR;
@@ -505,12 +515,12 @@ static int _recycle_handle(wJob_t job_handle) {
  * Stops the job status thread if it exists
  */
 static int _stop_status_thread(_job_queue_t *jq) {
-    if (!pthread_equal(_job_status_tid, pthread_self()) && (jq && jq->status_ifc)) {
+    if ((jq && jq->status_ifc) && !pthread_equal(jq->status_tid, pthread_self())) {
         (jq->status_ifc->stop)(jq->status_ifc);
         _unlock();
-        pthread_join(_job_status_tid, 0);
+        pthread_join(jq->status_tid, 0);
         _lock();
-        _job_status_tid = pthread_self();
+        jq->status_tid = pthread_self();
         return OK;
     } else {
         return ERROR;
@@ -547,8 +557,8 @@ static void _job_status_callback(const printer_state_dyn_t *new_status,
         case PRINT_STATUS_UNKNOWN:
             if ((new_status->printer_reasons[0] == PRINT_STATUS_OFFLINE)
                     || (new_status->printer_reasons[0] == PRINT_STATUS_UNKNOWN)) {
-                sem_post(&_job_start_wait_sem);
-                sem_post(&_job_end_wait_sem);
+                sem_post(&jq->job_start_wait_sem);
+                sem_post(&jq->job_end_wait_sem);
                 _lock();
                 if ((new_status->printer_reasons[0] == PRINT_STATUS_OFFLINE)
                         && ((jq->print_ifc != NULL) && (jq->print_ifc->enable_timeout != NULL))) {
@@ -564,20 +574,20 @@ static void _job_status_callback(const printer_state_dyn_t *new_status,
                 if (jq->is_dir && !jq->last_page_seen) {
                     wprintPage(jq->job_handle, jq->num_pages + 1, NULL, true, false, 0, 0, 0, 0);
                 }
-                sem_post(&_job_end_wait_sem);
+                sem_post(&jq->job_end_wait_sem);
             }
             break;
 
         case PRINT_STATUS_CANCELLED:
-            sem_post(&_job_start_wait_sem);
+            sem_post(&jq->job_start_wait_sem);
             if ((jq->print_ifc != NULL) && (jq->print_ifc->enable_timeout != NULL)) {
                 jq->print_ifc->enable_timeout(jq->print_ifc, 1);
             }
             if (statusold != PRINT_STATUS_CANCELLED) {
                 LOGI("status requested job cancel");
                 if (new_status->printer_reasons[0] == PRINT_STATUS_OFFLINE) {
-                    sem_post(&_job_start_wait_sem);
-                    sem_post(&_job_end_wait_sem);
+                    sem_post(&jq->job_start_wait_sem);
+                    sem_post(&jq->job_end_wait_sem);
                     if ((jq->print_ifc != NULL) && (jq->print_ifc->enable_timeout != NULL)) {
                         jq->print_ifc->enable_timeout(jq->print_ifc, 1);
                     }
@@ -587,13 +597,13 @@ static void _job_status_callback(const printer_state_dyn_t *new_status,
                 _unlock();
             }
             if (new_status->printer_reasons[0] == PRINT_STATUS_OFFLINE) {
-                sem_post(&_job_start_wait_sem);
-                sem_post(&_job_end_wait_sem);
+                sem_post(&jq->job_start_wait_sem);
+                sem_post(&jq->job_end_wait_sem);
             }
             break;
 
         case PRINT_STATUS_PRINTING:
-            sem_post(&_job_start_wait_sem);
+            sem_post(&jq->job_start_wait_sem);
             _lock();
             if ((jq->job_state != JOB_STATE_RUNNING) || (jq->blocked_reasons != blocked_reasons)) {
                 jq->job_state = JOB_STATE_RUNNING;
@@ -610,7 +620,7 @@ static void _job_status_callback(const printer_state_dyn_t *new_status,
             break;
 
         case PRINT_STATUS_UNABLE_TO_CONNECT:
-            sem_post(&_job_start_wait_sem);
+            sem_post(&jq->job_start_wait_sem);
             _lock();
             _stop_status_thread(jq);
 
@@ -636,12 +646,12 @@ static void _job_status_callback(const printer_state_dyn_t *new_status,
             }
 
             _unlock();
-            sem_post(&_job_end_wait_sem);
+            sem_post(&jq->job_end_wait_sem);
             break;
 
         default:
             // an error has occurred, report it back to the client
-            sem_post(&_job_start_wait_sem);
+            sem_post(&jq->job_start_wait_sem);
             _lock();
 
             if ((jq->job_state != JOB_STATE_BLOCKED) || (jq->blocked_reasons != blocked_reasons)) {
@@ -683,12 +693,12 @@ static void _print_job_state_callback(const job_state_dyn_t *new_state, void *pa
 
     switch (new_state->job_state) {
         case IPP_JOB_STATE_UNABLE_TO_CONNECT:
-            sem_post(&_job_start_wait_sem);
+            sem_post(&jq->job_start_wait_sem);
             _lock();
             jq->job_state = JOB_STATE_ERROR;
             jq->blocked_reasons = blocked_reasons;
             _unlock();
-            sem_post(&_job_end_wait_sem);
+            sem_post(&jq->job_end_wait_sem);
             break;
 
         case IPP_JOB_STATE_UNKNOWN:
@@ -697,7 +707,7 @@ static void _print_job_state_callback(const job_state_dyn_t *new_state, void *pa
             break;
 
         case IPP_JOB_STATE_PROCESSING:
-            sem_post(&_job_start_wait_sem);
+            sem_post(&jq->job_start_wait_sem);
             // clear errors
             _lock();
             if (jq->job_state != JOB_STATE_RUNNING) {
@@ -726,8 +736,8 @@ static void _print_job_state_callback(const job_state_dyn_t *new_state, void *pa
             break;
 
         case IPP_JOB_STATE_CANCELED:
-            sem_post(&_job_start_wait_sem);
-            sem_post(&_job_end_wait_sem);
+            sem_post(&jq->job_start_wait_sem);
+            sem_post(&jq->job_end_wait_sem);
             if ((jq->print_ifc != NULL) && (jq->print_ifc->enable_timeout != NULL)) {
                 jq->print_ifc->enable_timeout(jq->print_ifc, 1);
             }
@@ -738,8 +748,8 @@ static void _print_job_state_callback(const job_state_dyn_t *new_state, void *pa
             break;
 
         case IPP_JOB_STATE_ABORTED:
-            sem_post(&_job_start_wait_sem);
-            sem_post(&_job_end_wait_sem);
+            sem_post(&jq->job_start_wait_sem);
+            sem_post(&jq->job_end_wait_sem);
             _lock();
             jq->job_state = JOB_STATE_ERROR;
             jq->blocked_reasons = blocked_reasons;
@@ -747,7 +757,7 @@ static void _print_job_state_callback(const job_state_dyn_t *new_state, void *pa
             break;
 
         case IPP_JOB_STATE_COMPLETED:
-            sem_post(&_job_end_wait_sem);
+            sem_post(&jq->job_end_wait_sem);
             break;
 
         default:
@@ -777,14 +787,14 @@ static int _start_status_thread(_job_queue_t *jq) {
     pthread_sigmask(SIG_SETMASK, &allsig, &oldsig);
 #endif // CHECK_PTHREAD_SIGMASK_STATUS
     if (result == OK) {
-        result = pthread_create(&_job_status_tid, 0, _job_status_thread, jq);
-        if ((result == ERROR) && (_job_status_tid != pthread_self())) {
+        result = pthread_create(&jq->status_tid, 0, _job_status_thread, jq);
+        if ((result == ERROR) && (jq->status_tid != pthread_self())) {
 #if USE_PTHREAD_CANCEL
-            pthread_cancel(_job_status_tid);
+            pthread_cancel(jq->status_tid);
 #else // else USE_PTHREAD_CANCEL
-            pthread_kill(_job_status_tid, SIGKILL);
+            pthread_kill(jq->status_tid, SIGKILL);
 #endif // USE_PTHREAD_CANCEL
-            _job_status_tid = pthread_self();
+            jq->status_tid = pthread_self();
         }
     }
 
@@ -918,9 +928,9 @@ static void *_job_thread(void *param) {
             jq->job_params.plugin_data = NULL;
 
             // clear out the semaphore just in case
-            while (sem_trywait(&_job_start_wait_sem) == OK) {
+            while (sem_trywait(&jq->job_start_wait_sem) == OK) {
             }
-            while (sem_trywait(&_job_end_wait_sem) == OK) {
+            while (sem_trywait(&jq->job_end_wait_sem) == OK) {
             }
 
             // initialize the status ifc
@@ -935,7 +945,11 @@ static void *_job_thread(void *param) {
                 printer_state_dyn_t printer_state;
                 while (!idle && !stop_run) {
                     print_status_t status;
+
+                    // Release the lock while talking to the printer so other jobs can proceed
+                    _unlock();
                     jq->status_ifc->get_status(jq->status_ifc, &printer_state);
+                    _lock();
                     status = printer_state.printer_status & ~PRINTER_IDLE_BIT;
 
                     // Pass along any certificate received in future callbacks
@@ -1015,11 +1029,13 @@ static void *_job_thread(void *param) {
                 }
             }
 
-            _job_status_tid = pthread_self();
+            jq->status_tid = pthread_self();
             if (job_result == OK) {
                 if (jq->print_ifc) {
+                    _unlock();
                     job_result = jq->print_ifc->init(jq->print_ifc, jq->printer_addr,
                             jq->port_num, jq->printer_uri, jq->use_secure_uri);
+                    _lock();
                     if (job_result == ERROR) {
                         jq->blocked_reasons = BLOCKED_REASON_UNABLE_TO_CONNECT;
                     }
@@ -1040,15 +1056,17 @@ static void *_job_thread(void *param) {
                 jq->cb_fn(job_handle, (void *) &cb_param);
             }
 
-            memcpy(&printer_caps, &g_printer_caps, sizeof(printer_capabilities_t));
+            memcpy(&printer_caps, &jq->printer_caps, sizeof(printer_capabilities_t));
 
             jq->job_params.page_num = -1;
             if (job_result == OK) {
                 if (jq->print_ifc != NULL) {
                     LOGD("_job_thread: Calling validate_job");
                     if (jq->print_ifc->validate_job != NULL) {
+                        _unlock();
                         job_result = jq->print_ifc->validate_job(jq->print_ifc, &jq->job_params,
                                 &printer_caps);
+                        _lock();
                     }
                     if (!_is_certificate_allowed(jq)) {
                         LOGD("_job_thread: bad certificate found at validate job");
@@ -1061,14 +1079,18 @@ static void *_job_thread(void *param) {
                     // Do not call start_job unless validate_job returned OK
                     if ((job_result == OK) && (jq->print_ifc->start_job != NULL) &&
                             (strcmp(jq->job_params.print_format, PRINT_FORMAT_PDF) != 0)) {
+                        _unlock();
                         jq->print_ifc->start_job(jq->print_ifc, &jq->job_params, &printer_caps);
+                        _lock();
                     }
                 }
 
                 // Do not call start_job unless validate_job returned OK
                 if (job_result == OK && jq->plugin->start_job != NULL) {
+                    _unlock();
                     job_result = jq->plugin->start_job(job_handle, (void *) &_wprint_ifc,
                             (void *) jq->print_ifc, &(jq->job_params));
+                    _lock();
                 }
             }
 
@@ -1091,7 +1113,9 @@ static void *_job_thread(void *param) {
                     bool pdf_printed = false;
                     if (jq->print_ifc->start_job != NULL &&
                             (strcmp(jq->job_params.print_format, PRINT_FORMAT_PDF) == 0)) {
+                        _unlock();
                         jq->print_ifc->start_job(jq->print_ifc, &jq->job_params, &printer_caps);
+                        _lock();
                     }
 
                     per_copy_page_num = 0;
@@ -1245,7 +1269,10 @@ static void *_job_thread(void *param) {
 
                     if ((strcmp(jq->job_params.print_format, PRINT_FORMAT_PDF) == 0) &&
                             (jq->print_ifc->end_job)) {
+                        // Waits for the printer's response, so let other jobs proceed meanwhile
+                        _unlock();
                         int end_job_result = jq->print_ifc->end_job(jq->print_ifc);
+                        _lock();
                         if (job_result == OK) {
                             if (end_job_result == ERROR) {
                                 job_result = ERROR;
@@ -1299,6 +1326,8 @@ static void *_job_thread(void *param) {
 
             // if we started the job end it
             if (jq->job_params.page_num >= 0) {
+                _unlock();
+
                 // if the job was cancelled without sending anything through, print a blank sheet
                 if ((jq->job_params.page_num == 0) && (jq->plugin->print_blank_page != NULL)) {
                     jq->plugin->print_blank_page(job_handle, &(jq->job_params), jq->mime_type,
@@ -1309,6 +1338,7 @@ static void *_job_thread(void *param) {
                 }
                 if ((jq->print_ifc != NULL) && (jq->print_ifc->end_job) &&
                         (strcmp(jq->job_params.print_format, PRINT_FORMAT_PDF) != 0)) {
+                    // Waits for the printer's response, so let other jobs proceed meanwhile
                     int end_job_result = jq->print_ifc->end_job(jq->print_ifc);
                     if (job_result == OK) {
                         if (end_job_result == ERROR) {
@@ -1318,6 +1348,7 @@ static void *_job_thread(void *param) {
                         }
                     }
                 }
+                _lock();
             }
 
             // if we started to print, wait for idle
@@ -1330,7 +1361,7 @@ static void *_job_thread(void *param) {
                     if (retry != 0) {
                         sleep(1);
                     }
-                    result = sem_trywait(&_job_start_wait_sem);
+                    result = sem_trywait(&jq->job_start_wait_sem);
                 }
 
                 if (result == OK) {
@@ -1360,7 +1391,7 @@ static void *_job_thread(void *param) {
                                 _unlock();
                             }
                         }
-                        result = sem_trywait(&_job_end_wait_sem);
+                        result = sem_trywait(&jq->job_end_wait_sem);
                     }
                 } else {
                     LOGD("_job_thread(): the job never started");
@@ -1445,18 +1476,21 @@ static void *_job_thread(void *param) {
         LOGI("_job_thread(): job finished: %ld", job_handle);
     }
 
-    sem_post(&_job_end_wait_sem);
     return NULL;
 }
 
 /*
- * Starts the wprint background job thread
+ * Starts the wprint background job threads. Each thread runs one job at a time, so up to
+ * _MAX_JOB_THREADS jobs may be delivered concurrently.
  */
 static int _start_thread(void) {
     sigset_t allsig, oldsig;
     int result;
+    int i;
 
-    _job_tid = pthread_self();
+    for (i = 0; i < _MAX_JOB_THREADS; i++) {
+        _job_tids[i] = pthread_self();
+    }
 
     result = OK;
     stop_run = false;
@@ -1466,18 +1500,24 @@ static int _start_thread(void) {
 #else // else CHECK_PTHREAD_SIGMASK_STATUS
     pthread_sigmask(SIG_SETMASK, &allsig, &oldsig);
 #endif // CHECK_PTHREAD_SIGMASK_STATUS
-    if (result == OK) {
-        result = pthread_create(&_job_tid, 0, _job_thread, NULL);
-        if ((result == ERROR) && (_job_tid != pthread_self())) {
+    for (i = 0; (result == OK) && (i < _MAX_JOB_THREADS); i++) {
+        result = pthread_create(&_job_tids[i], 0, _job_thread, NULL);
+        if ((result == ERROR) && (_job_tids[i] != pthread_self())) {
 #if USE_PTHREAD_CANCEL
-            pthread_cancel(_job_tid);
+            pthread_cancel(_job_tids[i]);
 #else // else USE_PTHREAD_CANCEL
-            pthread_kill(_job_tid, SIGKILL);
+            pthread_kill(_job_tids[i], SIGKILL);
 #endif // USE_PTHREAD_CANCEL
-            _job_tid = pthread_self();
+            _job_tids[i] = pthread_self();
         }
     }
 
+    // Any threads which did start are enough to run jobs
+    if ((result != OK) && (i > 1)) {
+        LOGE("_start_thread(): started only %d job threads", i - 1);
+        result = OK;
+    }
+
     if (result == OK) {
         sched_yield();
 #if CHECK_PTHREAD_SIGMASK_STATUS
@@ -1491,17 +1531,21 @@ static int _start_thread(void) {
 }
 
 /*
- * Waits for the job thread to reach a stopped state
+ * Waits for the job threads to reach a stopped state
  */
 static int _stop_thread(void) {
+    int result = ERROR;
+    int i;
+
     stop_run = true;
-    if (!pthread_equal(_job_tid, pthread_self())) {
-        pthread_join(_job_tid, 0);
-        _job_tid = pthread_self();
-        return OK;
-    } else {
-        return ERROR;
+    for (i = 0; i < _MAX_JOB_THREADS; i++) {
+        if (!pthread_equal(_job_tids[i], pthread_self())) {
+            pthread_join(_job_tids[i], 0);
+            _job_tids[i] = pthread_self();
+            result = OK;
+        }
     }
+    return result;
 }
 
 static const wprint_io_plugin_t _file_io_plugin = {
@@ -1549,9 +1593,6 @@ int wprintInit(void) {
         return ERROR;
     }
 
-    sem_init(&_job_end_wait_sem, 0, 0);
-    sem_init(&_job_start_wait_sem, 0, 0);
-
     signal(SIGPIPE, SIG_IGN); // avoid broken pipe process shutdowns
     pthread_mutexattr_settype(&_q_lock_attr, PTHREAD_MUTEX_RECURSIVE_NP);
     pthread_mutex_init(&_q_lock, &_q_lock_attr);
@@ -1718,8 +1759,6 @@ status_t wprintGetCapabilities(const wprint_connect_info_t *connect_info,
             printer_cap->canPrintPWG);
 
     if (result == OK) {
-        memcpy(&g_printer_caps, printer_cap, sizeof(printer_capabilities_t));
-
         LOGD("\tmake: %s", printer_cap->make);
         LOGD("\thas color: %d", printer_cap->color);
         LOGD("\tcan duplex: %d", printer_cap->duplex);
@@ -2034,6 +2073,7 @@ wJob_t wprintStartJob(const char *printer_addr, port_t port_num,
                 MIN(ARRAY_SIZE(printer_cap->httpResource), ARRAY_SIZE(jq->printer_uri)));
 
         jq->status_ifc = _get_status_ifc(((port_num == 0) ? PORT_FILE : PORT_IPP));
+        memcpy(&jq->printer_caps, printer_cap, sizeof(printer_capabilities_t));
 
         memcpy((char *) &(jq->job_params), job_params, sizeof(wprint_job_params_t));
 
@@ -2310,17 +2350,15 @@ status_t wprintExit(void) {
         while ((msgQNumMsgs(_msgQ) > 0) &&
                 (OK == msgQReceive(_msgQ, (char *) &msg, sizeof(msg), NO_WAIT))) {}
 
-        // send a quit message
+        // send a quit message to each job thread
         msg.id = MSG_QUIT;
-        msgQSend(_msgQ, (char *) &msg, sizeof(msg), NO_WAIT, MSG_Q_FIFO);
+        for (int i = 0; i < _MAX_JOB_THREADS; i++) {
+            msgQSend(_msgQ, (char *) &msg, sizeof(msg), NO_WAIT, MSG_Q_FIFO);
+        }
 
-        // stop the job thread
+        // stop the job threads
         _stop_thread();
 
-        // empty out the semaphore
-        while (sem_trywait(&_job_end_wait_sem) == OK);
-        while (sem_trywait(&_job_start_wait_sem) == OK);
-
         // receive any messages just in case
         while ((msgQNumMsgs(_msgQ) > 0)
                 && (OK == msgQReceive(_msgQ, (char *) &msg, sizeof(msg), NO_WAIT))) {}
@@ -2329,11 +2367,10 @@ status_t wprintExit(void) {
         msgQDelete(_msgQ);
         _msgQ = NULL;
 
-        sem_destroy(&_job_end_wait_sem);
-        sem_destroy(&_job_start_wait_sem);
         pthread_mutex_destroy(&_q_lock);
     }
 
+    ipp_close_idle_connections();
     return OK;
 }
 
@@ -390,7 +390,8 @@ static void _get_pdf_page_range(JNIEnv *env, jobject javaJobParams, int *pages_a
 
     // get the first token in page_range_str
     memset(pages_ary, 0, MAX_NUM_PAGES);
-    char *page_range_split = strtok(page_range, ",");
+    char *page_range_save = NULL;
+    char *page_range_split = strtok_r(page_range, ",", &page_range_save);
     while (page_range_split != NULL) {
         if (!_order_pdf_pages(num_pages, pages_ary, num_index, page_range_split)) {
             snprintf(page_range_str, MAX_NUM_PAGES, "1-%d", num_pages);
@@ -400,7 +401,7 @@ static void _get_pdf_page_range(JNIEnv *env, jobject javaJobParams, int *pages_a
         }
 
         // get next range token
-        page_range_split = strtok(NULL, ",");
+        page_range_split = strtok_r(NULL, ",", &page_range_save);
     }
 
     if (page_range) {
@@ -21,6 +21,39 @@
 #define SUPPORT_WHITE_STRIPS
 
 #include "common_defines.h"
+#include <pthread.h>
+
+// Most worker threads compressing strips for one generator
+#define MAX_COMPRESSION_THREADS 3
+
+/*
+ * Progress of a strip through the compression queue
+ */
+typedef enum {
+    STRIP_FREE,
+    STRIP_QUEUED,
+    STRIP_COMPRESSING,
+    STRIP_COMPRESSED
+} stripState;
+
+/*
+ * A strip of pixels and its compressed form
+ */
+typedef struct {
+    stripState state;
+    compressionDisposition compression;
+    colorSpaceDisposition colorSpace;
+    int resolution;
+    int width;
+    int height;
+    bool whiteStrip;
+    ubyte *input;
+    sint32 inputSize;
+    sint32 inputCapacity;
+    ubyte *output;
+    sint32 outputCapacity;
+    int numBytes;
+} queuedStrip;
 
 /*
  * Generates a stream of PCLm output.
@@ -35,6 +68,14 @@ public:
 
     ~PCLmGenerator();
 
+    /*
+     * Delivers output to sink as it is produced rather than accumulating it for the caller, so
+     * that only a small fixed buffer is held regardless of media size. Output then returned by
+     * other calls holds only what has not yet been delivered to the sink. Must be called before
+     * StartJob.
+     */
+    void SetOutputSink(PCLmOutputSink sink, void *context);
+
     /*
      * Started a PCLm job. Initializes buffers.
      */
@@ -51,16 +92,25 @@ public:
     int StartPage(PCLmPageSetup *PCLmPageContent, void **pOutBuffer, int *iOutBufferSize);
 
     /*
-     * Ends rendering a page. Frees scratch buffer.
+     * Ends rendering a page, returning any strips still being compressed. Frees scratch buffer.
      */
     int EndPage(void **pOutBuffer, int *iOutBufferSize);
 
     /*
-     * Compresses output buffer in Flate, RLE, or JPEG compression
+     * Compresses output buffer in Flate, RLE, or JPEG compression. Compression may continue on
+     * worker threads, in which case the output holds whichever earlier strips are complete.
      */
     int Encapsulate(void *pInBuffer, int inBufferSize, int numLines, void **pOutBuffer,
             int *iOutBufferSize);
 
+    /*
+     * Encapsulates a strip already known to be white without examining or compressing its
+     * pixels where possible. pInBuffer must nevertheless contain white pixels, for strips which
+     * cannot take the fast path.
+     */
+    int EncapsulateWhite(void *pInBuffer, int inBufferSize, int numLines, void **pOutBuffer,
+            int *iOutBufferSize);
+
     /*
      * Returns index of matched media size, else returns index for letter
      */
@@ -125,6 +175,17 @@ private:
      */
     void write2Buff(ubyte *buff, int buffSize);
 
+    /*
+     * Makes room for size bytes in the output buffer by delivering its contents to the output
+     * sink if necessary
+     */
+    void reserveOutBuff(int size);
+
+    /*
+     * Delivers the contents of the output buffer to the output sink and empties it
+     */
+    void flushOutBuff();
+
     /*
      * Adds totalBytesWrittenToPCLmFile to the xRefTable for output
      */
@@ -211,6 +272,65 @@ private:
      */
     int RLEEncodeImage(ubyte *in, ubyte *out, int inLength);
 
+    /*
+     * Compresses and injects a strip of pixels, on a worker thread if possible. Strips compressed
+     * on worker threads are injected in order by later calls.
+     */
+    void encodeStrip(ubyte *pixels, sint32 numBytes, sint32 height, bool whiteStrip);
+
+    /*
+     * Starts worker threads if not already started, returning true if any are running
+     */
+    bool startCompressionThreads();
+
+    /*
+     * Stops worker threads and frees queued strips
+     */
+    void stopCompressionThreads();
+
+    /*
+     * Worker thread body; compresses queued strips until stopped
+     */
+    static void *compressionThread(void *arg);
+
+    /*
+     * Returns a free strip at the end of the queue, injecting the oldest strips (waiting for
+     * them if necessary) to make room
+     */
+    queuedStrip *acquireStrip();
+
+    /*
+     * Adds an acquired strip to the queue in the specified state
+     */
+    void submitStrip(queuedStrip *strip, stripState state);
+
+    /*
+     * Injects compressed strips from the head of the queue. If all is true, waits for and
+     * injects every queued strip.
+     */
+    void drainStrips(bool all);
+
+    /*
+     * Ensures the strip's buffers can hold the specified number of input and output bytes
+     */
+    bool reserveStrip(queuedStrip *strip, sint32 inputBytes, sint32 outputBytes);
+
+    /*
+     * Compresses strip input to its output
+     */
+    void compressStrip(queuedStrip *strip);
+
+    /*
+     * Returns true if the strip can be injected without growing the output buffer
+     */
+    bool fitsOutBuff(queuedStrip *strip);
+
+    /*
+     * Injects a compressed strip into the output buffer, growing it if necessary. Returns false,
+     * injecting nothing and marking the job failed, if the buffer cannot grow.
+     */
+    bool injectStrip(queuedStrip *strip);
+
     sint32 currStripHeight;
     char currMediaName[256];
     duplexDispositionEnum currDuplexDisposition;
@@ -243,6 +363,8 @@ private:
     int totalBytesWrittenToCurrBuff;
     char *outBuffPtr;
     char *currBuffPtr;
+    PCLmOutputSink outputSink;
+    void *outputSinkContext;
     float STANDARD_SCALE;
     sint32 objCounter;
 
@@ -255,6 +377,9 @@ private:
     sint32 *xRefTable;
     sint32 xRefIndex;
     sint32 xRefStart;
+    // Range of xref entries written for the current page, used when mirroring duplex backsides
+    sint32 startXRef;
+    sint32 endXRef;
     char pOutStr[256];
     bool adobeRGBCS_firstTime;
     bool mirrorBackside;
@@ -265,6 +390,25 @@ private:
     sint32 numFullScanlinesToInject;
     sint32 numPartialScanlinesToInject;
 
+    // Compressed full-height white strip for the current page, reused for each white strip
+    ubyte *whiteStripBuffer;
+    int whiteStripSize;
+
+    // Ring of strips being compressed by worker threads, oldest first. Strips are injected in
+    // queue order so that object numbers and xref offsets are assigned as if compressed serially.
+    pthread_t compressionThreads[MAX_COMPRESSION_THREADS];
+    int numCompressionThreads;
+    bool compressionStarted;
+    bool stopCompression;
+    pthread_mutex_t stripMutex;
+    pthread_cond_t stripCond;
+    queuedStrip stripQueue[MAX_COMPRESSION_THREADS + 1];
+    int stripQueueHead;
+    int stripQueueCount;
+
+    // Set once a strip could not be injected, after which the job's output is incomplete
+    bool stripDropped;
+
     PCLmSUserSettingsType *m_pPCLmSSettings;
 };
 
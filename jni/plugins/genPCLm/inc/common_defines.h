@@ -185,4 +185,9 @@ typedef enum {
     genericFailure = -1,
 } PCLmGenerator_returnType;
 
+/*
+ * Receives PCLm output as it is produced. context is the value supplied with the sink.
+ */
+typedef void (*PCLmOutputSink)(void *context, const ubyte *data, int numBytes);
+
 #endif
\ No newline at end of file
@@ -25,6 +25,7 @@
 #include <stdio.h>
 #include <string.h>
 #include <stdlib.h>
+#include <unistd.h>
 #include <genPCLm.h>
 
 #define TAG "genPCLm"
@@ -33,15 +34,19 @@
 #define JPEG_QUALITY 100
 #define TEMP_BUFF_SIZE 10000000
 #define DEFAULT_OUTBUFF_SIZE 64*5120*3*10
+
+// Output buffer size when output is delivered to a sink as it is produced
+#define SINK_OUTBUFF_SIZE (64 * 1024)
 #define STANDARD_SCALE_FOR_PDF 72.0
 #define KID_STRING_SIZE 1000
 #define CATALOG_OBJ_NUMBER 1
 #define PAGES_OBJ_NUMBER   2
 #define ADOBE_RGB_SIZE 284
 
-#define rgb_2_gray(r, g, b) (ubyte)(0.299*(double)r+0.587*(double)g+0.114*(double)b)
+// Room to allow for PDF grammar written around each injected strip
+#define STRIP_GRAMMAR_SIZE 4096
 
-static PCLmSUserSettingsType PCLmSSettings;
+#define rgb_2_gray(r, g, b) (ubyte)(0.299*(double)r+0.587*(double)g+0.114*(double)b)
 
 /*
  * Shift the strip image right in the strip buffer by leftMargin pixels.
@@ -99,6 +104,8 @@ bool PCLmGenerator::isWhiteStrip(void *pInBuffer, int inBufferSize) {
 #endif
 
 void PCLmGenerator::Cleanup(void) {
+    stopCompressionThreads();
+
     if (allocatedOutputBuffer) {
         free(allocatedOutputBuffer);
         allocatedOutputBuffer = NULL;
@@ -113,6 +120,10 @@ void PCLmGenerator::Cleanup(void) {
         free(scratchBuffer);
         scratchBuffer = NULL;
     }
+    if (whiteStripBuffer) {
+        free(whiteStripBuffer);
+        whiteStripBuffer = NULL;
+    }
     if (xRefTable) {
         free(xRefTable);
         xRefTable = NULL;
@@ -129,9 +140,6 @@ int PCLmGenerator::errorOutAndCleanUp() {
     return genericFailure;
 }
 
-static sint32 startXRef = 0;
-static sint32 endXRef = 0;
-
 /*
  * DO NOT EDIT UNTIL YOU READ THE HEADER FILE DESCRIPTION.
  */
@@ -225,8 +233,23 @@ void PCLmGenerator::initOutBuff(char *buff, sint32 size) {
     memset(buff, 0, size);
 }
 
+void PCLmGenerator::reserveOutBuff(int size) {
+    if (outputSink && totalBytesWrittenToCurrBuff + size >= outBuffSize) {
+        flushOutBuff();
+    }
+}
+
+void PCLmGenerator::flushOutBuff() {
+    if (totalBytesWrittenToCurrBuff > 0) {
+        outputSink(outputSinkContext, (ubyte *) outBuffPtr, totalBytesWrittenToCurrBuff);
+    }
+    currBuffPtr = outBuffPtr;
+    totalBytesWrittenToCurrBuff = 0;
+}
+
 void PCLmGenerator::writeStr2OutBuff(char *str) {
     sint32 strSize = strlen(str);
+    reserveOutBuff(strSize);
     // Make sure we have enough room for the copy
     char *maxSize = currBuffPtr + strSize;
     assert(maxSize - outBuffPtr < outBuffSize);
@@ -237,6 +260,15 @@ void PCLmGenerator::writeStr2OutBuff(char *str) {
 }
 
 void PCLmGenerator::write2Buff(ubyte *buff, int buffSize) {
+    if (outputSink && buffSize >= outBuffSize / 2) {
+        // Deliver large data such as compressed strips directly rather than copying it
+        flushOutBuff();
+        outputSink(outputSinkContext, buff, buffSize);
+        totalBytesWrittenToPCLmFile += buffSize;
+        return;
+    }
+    reserveOutBuff(buffSize);
+
     char *maxSize = currBuffPtr + buffSize;
     if (maxSize - outBuffPtr > outBuffSize) {
         assert(0);
@@ -1241,10 +1273,6 @@ void PCLmGenerator::writeJobTicket() {
     sprintf(pOutStr, "%%      orientation-requested: %d\n", m_pPCLmSSettings->userOrientation);
     writeStr2OutBuff(pOutStr);
 
-    if (PCLmSSettings.userCopies == 0) {
-        PCLmSSettings.userCopies = 1;
-    }
-
     sprintf(pOutStr, "%%      copies: %d\n", m_pPCLmSSettings->userCopies);
     writeStr2OutBuff(pOutStr);
     sprintf(pOutStr, "%%      pclm-raster-back-side: xxx\n");
@@ -1362,6 +1390,7 @@ PCLmGenerator::PCLmGenerator() {
     sourceColorSpace = deviceRGB;
     scaleFactor = 1;
     jobOpen = job_closed;
+    stripDropped = false;
     scratchBuffer = NULL;
     pageCount = 0;
 
@@ -1372,6 +1401,8 @@ PCLmGenerator::PCLmGenerator() {
 
     // XRefTable storage
     xRefIndex = 0;
+    startXRef = 0;
+    endXRef = 0;
     xRefStart = 0;
 
     objCounter = PAGES_OBJ_NUMBER + 1;
@@ -1392,18 +1423,39 @@ PCLmGenerator::PCLmGenerator() {
 
     topMarginInPix = 0;
     leftMarginInPix = 0;
+    whiteStripBuffer = NULL;
+    whiteStripSize = 0;
+
+    numCompressionThreads = 0;
+    compressionStarted = false;
+    stopCompression = false;
+    pthread_mutex_init(&stripMutex, NULL);
+    pthread_cond_init(&stripCond, NULL);
+    memset(stripQueue, 0, sizeof(stripQueue));
+    stripQueueHead = 0;
+    stripQueueCount = 0;
+    outputSink = NULL;
+    outputSinkContext = NULL;
     m_pPCLmSSettings = NULL;
 }
 
 PCLmGenerator::~PCLmGenerator() {
     Cleanup();
+    pthread_cond_destroy(&stripCond);
+    pthread_mutex_destroy(&stripMutex);
+}
+
+void PCLmGenerator::SetOutputSink(PCLmOutputSink sink, void *context) {
+    outputSink = sink;
+    outputSinkContext = context;
 }
 
 int PCLmGenerator::StartJob(void **pOutBuffer, int *iOutBufferSize) {
     /* Allocate the output buffer; we don't know much at this point, so make the output buffer size
-     * the worst case dimensions; when we get a startPage, we will resize it appropriately
+     * the worst case dimensions; when we get a startPage, we will resize it appropriately. With an
+     * output sink the buffer only collects PDF grammar between deliveries, so stays small.
      */
-    outBuffSize = DEFAULT_OUTBUFF_SIZE;
+    outBuffSize = outputSink ? SINK_OUTBUFF_SIZE : DEFAULT_OUTBUFF_SIZE;
     *iOutBufferSize = outBuffSize;
     *pOutBuffer = (ubyte *) malloc(outBuffSize); // This multipliy by 10 needs to be removed...
 
@@ -1422,6 +1474,7 @@ int PCLmGenerator::StartJob(void **pOutBuffer, int *iOutBufferSize) {
     writePDFGrammarHeader();
     *iOutBufferSize = totalBytesWrittenToCurrBuff;
     jobOpen = job_open;
+    stripDropped = false;
 
     return success;
 }
@@ -1547,7 +1600,7 @@ int PCLmGenerator::StartPage(PCLmPageSetup *PCLmPageContent, void **pOutBuffer,
     // Calculate how large the output buffer needs to be based upon the page specifications
     int tmp_outBuffSize = mediaWidthInPixels * currStripHeight * dstNumComponents;
 
-    if (tmp_outBuffSize > currOutBuffSize) {
+    if (!outputSink && tmp_outBuffSize > currOutBuffSize) {
         // Realloc the pOutBuffer to the correct size
         *pOutBuffer = realloc(*pOutBuffer, tmp_outBuffSize);
 
@@ -1610,15 +1663,25 @@ int PCLmGenerator::StartPage(PCLmPageSetup *PCLmPageContent, void **pOutBuffer,
 }
 
 int PCLmGenerator::EndPage(void **pOutBuffer, int *iOutBufferSize) {
+    initOutBuff((char *) allocatedOutputBuffer, outBuffSize);
+
+    // Strips still being compressed belong to this page
+    drainStrips(true);
     *pOutBuffer = allocatedOutputBuffer;
-    initOutBuff((char *) *pOutBuffer, outBuffSize);
     *iOutBufferSize = totalBytesWrittenToCurrBuff;
+    if (stripDropped) {
+        return genericFailure;
+    }
 
     // Free up the scratchbuffer at endpage, to allow the next page to have a different size
     if (scratchBuffer) {
         free(scratchBuffer);
         scratchBuffer = NULL;
     }
+    if (whiteStripBuffer) {
+        free(whiteStripBuffer);
+        whiteStripBuffer = NULL;
+    }
 
     return success;
 }
@@ -1758,20 +1821,8 @@ int PCLmGenerator::Encapsulate(void *pInBuffer, int inBufferSize, int thisHeight
             memset((ubyte *) localInBuffer + numImagedBytes, 0xff, numLeftoverBytes);
         }
 
-        if (newStripPtr) {
-            write_JPEG_Buff(scratchBuffer, JPEG_QUALITY, mediaWidthInPixels, currStripHeight,
-                    newStripPtr, currRenderResolutionInteger, destColorSpace, &numCompBytes);
-
-            free(newStripPtr);
-            newStripPtr = NULL;
-        } else {
-            write_JPEG_Buff(scratchBuffer, JPEG_QUALITY, mediaWidthInPixels, currStripHeight,
-                    (JSAMPLE *) localInBuffer, currRenderResolutionInteger, destColorSpace,
-                    &numCompBytes);
-        }
-
-        injectJPEG((char *) scratchBuffer, mediaWidthInPixels, currStripHeight, numCompBytes,
-                destColorSpace, whiteStrip);
+        encodeStrip(newStripPtr ? newStripPtr : (ubyte *) localInBuffer,
+                scanlineWidth * currStripHeight, currStripHeight, whiteStrip);
     } else if (currCompressionDisposition == compressFlate) {
         uint32 len = numLinesThisCall * scanlineWidth;
         uLongf destSize = len;
@@ -1801,18 +1852,8 @@ int PCLmGenerator::Encapsulate(void *pInBuffer, int inBufferSize, int thisHeight
         }
         firstStrip = false;
 
-        if (newStripPtr) {
-            result = compress(scratchBuffer, &destSize, (const Bytef *) newStripPtr,
-                    scanlineWidth * numLinesThisCall);
-            free(newStripPtr);
-            newStripPtr = NULL;
-        } else {
-            // Dump the source data
-            result = compress(scratchBuffer, &destSize, (const Bytef *) localInBuffer,
-                    scanlineWidth * numLinesThisCall);
-        }
-        injectLZStrip(scratchBuffer, destSize, mediaWidthInPixels, numLinesThisCall, destColorSpace,
-                whiteStrip);
+        encodeStrip(newStripPtr ? newStripPtr : (ubyte *) localInBuffer,
+                scanlineWidth * numLinesThisCall, numLinesThisCall, whiteStrip);
     } else if (currCompressionDisposition == compressRLE) {
         int compSize;
         if (firstStrip && topMarginInPix) {
@@ -1841,22 +1882,14 @@ int PCLmGenerator::Encapsulate(void *pInBuffer, int inBufferSize, int thisHeight
         }
         firstStrip = false;
 
-        if (newStripPtr) {
-            compSize = RLEEncodeImage(newStripPtr, scratchBuffer,
-                    scanlineWidth * numLinesThisCall);
-            free(newStripPtr);
-            newStripPtr = NULL;
-        } else {
-            compSize = RLEEncodeImage((ubyte *) localInBuffer, scratchBuffer,
-                    scanlineWidth * numLinesThisCall);
-        }
-
-        injectRLEStrip(scratchBuffer, compSize, mediaWidthInPixels, numLinesThisCall,
-                destColorSpace, whiteStrip);
+        encodeStrip(newStripPtr ? newStripPtr : (ubyte *) localInBuffer,
+                scanlineWidth * numLinesThisCall, numLinesThisCall, whiteStrip);
     } else {
         assert(0);
     }
 
+    // Injecting strips may have grown the output buffer
+    *pOutBuffer = allocatedOutputBuffer;
     *iOutBufferSize = totalBytesWrittenToCurrBuff;
 
     if (savedInBufferPtr) {
@@ -1871,7 +1904,306 @@ int PCLmGenerator::Encapsulate(void *pInBuffer, int inBufferSize, int thisHeight
         free(newStripPtr);
     }
 
-    return success;
+    return stripDropped ? genericFailure : success;
+}
+
+int PCLmGenerator::EncapsulateWhite(void *pInBuffer, int inBufferSize, int thisHeight,
+        void **pOutBuffer, int *iOutBufferSize) {
+    // Only full JPEG strips after the first are emitted directly; others need the usual handling
+    if (leftoverScanlineBuffer || firstStrip || thisHeight != currStripHeight ||
+            currCompressionDisposition != compressDCT || NULL == allocatedOutputBuffer) {
+        return Encapsulate(pInBuffer, inBufferSize, thisHeight, pOutBuffer, iOutBufferSize);
+    }
+
+    if (NULL == whiteStripBuffer) {
+        // Every white strip of the page compresses identically, so compress one just once
+        sint32 whiteBytes = mediaWidthInPixels * currStripHeight * srcNumComponents;
+        ubyte *whiteStrip = (ubyte *) malloc(whiteBytes);
+        if (!whiteStrip) {
+            return Encapsulate(pInBuffer, inBufferSize, thisHeight, pOutBuffer, iOutBufferSize);
+        }
+        memset(whiteStrip, 0xff, whiteBytes);
+        write_JPEG_Buff(scratchBuffer, JPEG_QUALITY, mediaWidthInPixels, currStripHeight,
+                whiteStrip, currRenderResolutionInteger, destColorSpace, &whiteStripSize);
+        free(whiteStrip);
+
+        whiteStripBuffer = (ubyte *) malloc(whiteStripSize);
+        if (!whiteStripBuffer) {
+            return Encapsulate(pInBuffer, inBufferSize, thisHeight, pOutBuffer, iOutBufferSize);
+        }
+        memcpy(whiteStripBuffer, scratchBuffer, whiteStripSize);
+    }
+
+    initOutBuff((char *) allocatedOutputBuffer, outBuffSize);
+
+    // Queue the strip behind any still being compressed so that strips stay in order
+    queuedStrip *strip = startCompressionThreads() ? acquireStrip() : NULL;
+    if (strip && reserveStrip(strip, 0, whiteStripSize)) {
+        strip->compression = compressDCT;
+        strip->colorSpace = destColorSpace;
+        strip->width = mediaWidthInPixels;
+        strip->height = currStripHeight;
+        strip->whiteStrip = true;
+        strip->numBytes = whiteStripSize;
+        memcpy(strip->output, whiteStripBuffer, whiteStripSize);
+        submitStrip(strip, STRIP_COMPRESSED);
+        drainStrips(false);
+    } else {
+        drainStrips(true);
+        injectJPEG((char *) whiteStripBuffer, mediaWidthInPixels, currStripHeight, whiteStripSize,
+                destColorSpace, true);
+    }
+    *pOutBuffer = allocatedOutputBuffer;
+    *iOutBufferSize = totalBytesWrittenToCurrBuff;
+    return stripDropped ? genericFailure : success;
+}
+
+void PCLmGenerator::encodeStrip(ubyte *pixels, sint32 numBytes, sint32 height, bool whiteStrip) {
+    // Compressed data may be slightly larger than the source (RLE can expand)
+    sint32 outputBytes = currStripHeight * mediaWidthInPixels * srcNumComponents * 2;
+    queuedStrip *strip = startCompressionThreads() ? acquireStrip() : NULL;
+    if (strip && reserveStrip(strip, numBytes, outputBytes)) {
+        // The caller reuses its buffer, so the worker needs a copy
+        memcpy(strip->input, pixels, numBytes);
+        strip->inputSize = numBytes;
+        strip->compression = currCompressionDisposition;
+        strip->colorSpace = destColorSpace;
+        strip->resolution = currRenderResolutionInteger;
+        strip->width = mediaWidthInPixels;
+        strip->height = height;
+        strip->whiteStrip = whiteStrip;
+        submitStrip(strip, STRIP_QUEUED);
+        drainStrips(false);
+        return;
+    }
+
+    // Compress in place on this thread once earlier strips are out of the way
+    drainStrips(true);
+    queuedStrip local;
+    memset(&local, 0, sizeof(local));
+    local.compression = currCompressionDisposition;
+    local.colorSpace = destColorSpace;
+    local.resolution = currRenderResolutionInteger;
+    local.width = mediaWidthInPixels;
+    local.height = height;
+    local.whiteStrip = whiteStrip;
+    local.input = pixels;
+    local.inputSize = numBytes;
+    local.output = scratchBuffer;
+    local.outputCapacity = outputBytes;
+    compressStrip(&local);
+    injectStrip(&local);
+}
+
+bool PCLmGenerator::startCompressionThreads() {
+    if (compressionStarted) {
+        return numCompressionThreads > 0;
+    }
+    compressionStarted = true;
+
+    // The calling thread prepares strips and injects them, so leave one core for it
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    int wanted = cpus > 1 ? (int) cpus - 1 : 0;
+    if (wanted > MAX_COMPRESSION_THREADS) {
+        wanted = MAX_COMPRESSION_THREADS;
+    }
+
+    // Workers wait for the lock so that they see the final thread count
+    pthread_mutex_lock(&stripMutex);
+    stopCompression = false;
+    stripQueueHead = 0;
+    stripQueueCount = 0;
+    for (int i = 0; i < wanted; i++) {
+        if (pthread_create(&compressionThreads[i], NULL, compressionThread, this) != 0) {
+            break;
+        }
+        numCompressionThreads++;
+    }
+    pthread_mutex_unlock(&stripMutex);
+    return numCompressionThreads > 0;
+}
+
+void PCLmGenerator::stopCompressionThreads() {
+    pthread_mutex_lock(&stripMutex);
+    stopCompression = true;
+    pthread_cond_broadcast(&stripCond);
+    pthread_mutex_unlock(&stripMutex);
+    for (int i = 0; i < numCompressionThreads; i++) {
+        pthread_join(compressionThreads[i], NULL);
+    }
+    numCompressionThreads = 0;
+    compressionStarted = false;
+
+    // Discard any strips never injected
+    for (int i = 0; i <= MAX_COMPRESSION_THREADS; i++) {
+        free(stripQueue[i].input);
+        free(stripQueue[i].output);
+    }
+    memset(stripQueue, 0, sizeof(stripQueue));
+    stripQueueHead = 0;
+    stripQueueCount = 0;
+}
+
+void *PCLmGenerator::compressionThread(void *arg) {
+    PCLmGenerator *generator = (PCLmGenerator *) arg;
+
+    pthread_mutex_lock(&generator->stripMutex);
+    int queueSize = generator->numCompressionThreads + 1;
+    while (!generator->stopCompression) {
+        queuedStrip *strip = NULL;
+        for (int i = 0; i < generator->stripQueueCount; i++) {
+            queuedStrip *candidate =
+                    &generator->stripQueue[(generator->stripQueueHead + i) % queueSize];
+            if (candidate->state == STRIP_QUEUED) {
+                strip = candidate;
+                break;
+            }
+        }
+        if (!strip) {
+            pthread_cond_wait(&generator->stripCond, &generator->stripMutex);
+            continue;
+        }
+
+        strip->state = STRIP_COMPRESSING;
+        pthread_mutex_unlock(&generator->stripMutex);
+        generator->compressStrip(strip);
+        pthread_mutex_lock(&generator->stripMutex);
+        strip->state = STRIP_COMPRESSED;
+        pthread_cond_broadcast(&generator->stripCond);
+    }
+    pthread_mutex_unlock(&generator->stripMutex);
+    return NULL;
+}
+
+queuedStrip *PCLmGenerator::acquireStrip() {
+    int queueSize = numCompressionThreads + 1;
+    queuedStrip *strip;
+
+    pthread_mutex_lock(&stripMutex);
+    while (stripQueueCount == queueSize) {
+        strip = &stripQueue[stripQueueHead];
+        while (strip->state != STRIP_COMPRESSED) {
+            pthread_cond_wait(&stripCond, &stripMutex);
+        }
+        // Compressed strips are no longer touched by workers
+        pthread_mutex_unlock(&stripMutex);
+        injectStrip(strip);
+        pthread_mutex_lock(&stripMutex);
+        strip->state = STRIP_FREE;
+        stripQueueHead = (stripQueueHead + 1) % queueSize;
+        stripQueueCount--;
+    }
+    strip = &stripQueue[(stripQueueHead + stripQueueCount) % queueSize];
+    pthread_mutex_unlock(&stripMutex);
+    return strip;
+}
+
+void PCLmGenerator::submitStrip(queuedStrip *strip, stripState state) {
+    pthread_mutex_lock(&stripMutex);
+    strip->state = state;
+    stripQueueCount++;
+    pthread_cond_broadcast(&stripCond);
+    pthread_mutex_unlock(&stripMutex);
+}
+
+void PCLmGenerator::drainStrips(bool all) {
+    if (!compressionStarted || numCompressionThreads == 0) {
+        return;
+    }
+
+    int queueSize = numCompressionThreads + 1;
+    pthread_mutex_lock(&stripMutex);
+    while (stripQueueCount > 0) {
+        queuedStrip *strip = &stripQueue[stripQueueHead];
+        if (strip->state != STRIP_COMPRESSED) {
+            if (!all) {
+                break;
+            }
+            pthread_cond_wait(&stripCond, &stripMutex);
+            continue;
+        }
+        if (!all && !fitsOutBuff(strip)) {
+            // Leave it for a later call, once the caller has taken what is already written
+            break;
+        }
+        pthread_mutex_unlock(&stripMutex);
+        injectStrip(strip);
+        pthread_mutex_lock(&stripMutex);
+        strip->state = STRIP_FREE;
+        stripQueueHead = (stripQueueHead + 1) % queueSize;
+        stripQueueCount--;
+    }
+    pthread_mutex_unlock(&stripMutex);
+}
+
+bool PCLmGenerator::reserveStrip(queuedStrip *strip, sint32 inputBytes, sint32 outputBytes) {
+    if (inputBytes > strip->inputCapacity) {
+        // RLEEncodeImage may look one byte past the end of its input
+        ubyte *input = (ubyte *) realloc(strip->input, inputBytes + 1);
+        if (!input) {
+            return false;
+        }
+        strip->input = input;
+        strip->inputCapacity = inputBytes;
+    }
+    if (outputBytes > strip->outputCapacity) {
+        ubyte *output = (ubyte *) realloc(strip->output, outputBytes);
+        if (!output) {
+            return false;
+        }
+        strip->output = output;
+        strip->outputCapacity = outputBytes;
+    }
+    return true;
+}
+
+void PCLmGenerator::compressStrip(queuedStrip *strip) {
+    if (strip->compression == compressDCT) {
+        write_JPEG_Buff(strip->output, JPEG_QUALITY, strip->width, strip->height,
+                (JSAMPLE *) strip->input, strip->resolution, strip->colorSpace,
+                &strip->numBytes);
+    } else if (strip->compression == compressFlate) {
+        uLongf destSize = strip->inputSize;
+        compress(strip->output, &destSize, (const Bytef *) strip->input, strip->inputSize);
+        strip->numBytes = (int) destSize;
+    } else {
+        strip->numBytes = RLEEncodeImage(strip->input, strip->output, strip->inputSize);
+    }
+}
+
+bool PCLmGenerator::fitsOutBuff(queuedStrip *strip) {
+    return outputSink ||
+            totalBytesWrittenToCurrBuff + strip->numBytes + STRIP_GRAMMAR_SIZE <= outBuffSize;
+}
+
+bool PCLmGenerator::injectStrip(queuedStrip *strip) {
+    if (!fitsOutBuff(strip)) {
+        // Several strips may be due at once, so grow the output buffer to hold them all
+        sint32 needed = totalBytesWrittenToCurrBuff + strip->numBytes + STRIP_GRAMMAR_SIZE;
+        sint32 newSize = outBuffSize * 2 > needed ? outBuffSize * 2 : needed;
+        char *newBuff = (char *) realloc(allocatedOutputBuffer, newSize);
+        if (!newBuff) {
+            // Writing the strip would overrun the buffer, and leaving it out breaks the page
+            stripDropped = true;
+            return false;
+        }
+        currBuffPtr = newBuff + (currBuffPtr - outBuffPtr);
+        outBuffPtr = newBuff;
+        allocatedOutputBuffer = newBuff;
+        outBuffSize = currOutBuffSize = newSize;
+    }
+
+    if (strip->compression == compressDCT) {
+        injectJPEG((char *) strip->output, strip->width, strip->height, strip->numBytes,
+                strip->colorSpace, strip->whiteStrip);
+    } else if (strip->compression == compressFlate) {
+        injectLZStrip(strip->output, strip->numBytes, strip->width, strip->height,
+                strip->colorSpace, strip->whiteStrip);
+    } else {
+        injectRLEStrip(strip->output, strip->numBytes, strip->width, strip->height,
+                strip->colorSpace, strip->whiteStrip);
+    }
+    return true;
 }
 
 int PCLmGenerator::GetPclmMediaDimensions(const char *mediaRequested,
@@ -19,6 +19,8 @@
 #ifndef __LIB_PCL_H__
 #define __LIB_PCL_H__
 
+#include <cups/raster.h>
+
 #include "ifc_print_job.h"
 #include "ifc_wprint.h"
 #include "lib_wprint.h"
@@ -115,6 +117,22 @@ typedef struct {
     PCLmPageSetup pclm_page_info;
     uint8 *pclm_output_buffer;
     const char *useragent;
+
+    // PWG raster output state for this job
+    cups_raster_t *ras_out;
+    cups_page_header2_t header_pwg;
+
+    // PWG output is gathered here and sent in large writes
+    unsigned char *pwg_write_buff;
+    size_t pwg_write_used;
+
+    // encoded blank PWG page, reused for further blank pages of the same size
+    unsigned char *pwg_blank_page;
+    size_t pwg_blank_page_size;
+    int pwg_blank_width, pwg_blank_height;
+
+    // if set, encoded page output is also written here so it can be replayed later
+    FILE *page_record;
 } pcl_job_info_t;
 
 /*
@@ -153,10 +171,11 @@ typedef struct ifc_pcl_st {
     /*
      * Called several times a page to send a rectangular swath of RGB data. The array
      * rgb_pixels[] must have (num_rows * pixel_width) pixels. bytes_per_row can be used for
-     * 32-bit aligned rows. Returns OK or ERROR.
+     * 32-bit aligned rows. blank is true if every pixel is already known to be white, in which
+     * case the pixels need not be examined. Returns OK or ERROR.
      */
     status_t (*print_swath)(pcl_job_info_t *job_info, char *rgb_pixels, int start_row, int num_rows,
-            int bytes_per_row);
+            int bytes_per_row, bool blank);
 
     /*
      * Return true if this interface can cancel a job partway through a page
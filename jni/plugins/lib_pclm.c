@@ -87,6 +87,14 @@ static void _get_pclm_media_size(pcl_job_info_t *job_info, media_size_t media_si
     }
 }
 
+/*
+ * Send PCLm output to the printer as soon as it is produced
+ */
+static void _pclm_output_sink(void *context, const ubyte *data, int numBytes) {
+    pcl_job_info_t *job_info = (pcl_job_info_t *) context;
+    _WRITE(job_info, (const char *) data, numBytes);
+}
+
 static wJob_t _start_job(wJob_t job_handle, pcl_job_info_t *job_info, media_size_t media_size,
         media_type_t media_type, int resolution, duplex_t duplex, duplex_dry_time_t dry_time,
         color_space_t color_space, media_tray_t media_tray, float top_margin,
@@ -172,6 +180,7 @@ static wJob_t _start_job(wJob_t job_handle, pcl_job_info_t *job_info, media_size
 
     job_info->pclm_page_info.mirrorBackside = false;
     job_info->pclmgen_obj = CreatePCLmGen();
+    PCLmSetOutputSink(job_info->pclmgen_obj, _pclm_output_sink, job_info);
     PCLmStartJob(job_info->pclmgen_obj, (void **) &job_info->pclm_output_buffer, &outBuffSize);
     _WRITE(job_info, (const char *) job_info->pclm_output_buffer, outBuffSize);
     return job_info->job_handle;
@@ -225,11 +234,12 @@ static int _start_page(pcl_job_info_t *job_info, int pixel_width, int pixel_heig
 }
 
 static int _print_swath(pcl_job_info_t *job_info, char *rgb_pixels, int start_row, int num_rows,
-        int bytes_per_row) {
+        int bytes_per_row, bool blank) {
     int outBuffSize = 0;
     _PAGE_DATA(job_info, (const unsigned char *) rgb_pixels, (num_rows * bytes_per_row));
 
-    if (job_info->monochrome) {
+    // white pixels are already white in every color space
+    if (job_info->monochrome && !blank) {
         unsigned char *buff = (unsigned char *) rgb_pixels;
         int nbytes = (num_rows * bytes_per_row);
         int readIndex, writeIndex;
@@ -246,6 +256,15 @@ static int _print_swath(pcl_job_info_t *job_info, char *rgb_pixels, int start_ro
             job_info->page_number, job_info->strip_height * job_info->scan_line_width, start_row,
             start_row + num_rows - 1, num_rows, bytes_per_row);
 
+    if (blank) {
+        PCLmEncapsulateWhite(job_info->pclmgen_obj, rgb_pixels,
+                job_info->strip_height * MIN(job_info->scan_line_width,
+                        job_info->pclm_scan_line_width),
+                num_rows, (void **) &job_info->pclm_output_buffer, &outBuffSize);
+        _WRITE(job_info, (const char *) job_info->pclm_output_buffer, outBuffSize);
+        return OK;
+    }
+
     if (job_info->scan_line_width > job_info->pclm_scan_line_width) {
         int i;
         char *src_pixels = rgb_pixels + job_info->scan_line_width;
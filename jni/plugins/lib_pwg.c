@@ -29,8 +29,8 @@
 
 #define TAG "lib_pwg"
 
-cups_raster_t *ras_out = NULL;
-cups_page_header2_t header_pwg;
+// Size of the buffer in which PWG output is gathered before sending
+#define PWG_WRITE_BUFF_SIZE (256 * 1024)
 
 /*
  * Write the PWG header
@@ -131,11 +131,36 @@ static void _get_pwg_media_size(pcl_job_info_t *job_info, media_size_t media_siz
 }
 
 /*
- * Write a buffer to the output stream
+ * Send any gathered output to the printer
+ */
+static void _pwg_flush(pcl_job_info_t *job_info) {
+    if (job_info->pwg_write_used > 0) {
+        _WRITE(job_info, (const char *) job_info->pwg_write_buff, job_info->pwg_write_used);
+        job_info->pwg_write_used = 0;
+    }
+}
+
+/*
+ * Write a buffer to the output stream. The raster writer delivers output a row at a time, so
+ * output is gathered into large writes to reduce per-write overhead on the connection.
  */
 static ssize_t _pwg_io_write(void *ctx, unsigned char *buf, size_t bytes) {
     pcl_job_info_t *pwg_job_info = (pcl_job_info_t *) ctx;
-    _WRITE(pwg_job_info, (const char *) buf, bytes);
+    if (pwg_job_info->page_record != NULL) {
+        fwrite(buf, 1, bytes, pwg_job_info->page_record);
+    }
+
+    if (pwg_job_info->pwg_write_buff == NULL || bytes >= PWG_WRITE_BUFF_SIZE) {
+        _pwg_flush(pwg_job_info);
+        _WRITE(pwg_job_info, (const char *) buf, bytes);
+        return bytes;
+    }
+
+    if (pwg_job_info->pwg_write_used + bytes > PWG_WRITE_BUFF_SIZE) {
+        _pwg_flush(pwg_job_info);
+    }
+    memcpy(pwg_job_info->pwg_write_buff + pwg_job_info->pwg_write_used, buf, bytes);
+    pwg_job_info->pwg_write_used += bytes;
     return bytes;
 }
 
@@ -166,8 +191,8 @@ static wJob_t _start_job(wJob_t job_handle, pcl_job_info_t *job_info, media_size
 
     _START_JOB(job_info, "pwg");
 
-    header_pwg.HWResolution[0] = resolution;
-    header_pwg.HWResolution[1] = resolution;
+    job_info->header_pwg.HWResolution[0] = resolution;
+    job_info->header_pwg.HWResolution[1] = resolution;
 
     job_info->resolution = resolution;
     job_info->media_size = media_size;
@@ -189,20 +214,20 @@ static wJob_t _start_job(wJob_t job_handle, pcl_job_info_t *job_info, media_size
         job_info->pclm_page_info.mediaHeightOffset = top_margin;
     }
 
-    header_pwg.cupsMediaType = media_size;
+    job_info->header_pwg.cupsMediaType = media_size;
 
     job_info->pclm_page_info.pageOrigin = top_left;    // REVISIT
     job_info->monochrome = (color_space == COLOR_SPACE_MONO);
     job_info->pclm_page_info.dstColorSpaceSpefication = deviceRGB;
     if (color_space == COLOR_SPACE_MONO) {
-        header_pwg.cupsColorSpace = CUPS_CSPACE_SW;
+        job_info->header_pwg.cupsColorSpace = CUPS_CSPACE_SW;
         job_info->pclm_page_info.dstColorSpaceSpefication = deviceRGB;
     } else if (color_space == COLOR_SPACE_COLOR) {
         job_info->pclm_page_info.dstColorSpaceSpefication = deviceRGB;
-        header_pwg.cupsColorSpace = CUPS_CSPACE_SRGB;
+        job_info->header_pwg.cupsColorSpace = CUPS_CSPACE_SRGB;
     } else if (color_space == COLOR_SPACE_ADOBE_RGB) {
         job_info->pclm_page_info.dstColorSpaceSpefication = adobeRGB;
-        header_pwg.cupsColorSpace = CUPS_CSPACE_SRGB;
+        job_info->header_pwg.cupsColorSpace = CUPS_CSPACE_SRGB;
     }
 
     job_info->pclm_page_info.stripHeight = job_info->strip_height;
@@ -217,22 +242,27 @@ static wJob_t _start_job(wJob_t job_handle, pcl_job_info_t *job_info, media_size
 
     if (duplex == DUPLEX_MODE_BOOK) {
         job_info->pclm_page_info.duplexDisposition = duplex_longEdge;
-        header_pwg.Duplex = CUPS_TRUE;
-        header_pwg.Tumble = CUPS_FALSE;
+        job_info->header_pwg.Duplex = CUPS_TRUE;
+        job_info->header_pwg.Tumble = CUPS_FALSE;
     } else if (duplex == DUPLEX_MODE_TABLET) {
         job_info->pclm_page_info.duplexDisposition = duplex_shortEdge;
-        header_pwg.Duplex = CUPS_TRUE;
-        header_pwg.Tumble = CUPS_TRUE;
+        job_info->header_pwg.Duplex = CUPS_TRUE;
+        job_info->header_pwg.Tumble = CUPS_TRUE;
     } else {
         job_info->pclm_page_info.duplexDisposition = simplex;
-        header_pwg.Duplex = CUPS_FALSE;
-        header_pwg.Tumble = CUPS_FALSE;
+        job_info->header_pwg.Duplex = CUPS_FALSE;
+        job_info->header_pwg.Tumble = CUPS_FALSE;
     }
 
     job_info->pclm_page_info.mirrorBackside = false;
-    header_pwg.OutputFaceUp = CUPS_FALSE;
-    header_pwg.cupsBitsPerColor = BITS_PER_CHANNEL;
-    ras_out = cupsRasterOpenIO(_pwg_io_write, (void *) job_info, CUPS_RASTER_WRITE_PWG);
+    job_info->header_pwg.OutputFaceUp = CUPS_FALSE;
+    job_info->header_pwg.cupsBitsPerColor = BITS_PER_CHANNEL;
+
+    // Without a buffer, output is sent unbuffered
+    job_info->pwg_write_buff = (unsigned char *) malloc(PWG_WRITE_BUFF_SIZE);
+    job_info->pwg_write_used = 0;
+    job_info->pwg_blank_page = NULL;
+    job_info->ras_out = cupsRasterOpenIO(_pwg_io_write, (void *) job_info, CUPS_RASTER_WRITE_PWG);
     return job_info->job_handle;
 }
 
@@ -263,29 +293,32 @@ static int _start_page(pcl_job_info_t *job_info, int pixel_width, int pixel_heig
     job_info->scan_line_width = BYTES_PER_PIXEL(pixel_width);
 
     // Fill up the pwg header
-    _write_header_pwg(pixel_width, pixel_height, &header_pwg, job_info->monochrome);
-
-    LOGI("cupsWidth = %d", header_pwg.cupsWidth);
-    LOGI("cupsHeight = %d", header_pwg.cupsHeight);
-    LOGI("cupsPageWidth = %f", header_pwg.cupsPageSize[0]);
-    LOGI("cupsPageHeight = %f", header_pwg.cupsPageSize[1]);
-    LOGI("cupsBitsPerColor = %d", header_pwg.cupsBitsPerColor);
-    LOGI("cupsBitsPerPixel = %d", header_pwg.cupsBitsPerPixel);
-    LOGI("cupsBytesPerLine = %d", header_pwg.cupsBytesPerLine);
-    LOGI("cupsColorOrder = %d", header_pwg.cupsColorOrder);
-    LOGI("cupsColorSpace = %d", header_pwg.cupsColorSpace);
-
-    cupsRasterWriteHeader2(ras_out, &header_pwg);
+    _write_header_pwg(pixel_width, pixel_height, &job_info->header_pwg, job_info->monochrome);
+
+    LOGI("cupsWidth = %d", job_info->header_pwg.cupsWidth);
+    LOGI("cupsHeight = %d", job_info->header_pwg.cupsHeight);
+    LOGI("cupsPageWidth = %f", job_info->header_pwg.cupsPageSize[0]);
+    LOGI("cupsPageHeight = %f", job_info->header_pwg.cupsPageSize[1]);
+    LOGI("cupsBitsPerColor = %d", job_info->header_pwg.cupsBitsPerColor);
+    LOGI("cupsBitsPerPixel = %d", job_info->header_pwg.cupsBitsPerPixel);
+    LOGI("cupsBytesPerLine = %d", job_info->header_pwg.cupsBytesPerLine);
+    LOGI("cupsColorOrder = %d", job_info->header_pwg.cupsColorOrder);
+    LOGI("cupsColorSpace = %d", job_info->header_pwg.cupsColorSpace);
+
+    cupsRasterWriteHeader2(job_info->ras_out, &job_info->header_pwg);
     job_info->page_number++;
     return job_info->page_number;
 }
 
 static int _print_swath(pcl_job_info_t *job_info, char *rgb_pixels, int start_row, int num_rows,
-        int bytes_per_row) {
+        int bytes_per_row, bool blank) {
     int outBuffSize;
     _PAGE_DATA(job_info, (const unsigned char *) rgb_pixels, (num_rows * bytes_per_row));
 
-    if (job_info->monochrome) {
+    if (job_info->monochrome && blank) {
+        // white RGB pixels are already white gray pixels, so the first third can be used as-is
+        outBuffSize = (num_rows * bytes_per_row) / BYTES_PER_PIXEL(1);
+    } else if (job_info->monochrome) {
         unsigned char *buff = (unsigned char *) rgb_pixels;
         int nbytes = (num_rows * bytes_per_row);
         int readIndex, writeIndex;
@@ -306,8 +339,8 @@ static int _print_swath(pcl_job_info_t *job_info, char *rgb_pixels, int start_ro
      * image_info->printable_width*num_components*strip_height. it is currently pixel_width
      * (from _start_page()) * num_components * strip_height
      */
-    if (ras_out != NULL) {
-        unsigned result = cupsRasterWritePixels(ras_out, (unsigned char *) rgb_pixels, outBuffSize);
+    if (job_info->ras_out != NULL) {
+        unsigned result = cupsRasterWritePixels(job_info->ras_out, (unsigned char *) rgb_pixels, outBuffSize);
         LOGD("cupsRasterWritePixels return %d", result);
     } else {
         LOGD("cupsRasterWritePixels raster is null");
@@ -371,18 +404,27 @@ static int _end_page(pcl_job_info_t *job_info, int page_number) {
     if (page_number == -1) {
         LOGD("lib_pclm: _end_page(): writing blank page");
 
-        size_t buffer_size;
-        unsigned char *buffer;
         _start_page(job_info, job_info->pixel_width, job_info->pixel_height);
-        buffer = _generate_blank_data(job_info->pixel_width, job_info->pixel_height,
-                                      job_info->monochrome, &buffer_size);
-        if (buffer == NULL) {
+        if (job_info->pwg_blank_page == NULL ||
+                job_info->pwg_blank_width != job_info->pixel_width ||
+                job_info->pwg_blank_height != job_info->pixel_height) {
+            free(job_info->pwg_blank_page);
+            job_info->pwg_blank_page = _generate_blank_data(job_info->pixel_width,
+                    job_info->pixel_height, job_info->monochrome,
+                    &job_info->pwg_blank_page_size);
+            job_info->pwg_blank_width = job_info->pixel_width;
+            job_info->pwg_blank_height = job_info->pixel_height;
+        }
+        if (job_info->pwg_blank_page == NULL) {
+            _pwg_flush(job_info);
             return ERROR;
         } else {
-            _pwg_io_write(job_info, buffer, buffer_size);
-            free(buffer);
+            _pwg_io_write(job_info, job_info->pwg_blank_page, job_info->pwg_blank_page_size);
         }
     }
+
+    // Pages are complete on the connection when they end, so replayed pages follow in order
+    _pwg_flush(job_info);
     LOGI("lib_pcwg: _end_page()");
     _END_PAGE(job_info);
 
@@ -391,8 +433,14 @@ static int _end_page(pcl_job_info_t *job_info, int page_number) {
 
 static int _end_job(pcl_job_info_t *job_info) {
     LOGI("_end_job()");
+    cupsRasterClose(job_info->ras_out);
+    job_info->ras_out = NULL;
+    _pwg_flush(job_info);
     _END_JOB(job_info);
-    cupsRasterClose(ras_out);
+    free(job_info->pwg_write_buff);
+    job_info->pwg_write_buff = NULL;
+    free(job_info->pwg_blank_page);
+    job_info->pwg_blank_page = NULL;
     return OK;
 }
 
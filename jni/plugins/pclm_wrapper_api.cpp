@@ -23,6 +23,10 @@ void *CreatePCLmGen() {
     return new PCLmGenerator();
 }
 
+void PCLmSetOutputSink(void *thisClass, PCLmOutputSink sink, void *context) {
+    static_cast<PCLmGenerator *>(thisClass)->SetOutputSink(sink, context);
+}
+
 int PCLmStartJob(void *thisClass, void **pOutBuffer, int *iOutBufferSize) {
     return static_cast<PCLmGenerator *>(thisClass)->StartJob(pOutBuffer, iOutBufferSize);
 }
@@ -47,6 +51,12 @@ int PCLmEncapsulate(void *thisClass, void *pInBuffer, int inBufferSize, int numL
             pOutBuffer, iOutBufferSize);
 }
 
+int PCLmEncapsulateWhite(void *thisClass, void *pInBuffer, int inBufferSize, int numLines,
+        void **pOutBuffer, int *iOutBufferSize) {
+    return static_cast<PCLmGenerator *>(thisClass)->EncapsulateWhite(pInBuffer, inBufferSize,
+            numLines, pOutBuffer, iOutBufferSize);
+}
+
 void PCLmFreeBuffer(void *thisClass, void *pBuffer) {
     return static_cast<PCLmGenerator *>(thisClass)->FreeBuffer(pBuffer);
 }
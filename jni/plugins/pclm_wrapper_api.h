@@ -31,6 +31,7 @@ extern "C" {
  */
 
 void *CreatePCLmGen();
+void PCLmSetOutputSink(void *thisClass, PCLmOutputSink sink, void *context);
 int PCLmStartJob(void *thisClass, void **pOutBuffer, int *iOutBufferSize);
 int PCLmEndJob(void *thisClass, void **pOutBUffer, int *iOutBifferSize);
 int PCLmStartPage(void *thisClass, PCLmPageSetup *PCLmPageContent, void **pOutBuffer,
@@ -38,6 +39,8 @@ int PCLmStartPage(void *thisClass, PCLmPageSetup *PCLmPageContent, void **pOutBu
 int PCLmEndPage(void *thisClass, void **pOutBuffer, int *iOutBufferSize);
 int PCLmEncapsulate(void *thisClass, void *pInBuffer, int inBufferSize, int numLines,
         void **pOutBuffer, int *iOutBufferSize);
+int PCLmEncapsulateWhite(void *thisClass, void *pInBuffer, int inBufferSize, int numLines,
+        void **pOutBuffer, int *iOutBufferSize);
 void PCLmFreeBuffer(void *thisClass, void *pBuffer);
 void DestroyPCLmGen(void *thisClass);
 int PCLmGetMediaDimensions(void *thisClass, const char *mediaRequested, PCLmPageSetup *myPageInfo);
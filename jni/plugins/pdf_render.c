@@ -17,6 +17,11 @@
  */
 #include <jni.h>
 #include <malloc.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <unistd.h>
+#include <android/sharedmem.h>
+#include <android/sharedmem_jni.h>
 #include "wprint_mupdf.h"
 #include "wprint_debug.h"
 
@@ -38,10 +43,14 @@ typedef struct pdf_render_st {
 
     /* Reference to associated PdfRender object */
     jobject obj;
+
+    /* Document most recently opened through this instance */
+    jstring fileName;
 } pdf_render_st_t;
 
 static jclass gPdfRenderClass;
-static jmethodID gPdfRenderOpenDocument, gPdfRenderGetPageSize, gPdfRenderRenderPageStripe;
+static jmethodID gPdfRenderOpenDocument, gPdfRenderGetPageSize, gPdfRenderRenderPageStripe,
+        gPdfRenderGetStripeOffset, gPdfRenderReleaseStripe;
 static jclass gSizeDClass;
 static jmethodID gSizeDGetHeight, gSizeDGetWidth;
 
@@ -51,8 +60,16 @@ static int openDocument(pdf_render_ifc_t *obj, const char *fileName) {
 
     pdf_render_st_t *self = (pdf_render_st_t *) obj;
     jstring fileNameString = (*self->env)->NewStringUTF(self->env, fileName);
+
+    // Other jobs may open documents in between our calls, so remember which one is ours
+    if (self->fileName) {
+        (*self->env)->DeleteGlobalRef(self->env, self->fileName);
+    }
+    self->fileName = (*self->env)->NewGlobalRef(self->env, fileNameString);
+
     int count = (*self->env)->CallIntMethod(self->env, self->obj, gPdfRenderOpenDocument,
             fileNameString);
+    (*self->env)->DeleteLocalRef(self->env, fileNameString);
     LOGD("getPageCount %p %s returning %d", obj, fileName, count);
     return count;
 }
@@ -62,9 +79,10 @@ static int getPageAttributes(pdf_render_ifc_t *obj, int page, double *width, dou
     if (!gPdfRenderClass) return ERROR;
 
     pdf_render_st_t *self = (pdf_render_st_t *) obj;
+    if (!self->fileName) return ERROR;
 
     jobject size = (*self->env)->CallObjectMethod(self->env, self->obj, gPdfRenderGetPageSize,
-            page);
+            self->fileName, page);
     if (size == NULL) return ERROR;
 
     // Extract width/height and return them
@@ -73,22 +91,67 @@ static int getPageAttributes(pdf_render_ifc_t *obj, int page, double *width, dou
     return OK;
 }
 
-static int renderPageStripe(pdf_render_ifc_t *obj, int page, int width, int height, float zoom,
-        char *buffer) {
-    LOGD("renderPageStripe %p %d", obj, page);
+static void releaseStripe(pdf_render_ifc_t *obj, pdf_stripe_t *stripe) {
+    pdf_render_st_t *self = (pdf_render_st_t *) obj;
+
+    if (stripe->map) {
+        munmap(stripe->map, stripe->map_size);
+    }
+    if (stripe->memory) {
+        (*self->env)->CallVoidMethod(self->env, self->obj, gPdfRenderReleaseStripe,
+                (jobject) stripe->memory);
+        (*self->env)->DeleteGlobalRef(self->env, (jobject) stripe->memory);
+    }
+    memset(stripe, 0, sizeof(*stripe));
+}
+
+static int renderPageStripe(pdf_render_ifc_t *obj, int page, int y, int width, int height,
+        float zoom, int components, pdf_stripe_t *stripe) {
+    LOGD("renderPageStripe %p %d y=%d h=%d c=%d", obj, page, y, height, components);
+    memset(stripe, 0, sizeof(*stripe));
     if (!gPdfRenderClass) return ERROR;
 
     pdf_render_st_t *self = (pdf_render_st_t *) obj;
+    if (!self->fileName) return ERROR;
+
+    // The renderer writes pixel data directly into shared memory which we then read in place
+    jobject memory = (*self->env)->CallObjectMethod(self->env, self->obj,
+            gPdfRenderRenderPageStripe, self->fileName, page, y, width, height, (double) zoom,
+            components);
+    if (memory == NULL) return ERROR;
+    stripe->memory = (*self->env)->NewGlobalRef(self->env, memory);
+    (*self->env)->DeleteLocalRef(self->env, memory);
+
+    int fd = ASharedMemory_dupFromJava(self->env, (jobject) stripe->memory);
+    if (fd < 0) {
+        LOGE("Could not access shared memory");
+        releaseStripe(obj, stripe);
+        return ERROR;
+    }
 
-    int bufferSize = width * height * 3;
-    jobject byteBuffer = (*self->env)->NewDirectByteBuffer(self->env, buffer, bufferSize);
-
-    if (!(*self->env)->CallBooleanMethod(self->env, self->obj, gPdfRenderRenderPageStripe, page,
-            0, width, height, (double) zoom, byteBuffer)) {
+    // Regions are reused and may be larger than needed. A page rendered ahead is held whole,
+    // in which case the rows are found further in.
+    size_t size = (size_t) width * height * components;
+    size_t region = ASharedMemory_getSize(fd);
+    size_t offset = (size_t) (*self->env)->CallLongMethod(self->env, self->obj,
+            gPdfRenderGetStripeOffset, (jobject) stripe->memory, y, width, components);
+    if (region < offset + size) {
+        LOGE("Shared memory too small (%zu < %zu)", region, offset + size);
+        close(fd);
+        releaseStripe(obj, stripe);
         return ERROR;
     }
 
-    (*self->env)->DeleteLocalRef(self->env, byteBuffer);
+    void *map = mmap(NULL, region, PROT_READ, MAP_SHARED, fd, 0);
+    close(fd);
+    if (map == MAP_FAILED) {
+        LOGE("Could not map %zu bytes of shared memory", region);
+        releaseStripe(obj, stripe);
+        return ERROR;
+    }
+    stripe->map = map;
+    stripe->map_size = region;
+    stripe->data = (char *) map + offset;
     return OK;
 }
 
@@ -97,6 +160,9 @@ static void destroy(pdf_render_ifc_t *obj) {
     pdf_render_st_t *self = (pdf_render_st_t *) obj;
 
     (*self->env)->DeleteGlobalRef(self->env, self->obj);
+    if (self->fileName) {
+        (*self->env)->DeleteGlobalRef(self->env, self->fileName);
+    }
 
     if (self->needDetach) {
         (*_JVM)->DetachCurrentThread(_JVM);
@@ -114,9 +180,13 @@ void pdf_render_init(JNIEnv *env) {
     gPdfRenderOpenDocument = (*env)->GetMethodID(env, gPdfRenderClass, "openDocument",
             "(Ljava/lang/String;)I");
     gPdfRenderGetPageSize = (*env)->GetMethodID(env, gPdfRenderClass, "getPageSize",
-            "(I)Lcom/android/bips/jni/SizeD;");
+            "(Ljava/lang/String;I)Lcom/android/bips/jni/SizeD;");
     gPdfRenderRenderPageStripe = (*env)->GetMethodID(env, gPdfRenderClass, "renderPageStripe",
-            "(IIIIDLjava/nio/ByteBuffer;)Z");
+            "(Ljava/lang/String;IIIIDI)Landroid/os/SharedMemory;");
+    gPdfRenderGetStripeOffset = (*env)->GetMethodID(env, gPdfRenderClass, "getStripeOffset",
+            "(Landroid/os/SharedMemory;III)J");
+    gPdfRenderReleaseStripe = (*env)->GetMethodID(env, gPdfRenderClass, "releaseStripe",
+            "(Landroid/os/SharedMemory;)V");
 
     gSizeDClass = (*env)->NewGlobalRef(env, (*env)->FindClass(env, "com/android/bips/jni/SizeD"));
     gSizeDGetWidth = (*env)->GetMethodID(env, gSizeDClass, "getWidth", "()D");
@@ -142,7 +212,9 @@ pdf_render_ifc_t *create_pdf_render_ifc() {
     self->ifc.openDocument = openDocument;
     self->ifc.getPageAttributes = getPageAttributes;
     self->ifc.renderPageStripe = renderPageStripe;
+    self->ifc.releaseStripe = releaseStripe;
     self->ifc.destroy = destroy;
+    self->fileName = NULL;
 
     // Get the environment
     jint result = (*_JVM)->GetEnv(_JVM, (void **) &self->env, JNI_VERSION_1_6);
@@ -16,6 +16,7 @@
  * limitations under the License.
  */
 
+#include <limits.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <unistd.h>
@@ -36,6 +37,15 @@
 
 #define MAX_SEND_BUFFS (BUFFERED_ROWS / STRIPE_HEIGHT)
 
+/* Disk space which may be used to hold encoded pages for replay in later copies */
+#define PAGE_CACHE_BYTES (128 * 1024 * 1024)
+
+/* Highest page number which may be held in the page cache */
+#define PAGE_CACHE_PAGES 256
+
+/* Size of reads when replaying a cached page */
+#define PAGE_REPLAY_BUFF_SIZE (64 * 1024)
+
 #define TAG "plugin_pcl"
 
 typedef enum {
@@ -44,8 +54,16 @@ typedef enum {
     MSG_SEND,
     MSG_END_JOB,
     MSG_END_PAGE,
+    MSG_REPLAY_PAGE,
 } msg_id_t;
 
+typedef enum {
+    PAGE_NOT_CACHED,
+    PAGE_RECORDING,
+    PAGE_CACHED,
+    PAGE_UNCACHEABLE,
+} page_cache_state_t;
+
 typedef struct {
     msg_id_t id;
 
@@ -54,18 +72,23 @@ typedef struct {
             float extra_margin;
             int width;
             int height;
+            int record_page;
         } start_page;
         struct {
             char *buffer;
             int start_row;
             int num_rows;
             int bytes_per_row;
+            bool blank;
         } send;
         struct {
             int page;
             char *buffers[MAX_SEND_BUFFS];
             int count;
         } end_page;
+        struct {
+            int page;
+        } replay_page;
     } param;
 } msgQ_msg_t;
 
@@ -77,6 +100,19 @@ typedef struct {
     wprint_job_params_t *job_params;
     sem_t buffs_sem;
     ifc_pcl_t *pcl_ifc;
+
+    /*
+     * Encoded pages held on disk beside the document so that later copies replay them instead
+     * of rendering and encoding again. Guarded by cache_mutex.
+     */
+    pthread_mutex_t cache_mutex;
+    pthread_cond_t cache_cond;
+    char *cache_base;
+    page_cache_state_t cache_state[PAGE_CACHE_PAGES + 1];
+    long cache_bytes;
+
+    // page currently being recorded by the send thread, or 0
+    int recording_page;
 } plugin_data_t;
 
 static const char *_mime_types[] = {
@@ -97,16 +133,177 @@ static const char **_get_print_formats(void) {
     return _print_formats;
 }
 
+/*
+ * Write the path of the cache file for a page into path, returning true if successful
+ */
+static bool _cache_path(plugin_data_t *priv, int page, char *path, size_t size) {
+    if (priv->cache_base == NULL) return false;
+    int len = snprintf(path, size, "%s.%d.cache", priv->cache_base, page);
+    return (len > 0) && ((size_t) len < size);
+}
+
+/*
+ * Delete all cached pages
+ */
+static void _clear_page_cache(plugin_data_t *priv) {
+    char path[PATH_MAX];
+    int page;
+    for (page = 1; page <= PAGE_CACHE_PAGES; page++) {
+        if (priv->cache_state[page] == PAGE_CACHED && _cache_path(priv, page, path,
+                sizeof(path))) {
+            unlink(path);
+        }
+        priv->cache_state[page] = PAGE_NOT_CACHED;
+    }
+    priv->cache_bytes = 0;
+    free(priv->cache_base);
+    priv->cache_base = NULL;
+}
+
 static void _cleanup_plugin_data(plugin_data_t *priv) {
     if (priv != NULL) {
         if (priv->msgQ != MSG_Q_INVALID_ID) {
             priv->job_info.wprint_ifc->msgQDelete(priv->msgQ);
         }
+        _clear_page_cache(priv);
+        pthread_cond_destroy(&priv->cache_cond);
+        pthread_mutex_destroy(&priv->cache_mutex);
         sem_destroy(&priv->buffs_sem);
         free(priv);
     }
 }
 
+/*
+ * Determine how the current page should be produced. Returns PAGE_CACHED if it can be replayed
+ * from the cache, PAGE_RECORDING if it should be recorded while printing for use by a later copy,
+ * or PAGE_NOT_CACHED otherwise.
+ */
+static page_cache_state_t _check_page_cache(plugin_data_t *priv,
+        wprint_job_params_t *job_params) {
+    int page = job_params->copy_page_num;
+
+    // PCLm pages carry PDF object numbers and offsets so cannot be replayed as-is
+    if ((job_params->pcl_type != PCLPWG) || (job_params->num_copies <= 1) ||
+            (page < 1) || (page > PAGE_CACHE_PAGES) || job_params->page_corrupted) {
+        return PAGE_NOT_CACHED;
+    }
+
+    pthread_mutex_lock(&priv->cache_mutex);
+
+    // An earlier copy of this page may still be being encoded by the send thread
+    while (priv->cache_state[page] == PAGE_RECORDING) {
+        pthread_cond_wait(&priv->cache_cond, &priv->cache_mutex);
+    }
+
+    page_cache_state_t state = priv->cache_state[page];
+    if (state == PAGE_NOT_CACHED) {
+        if ((job_params->copy_num < (int) job_params->num_copies) &&
+                (priv->cache_bytes < PAGE_CACHE_BYTES)) {
+            state = PAGE_RECORDING;
+        }
+    } else if (state == PAGE_UNCACHEABLE) {
+        state = PAGE_NOT_CACHED;
+    }
+    pthread_mutex_unlock(&priv->cache_mutex);
+    return state;
+}
+
+/*
+ * Mark a page as being recorded. The send thread will resolve it when the page ends.
+ */
+static void _begin_page_record(plugin_data_t *priv, int page, const char *pathname) {
+    pthread_mutex_lock(&priv->cache_mutex);
+    if (priv->cache_base == NULL) {
+        priv->cache_base = strdup(pathname);
+    }
+    priv->cache_state[page] = (priv->cache_base != NULL) ? PAGE_RECORDING : PAGE_UNCACHEABLE;
+    pthread_mutex_unlock(&priv->cache_mutex);
+}
+
+/*
+ * Set the final cache state of a page, waking any thread waiting for it
+ */
+static void _set_page_state(plugin_data_t *priv, int page, page_cache_state_t state,
+        long bytes) {
+    pthread_mutex_lock(&priv->cache_mutex);
+    priv->cache_state[page] = state;
+    priv->cache_bytes += bytes;
+    pthread_cond_broadcast(&priv->cache_cond);
+    pthread_mutex_unlock(&priv->cache_mutex);
+}
+
+/*
+ * Begin writing encoded output of a page to its cache file (send thread)
+ */
+static void _start_recording(plugin_data_t *priv, int page) {
+    char path[PATH_MAX];
+    if (_cache_path(priv, page, path, sizeof(path))) {
+        priv->job_info.page_record = fopen(path, "w");
+    }
+    if (priv->job_info.page_record == NULL) {
+        LOGE("_start_recording(): cannot cache page %d", page);
+        _set_page_state(priv, page, PAGE_UNCACHEABLE, 0);
+        return;
+    }
+    priv->recording_page = page;
+}
+
+/*
+ * Finish writing a page to its cache file, keeping it only if complete (send thread)
+ */
+static void _end_recording(plugin_data_t *priv) {
+    int page = priv->recording_page;
+    FILE *record = priv->job_info.page_record;
+    priv->job_info.page_record = NULL;
+    priv->recording_page = 0;
+
+    long bytes = ftell(record);
+    bool complete = !ferror(record) && !priv->job_params->cancelled;
+    complete &= (fclose(record) == 0);
+
+    if (complete) {
+        LOGD("_end_recording(): cached page %d (%ld bytes)", page, bytes);
+        _set_page_state(priv, page, PAGE_CACHED, bytes);
+    } else {
+        char path[PATH_MAX];
+        if (_cache_path(priv, page, path, sizeof(path))) {
+            unlink(path);
+        }
+        _set_page_state(priv, page, PAGE_UNCACHEABLE, 0);
+    }
+}
+
+/*
+ * Send the encoded output of a cached page again (send thread)
+ */
+static void _replay_page(plugin_data_t *priv, int page) {
+    pcl_job_info_t *job_info = &priv->job_info;
+    char path[PATH_MAX];
+    FILE *record = NULL;
+    char *buff = NULL;
+    size_t nbytes;
+
+    if (_cache_path(priv, page, path, sizeof(path))) {
+        record = fopen(path, "r");
+    }
+    if (record != NULL) {
+        buff = malloc(PAGE_REPLAY_BUFF_SIZE);
+    }
+    if (buff == NULL) {
+        LOGE("_replay_page(): cannot replay page %d", page);
+    } else {
+        while ((nbytes = fread(buff, 1, PAGE_REPLAY_BUFF_SIZE, record)) > 0) {
+            _WRITE(job_info, buff, nbytes);
+        }
+        job_info->page_number++;
+        LOGD("_replay_page(): replayed page %d", page);
+    }
+    free(buff);
+    if (record != NULL) {
+        fclose(record);
+    }
+}
+
 /*
  * Waits to receive message from the msgQ. Handles messages and sends commands to handle jobs
  */
@@ -124,23 +321,32 @@ static void *_send_thread(void *param) {
                     priv->job_params->media_tray, priv->job_params->page_top_margin,
                     priv->job_params->page_left_margin);
         } else if (msg.id == MSG_START_PAGE) {
+            if (msg.param.start_page.record_page > 0) {
+                _start_recording(priv, msg.param.start_page.record_page);
+            }
             priv->pcl_ifc->start_page(&priv->job_info, msg.param.start_page.width,
                     msg.param.start_page.height);
         } else if (msg.id == MSG_SEND) {
             if (!priv->pcl_ifc->canCancelMidPage() || !priv->job_params->cancelled) {
                 priv->pcl_ifc->print_swath(&priv->job_info, msg.param.send.buffer,
                         msg.param.send.start_row, msg.param.send.num_rows,
-                        msg.param.send.bytes_per_row);
+                        msg.param.send.bytes_per_row, msg.param.send.blank);
             }
             sem_post(&priv->buffs_sem);
         } else if (msg.id == MSG_END_PAGE) {
             int i;
             priv->pcl_ifc->end_page(&priv->job_info, msg.param.end_page.page);
+            if (priv->recording_page > 0) {
+                _end_recording(priv);
+            }
             for (i = 0; i < msg.param.end_page.count; i++) {
                 if (msg.param.end_page.buffers[i] != NULL) {
                     free(msg.param.end_page.buffers[i]);
                 }
             }
+        } else if (msg.id == MSG_REPLAY_PAGE) {
+            _replay_page(priv, msg.param.replay_page.page);
+            sem_post(&priv->buffs_sem);
         } else if (msg.id == MSG_END_JOB) {
             priv->pcl_ifc->end_job(&priv->job_info);
             break;
@@ -229,6 +435,8 @@ static int _start_job(wJob_t job_handle, const ifc_wprint_t *wprint_ifc_p,
         if (priv == NULL) continue;
 
         memset(priv, 0, sizeof(plugin_data_t));
+        pthread_mutex_init(&priv->cache_mutex, NULL);
+        pthread_cond_init(&priv->cache_cond, NULL);
 
         priv->job_handle = job_handle;
         priv->job_params = job_params;
@@ -302,6 +510,7 @@ static status_t _setup_image_info(wprint_job_params_t *job_params, wprint_image_
     LOGD("_setup_image_info(): fopen succeeded on %s", pathname);
     wprint_image_setup(image_info, mime_type, priv->job_info.wprint_ifc,
             job_params->pixel_units, job_params->pdf_render_resolution);
+    image_info->monochrome = (job_params->color_space == COLOR_SPACE_MONO);
     wprint_image_init(image_info, pathname, job_params->page_num);
 
     // get the image_info of the input file of specified MIME type
@@ -379,6 +588,22 @@ static status_t _print_page(wprint_job_params_t *job_params, const char *mime_ty
 
     if (priv == NULL) return ERROR;
 
+    // Later copies of a page replay the output of the first instead of rendering again
+    page_cache_state_t cache_state = _check_page_cache(priv, job_params);
+    if (cache_state == PAGE_CACHED) {
+        LOGI("_print_page(): replaying page %d for copy %d", job_params->copy_page_num,
+                job_params->copy_num);
+        sem_wait(&priv->buffs_sem);
+        msg.id = MSG_REPLAY_PAGE;
+        msg.param.replay_page.page = job_params->copy_page_num;
+        if (priv->job_info.wprint_ifc->msgQSend(priv->msgQ, (char *) &msg, sizeof(msgQ_msg_t),
+                NO_WAIT, MSG_Q_FIFO) < 0) {
+            sem_post(&priv->buffs_sem);
+            return ERROR;
+        }
+        return job_params->cancelled ? CANCELLED : OK;
+    }
+
     image_info = malloc(sizeof(wprint_image_info_t));
 
     if (image_info == NULL) return ERROR;
@@ -405,6 +630,11 @@ static status_t _print_page(wprint_job_params_t *job_params, const char *mime_ty
                     ((job_params->page_num & 0x1) == 0)) ? job_params->page_bottom_margin : 0.0f;
             msg.param.start_page.width = wprint_image_get_width(image_info);
             msg.param.start_page.height = wprint_image_get_height(image_info);
+            msg.param.start_page.record_page = 0;
+            if (cache_state == PAGE_RECORDING) {
+                _begin_page_record(priv, job_params->copy_page_num, pathname);
+                msg.param.start_page.record_page = job_params->copy_page_num;
+            }
             priv->job_info.num_components = image_info->num_components;
             priv->job_info.wprint_ifc->msgQSend(priv->msgQ, (char *) &msg, sizeof(msgQ_msg_t),
                     NO_WAIT, MSG_Q_FIFO);
@@ -431,6 +661,7 @@ static status_t _print_page(wprint_job_params_t *job_params, const char *mime_ty
                 if (!job_params->cancelled) {
                     nbytes = wprint_image_decode_stripe(image_info, image_row, &height,
                             (unsigned char *) buff);
+                    msg.param.send.blank = wprint_image_is_stripe_blank(image_info);
 
                     if (blank_data > 0) {
                         blank_data--;
@@ -438,6 +669,7 @@ static status_t _print_page(wprint_job_params_t *job_params, const char *mime_ty
                 } else if (blank_data < MAX_SEND_BUFFS) {
                     nbytes = buff_size;
                     memset(buff, 0xff, buff_size);
+                    msg.param.send.blank = true;
                     blank_data++;
                 }
 
@@ -664,6 +664,11 @@ int _decode_stripe(wprint_image_info_t *image_info, int start_row, int num_rows,
     int padding_right = ((padding_options & PAD_RIGHT) ? BYTES_PER_PIXEL(
             image_info->output_padding_right) : 0);
 
+    // Only unrotated rows map directly onto output rows, so only they are checked for white
+    if (image_info->rotation != ROT_0) {
+        image_info->stripe_blank = false;
+    }
+
     old_num_rows = ~num_rows;
     switch (image_info->rotation) {
         case ROT_90:
@@ -800,6 +805,9 @@ int _decode_stripe(wprint_image_info_t *image_info, int start_row, int num_rows,
                     LOGE("ERROR: received no data for row: %d", image_y);
                     return ERROR;
                 }
+                if (!image_info->row_blank) {
+                    image_info->stripe_blank = false;
+                }
                 memcpy(rgb_pixels + padding_left, image_data + col_offset, rbytes);
                 nbytes += rbytes + padding_left + padding_right;
                 rgb_pixels += rbytes + padding_left + padding_right;
@@ -809,6 +817,10 @@ int _decode_stripe(wprint_image_info_t *image_info, int start_row, int num_rows,
     return nbytes;
 }
 
+bool wprint_image_is_stripe_blank(wprint_image_info_t *image_info) {
+    return image_info->stripe_blank;
+}
+
 int wprint_image_decode_stripe(wprint_image_info_t *image_info, int start_row, int *height,
         unsigned char *rgb_pixels) {
     int nbytes = 0;
@@ -822,6 +834,9 @@ int wprint_image_decode_stripe(wprint_image_info_t *image_info, int start_row, i
 
     *height = 0;
 
+    // Padding is white, so the stripe is white unless decoded rows say otherwise
+    image_info->stripe_blank = true;
+
     // get padding values
     int padding_left = ((image_info->padding_options & PAD_LEFT) ? BYTES_PER_PIXEL(
             image_info->output_padding_left) : 0);
@@ -871,6 +886,7 @@ int wprint_image_decode_stripe(wprint_image_info_t *image_info, int start_row, i
     // check if we need to scaling
     if (image_info->scaling_needed) {
         // scaling required
+        image_info->stripe_blank = false;
         uint32 scaled_start_row = unpadded_start_row;
         if (image_info->scaled_height > image_info->printable_height) {
             scaled_start_row += ((image_info->scaled_height - image_info->printable_height) / 2);
@@ -93,6 +93,15 @@ typedef struct {
     int num_components;
     int pdf_render_resolution;
 
+    // true if only gray levels are needed, allowing decoders to supply less data
+    unsigned char monochrome;
+
+    // set by decoders able to tell that the row last returned by decode_row is entirely white
+    unsigned char row_blank;
+
+    // true if the stripe last returned by wprint_image_decode_stripe is known to be white
+    unsigned char stripe_blank;
+
     // memory optimization parameters
     unsigned int stripe_height;
     unsigned int concurrent_stripes;
@@ -216,6 +225,12 @@ int wprint_image_get_height(wprint_image_info_t *image_info);
 int wprint_image_decode_stripe(wprint_image_info_t *image_info, int start_row, int *height,
         unsigned char *rgb_pixels);
 
+/*
+ * Return true if the stripe most recently decoded is known to be entirely white. May return
+ * false for some white stripes.
+ */
+bool wprint_image_is_stripe_blank(wprint_image_info_t *image_info);
+
 /*
  * Compute and allocate memory in preparation for decoding row data, returning the number of rows
  */
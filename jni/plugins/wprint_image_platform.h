@@ -47,6 +47,8 @@ typedef struct {
         void *fz_doc_ptr;
         void *fz_page_ptr;
         void *fz_pixmap_ptr;
+        void *render_ifc;
+        void *render_state;
     } pdf_info;
 } decoder_data_t;
 
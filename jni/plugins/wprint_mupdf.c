@@ -16,8 +16,10 @@
  * limitations under the License.
  */
 
+#include <pthread.h>
 #include <time.h>
 #include "wprint_mupdf.h"
+#include "wprint_pixels.h"
 #include "lib_wprint.h"
 #include "ipphelper.h"
 
@@ -25,17 +27,87 @@
 #define MUPDF_DEFAULT_RESOLUTION 72
 #define RGB_NUMBER_PIXELS_NUM_COMPONENTS 3
 
-static pdf_render_ifc_t *pdf_render;
+/* Components per pixel supplied by the renderer for color and monochrome jobs */
+#define RENDER_COMPONENTS_RGBA 4
+#define RENDER_COMPONENTS_GRAY 1
+
+/* Approximate size of each stripe rendered while streaming a page */
+#define STREAM_STRIPE_BYTES (2 * 1024 * 1024)
+
+/* Number of stripes held at once while streaming, including the one being read */
+#define STREAM_STRIPES 4
+
+/* A stripe held in the streaming ring */
+typedef struct {
+    pdf_stripe_t stripe;
+
+    /* Stripe number held, or -1 if none */
+    int index;
+} stream_slot_t;
+
+/* Rendering state for one page */
+typedef struct {
+    const char *url_path;
+    int page;
+    int width;
+    int height;
+    float zoom;
+
+    /* Components per pixel in rendered stripes */
+    int components;
+
+    /* RGB row returned to the caller, converted from rendered pixels */
+    unsigned char *row;
+
+    /* Total time spent converting rows, for logging */
+    int64_t convert_nanos;
+
+    /* Rows in each stripe */
+    int stripe_rows;
+
+    /* Rows rendered by the decoding thread itself (the whole page, or one stripe) */
+    pdf_stripe_t stripe;
+    int stripe_start;
+    int stripe_height;
+
+    /* True once the first row has been requested */
+    bool started;
+
+    /*
+     * True if a render thread keeps stripes ahead of the reader in slots. Stripe n is held in
+     * slot n % STREAM_STRIPES.
+     */
+    bool streaming;
+    pthread_t thread;
+    pthread_mutex_t mutex;
+    pthread_cond_t cond;
+    stream_slot_t slots[STREAM_STRIPES];
+
+    /* Lowest stripe the reader may still use */
+    int first_needed;
+
+    /* True if the render thread could not render a stripe */
+    bool failed;
+
+    /* True when the render thread must release its stripes and exit */
+    bool stopped;
+} pdf_page_state_t;
 
 static void _mupdf_init(wprint_image_info_t *image_info) {
-    pdf_render = create_pdf_render_ifc();
+    // Each job thread decodes its own pages, so keep the render interface with the image
+    image_info->decoder_data.pdf_info.render_ifc = create_pdf_render_ifc();
 }
 
-/* Return current clock time in milliseconds */
-static long get_millis() {
+/* Return current clock time in nanoseconds */
+static int64_t get_nanos() {
     struct timespec now;
     clock_gettime(CLOCK_MONOTONIC, &now);
-    return (long) (((int64_t) now.tv_sec * 1000000000LL + now.tv_nsec) / 1000000);
+    return (int64_t) now.tv_sec * 1000000000LL + now.tv_nsec;
+}
+
+/* Return current clock time in milliseconds */
+static long get_millis() {
+    return (long) (get_nanos() / 1000000);
 }
 
 static status_t _mupdf_get_hdr(wprint_image_info_t *image_info) {
@@ -43,11 +115,11 @@ static status_t _mupdf_get_hdr(wprint_image_info_t *image_info) {
     float zoom;
     unsigned int imageWidth;
     unsigned int imageHeight;
-    int size;
-    char *rawBuffer;
     status_t result;
     int pages;
+    pdf_render_ifc_t *pdf_render = image_info->decoder_data.pdf_info.render_ifc;
 
+    if (!pdf_render) return ERROR;
     pages = pdf_render->openDocument(pdf_render, image_info->decoder_data.urlPath);
     if (pages < 1) return ERROR;
 
@@ -60,65 +132,259 @@ static status_t _mupdf_get_hdr(wprint_image_info_t *image_info) {
 
     imageWidth = (unsigned int) (pageWidth * zoom);
     imageHeight = (unsigned int) (pageHeight * zoom);
+    if (imageWidth == 0 || imageHeight == 0) return ERROR;
 
     image_info->width = imageWidth;
     image_info->height = imageHeight;
 
-    size = imageWidth * imageHeight * 3;
+    pdf_page_state_t *state = (pdf_page_state_t *) calloc(1, sizeof(pdf_page_state_t));
+    if (!state) return ERROR;
+    state->url_path = image_info->decoder_data.urlPath;
+    state->page = image_info->decoder_data.page;
+    state->width = imageWidth;
+    state->height = imageHeight;
+    state->zoom = zoom;
+
+    // Monochrome output only needs gray levels, which the renderer produces directly
+    state->components = image_info->monochrome ? RENDER_COMPONENTS_GRAY : RENDER_COMPONENTS_RGBA;
+    state->stripe_rows = MAX(1, STREAM_STRIPE_BYTES / (imageWidth * state->components));
+    state->row = (unsigned char *) malloc(imageWidth * RGB_NUMBER_PIXELS_NUM_COMPONENTS);
+    if (!state->row) {
+        free(state);
+        return ERROR;
+    }
+
+    LOGI("Render page=%d w=%.0f h=%.0f res=%d zoom=%0.2f components=%d stripe_rows=%d",
+            image_info->decoder_data.page, pageWidth, pageHeight,
+            image_info->pdf_render_resolution, zoom, state->components, state->stripe_rows);
+
+    // Pages are rendered when rows are first requested
+    image_info->decoder_data.pdf_info.render_state = state;
+    image_info->num_components = RGB_NUMBER_PIXELS_NUM_COMPONENTS;
+
+    return OK;
+}
+
+/*
+ * Render stripes in order on a separate thread, keeping up to STREAM_STRIPES ahead of the
+ * reader, so that rendering overlaps with encoding and sending earlier rows of the same page.
+ */
+static void *_stream_thread(void *arg) {
+    pdf_page_state_t *state = (pdf_page_state_t *) arg;
+    int stripe_count = (state->height + state->stripe_rows - 1) / state->stripe_rows;
+    long start = get_millis();
 
-    rawBuffer = (char *) malloc((size_t) size);
-    if (!rawBuffer) return ERROR;
+    // A render interface may only be used by the thread that created it
+    pdf_render_ifc_t *pdf_render = create_pdf_render_ifc();
+    bool failed = !pdf_render || pdf_render->openDocument(pdf_render, state->url_path) < 1;
 
-    LOGI("Render page=%d w=%.0f h=%.0f res=%d zoom=%0.2f size=%d", image_info->decoder_data.page,
-            pageWidth, pageHeight, image_info->pdf_render_resolution, zoom, size);
+    for (int index = 0; !failed && index < stripe_count; index++) {
+        stream_slot_t *slot = &state->slots[index % STREAM_STRIPES];
 
-    long now = get_millis();
+        pthread_mutex_lock(&state->mutex);
+        while (!state->stopped && index >= state->first_needed + STREAM_STRIPES) {
+            pthread_cond_wait(&state->cond, &state->mutex);
+        }
+        bool stopped = state->stopped;
+        slot->index = -1;
+        pthread_mutex_unlock(&state->mutex);
+        if (stopped) break;
 
-    result = pdf_render->renderPageStripe(pdf_render, image_info->decoder_data.page, imageWidth,
-            imageHeight, zoom, rawBuffer);
-    if (result != OK) {
-        free(rawBuffer);
-        return result;
+        // The reader has moved beyond the stripe previously held in this slot
+        pdf_render->releaseStripe(pdf_render, &slot->stripe);
+
+        int y = index * state->stripe_rows;
+        int rows = MIN(state->stripe_rows, state->height - y);
+        pdf_stripe_t stripe;
+        failed = pdf_render->renderPageStripe(pdf_render, state->page, y, state->width, rows,
+                state->zoom, state->components, &stripe) != OK;
+
+        pthread_mutex_lock(&state->mutex);
+        if (!failed) {
+            slot->stripe = stripe;
+            slot->index = index;
+        }
+        pthread_cond_broadcast(&state->cond);
+        pthread_mutex_unlock(&state->mutex);
     }
+    LOGI("Streamed page %d in %ld ms%s", state->page, get_millis() - start,
+            failed ? " (failed)" : "");
 
-    LOGI("Render complete in %ld ms", get_millis() - now);
+    // Keep rendered stripes until the reader is finished with them
+    pthread_mutex_lock(&state->mutex);
+    state->failed = failed;
+    pthread_cond_broadcast(&state->cond);
+    while (!state->stopped) {
+        pthread_cond_wait(&state->cond, &state->mutex);
+    }
+    pthread_mutex_unlock(&state->mutex);
 
-    image_info->decoder_data.pdf_info.fz_pixmap_ptr = rawBuffer;
-    image_info->decoder_data.pdf_info.bitmap_ptr = malloc(
-            image_info->width * RGB_NUMBER_PIXELS_NUM_COMPONENTS);
-    image_info->num_components = RGB_NUMBER_PIXELS_NUM_COMPONENTS;
+    if (pdf_render) {
+        for (int i = 0; i < STREAM_STRIPES; i++) {
+            pdf_render->releaseStripe(pdf_render, &state->slots[i].stripe);
+        }
+        pdf_render->destroy(pdf_render);
+    }
+    return NULL;
+}
 
-    return OK;
+/* Begin streaming stripes of the page, returning true if successful */
+static bool _start_streaming(pdf_page_state_t *state) {
+    for (int i = 0; i < STREAM_STRIPES; i++) {
+        state->slots[i].index = -1;
+    }
+    pthread_mutex_init(&state->mutex, NULL);
+    pthread_cond_init(&state->cond, NULL);
+    if (pthread_create(&state->thread, NULL, _stream_thread, state) != 0) {
+        pthread_cond_destroy(&state->cond);
+        pthread_mutex_destroy(&state->mutex);
+        return false;
+    }
+    return true;
+}
+
+/* Stop streaming, releasing all stripes */
+static void _stop_streaming(pdf_page_state_t *state) {
+    pthread_mutex_lock(&state->mutex);
+    state->stopped = true;
+    pthread_cond_broadcast(&state->cond);
+    pthread_mutex_unlock(&state->mutex);
+
+    pthread_join(state->thread, NULL);
+    pthread_cond_destroy(&state->cond);
+    pthread_mutex_destroy(&state->mutex);
+}
+
+/*
+ * Return a row from the streaming ring, waiting for it to be rendered if necessary. Returns NULL
+ * if the row has already been released or could not be rendered.
+ */
+static unsigned char *_stream_row(pdf_page_state_t *state, int row) {
+    int index = row / state->stripe_rows;
+    stream_slot_t *slot = &state->slots[index % STREAM_STRIPES];
+
+    pthread_mutex_lock(&state->mutex);
+    if (index < state->first_needed) {
+        pthread_mutex_unlock(&state->mutex);
+        return NULL;
+    }
+
+    // Earlier stripes are no longer needed so the render thread may reuse their slots
+    if (index != state->first_needed) {
+        state->first_needed = index;
+        pthread_cond_broadcast(&state->cond);
+    }
+    while (slot->index != index && !state->failed) {
+        pthread_cond_wait(&state->cond, &state->mutex);
+    }
+    bool found = slot->index == index;
+    pthread_mutex_unlock(&state->mutex);
+
+    if (!found) return NULL;
+    return (unsigned char *) slot->stripe.data +
+            (row - index * state->stripe_rows) * state->width * state->components;
+}
+
+/*
+ * Return a row rendered on this thread, rendering the whole page (or when streaming, the stripe
+ * containing the row) if not already held. Returns NULL on failure.
+ */
+static unsigned char *_render_row(wprint_image_info_t *image_info, pdf_page_state_t *state,
+        int row) {
+    pdf_render_ifc_t *pdf_render = image_info->decoder_data.pdf_info.render_ifc;
+
+    if (!state->stripe.data || row < state->stripe_start ||
+            row >= state->stripe_start + state->stripe_height) {
+        int y = 0, rows = state->height;
+        if (state->streaming) {
+            y = (row / state->stripe_rows) * state->stripe_rows;
+            rows = MIN(state->stripe_rows, state->height - y);
+        }
+
+        long now = get_millis();
+        pdf_render->releaseStripe(pdf_render, &state->stripe);
+        if (pdf_render->renderPageStripe(pdf_render, state->page, y, state->width, rows,
+                state->zoom, state->components, &state->stripe) != OK) {
+            return NULL;
+        }
+        LOGI("Rendered rows %d-%d in %ld ms", y, y + rows, get_millis() - now);
+        state->stripe_start = y;
+        state->stripe_height = rows;
+    }
+    return (unsigned char *) state->stripe.data +
+            (row - state->stripe_start) * state->width * state->components;
+}
+
+/* Return rendered pixels of a row, or NULL on failure */
+static unsigned char *_get_row(wprint_image_info_t *image_info, pdf_page_state_t *state,
+        int row) {
+    if (state->streaming) {
+        unsigned char *pixels = _stream_row(state, row);
+        if (pixels) return pixels;
+
+        pthread_mutex_lock(&state->mutex);
+        bool failed = state->failed;
+        pthread_mutex_unlock(&state->mutex);
+        if (failed) return NULL;
+
+        // The reader went back to a stripe already released, so render it again here
+    }
+    return _render_row(image_info, state, row);
 }
 
 static unsigned char *_mupdf_decode_row(wprint_image_info_t *image_info, int row) {
-    unsigned char *rgbPixels = 0;
+    pdf_page_state_t *state = image_info->decoder_data.pdf_info.render_state;
+    if (!state || row < 0 || row >= state->height) return NULL;
 
     if (image_info->swath_start == -1) {
         wprint_image_compute_rows_to_cache(image_info);
     }
-
     image_info->swath_start = row;
-    if (NULL != image_info->decoder_data.pdf_info.fz_pixmap_ptr) {
-        rgbPixels = (unsigned char *) image_info->decoder_data.pdf_info.bitmap_ptr;
-        memcpy(rgbPixels, (char *) (image_info->decoder_data.pdf_info.fz_pixmap_ptr) +
-                        row * image_info->width * RGB_NUMBER_PIXELS_NUM_COMPONENTS,
-                image_info->width * RGB_NUMBER_PIXELS_NUM_COMPONENTS);
+
+    if (!state->started) {
+        state->started = true;
+
+        // Only unrotated pages read rows in order, so others are rendered whole
+        if (image_info->rotation == ROT_0 && state->height > state->stripe_rows) {
+            state->streaming = _start_streaming(state);
+        }
+    }
+
+    unsigned char *pixels = _get_row(image_info, state, row);
+    if (!pixels) return NULL;
+
+    int64_t start = get_nanos();
+    // Let encoders skip rows known to be white
+    if (state->components == RENDER_COMPONENTS_GRAY) {
+        image_info->row_blank = _gray_to_rgb(state->row, pixels, state->width);
+    } else {
+        image_info->row_blank = _rgba_to_rgb(state->row, pixels, state->width);
     }
-    return rgbPixels;
+    state->convert_nanos += get_nanos() - start;
+    return state->row;
 }
 
 static status_t _mupdf_cleanup(wprint_image_info_t *image_info) {
     LOGD("MUPDF: _mupdf_cleanup(): Enter");
-    if (NULL != image_info->decoder_data.pdf_info.fz_pixmap_ptr) {
-        free(image_info->decoder_data.pdf_info.fz_pixmap_ptr);
-        image_info->decoder_data.pdf_info.fz_pixmap_ptr = NULL;
+    pdf_render_ifc_t *pdf_render = image_info->decoder_data.pdf_info.render_ifc;
+    pdf_page_state_t *state = image_info->decoder_data.pdf_info.render_state;
+    if (state != NULL) {
+        if (state->streaming) {
+            _stop_streaming(state);
+        }
+        if (pdf_render != NULL) {
+            pdf_render->releaseStripe(pdf_render, &state->stripe);
+        }
+        LOGI("Converted page %d to RGB in %ld us", state->page,
+                (long) (state->convert_nanos / 1000));
+        free(state->row);
+        free(state);
+        image_info->decoder_data.pdf_info.render_state = NULL;
     }
-    if (image_info->decoder_data.pdf_info.bitmap_ptr != NULL) {
-        free(image_info->decoder_data.pdf_info.bitmap_ptr);
+    if (pdf_render != NULL) {
+        pdf_render->destroy(pdf_render);
+        image_info->decoder_data.pdf_info.render_ifc = NULL;
     }
-    pdf_render->destroy(pdf_render);
-    pdf_render = NULL;
     return OK;
 }
 
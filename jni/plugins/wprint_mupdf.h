@@ -26,6 +26,23 @@ extern const image_decode_ifc_t *wprint_mupdf_decode_ifc;
 
 typedef struct pdf_render_ifc pdf_render_ifc_t;
 
+/*
+ * Rows of pixel data rendered from a page, which remain valid until released
+ */
+typedef struct {
+    /*
+     * width * height * components bytes for the requested rows: 4-byte RGBA or 1-byte gray
+     * pixels. This may point into a larger mapped region, such as a whole page rendered ahead,
+     * at the offset of row y.
+     */
+    char *data;
+
+    /* Private to the render interface */
+    void *map;
+    size_t map_size;
+    void *memory;
+} pdf_stripe_t;
+
 /*
  * Defines an interface for inspecting and rendering PDFs. Note: all methods must be called
  * from the same thread that created the interface.
@@ -37,11 +54,18 @@ struct pdf_render_ifc {
     int (*openDocument)(pdf_render_ifc_t *self, const char *fileName);
 
     /*
-     * Render a page (1-based) at the specified zoom level into the supplied output buffer. The
-     * buffer must be large enough to contain width * height * 3 (RGB). Returns success.
+     * Render rows y to y + height of a page (1-based) at the specified zoom level into stripe,
+     * as RGBA (4 components) or gray (1 component) pixels. Any number of stripes may be held at
+     * once, each of which must later be released with releaseStripe. Returns success.
+     */
+    status_t (*renderPageStripe)(pdf_render_ifc_t *self, int page, int y, int width,
+            int height, float zoom, int components, pdf_stripe_t *stripe);
+
+    /*
+     * Release a stripe previously filled by renderPageStripe. Does nothing if the stripe is
+     * empty.
      */
-    status_t (*renderPageStripe)(pdf_render_ifc_t *self, int page, int width,
-            int height, float zoom, char *buffer);
+    void (*releaseStripe)(pdf_render_ifc_t *self, pdf_stripe_t *stripe);
 
     /*
      * Determine the width and height of a particular page (1-based), returning success.
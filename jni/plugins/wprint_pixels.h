@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef __WPRINT_PIXELS__
+#define __WPRINT_PIXELS__
+
+#include <stdbool.h>
+
+/*
+ * Row conversions from rendered pixels to the 3-byte RGB rows consumed by the image pipeline.
+ * Kept as plain loops over restrict pointers so the compiler emits interleaved vector loads
+ * and stores (e.g. NEON vld4/vst3) with the white test folded into the same pass.
+ *
+ * Gray rows are expanded to RGB rather than passed on as they are because wprint_image.c, the
+ * scaler and the PCLm and PWG encoders all assume 3-byte pixels.
+ */
+
+/* Convert a row of RGBA pixels to RGB by dropping alpha, returning true if the row is white */
+static inline bool _rgba_to_rgb(unsigned char *__restrict out,
+        const unsigned char *__restrict in, int width) {
+    unsigned char white = 0xff;
+    for (int x = 0; x < width; x++) {
+        out[x * 3] = in[x * 4];
+        out[x * 3 + 1] = in[x * 4 + 1];
+        out[x * 3 + 2] = in[x * 4 + 2];
+        white &= in[x * 4] & in[x * 4 + 1] & in[x * 4 + 2];
+    }
+    return white == 0xff;
+}
+
+/* Convert a row of gray pixels to RGB, returning true if the row is white */
+static inline bool _gray_to_rgb(unsigned char *__restrict out,
+        const unsigned char *__restrict in, int width) {
+    unsigned char white = 0xff;
+    for (int x = 0; x < width; x++) {
+        out[x * 3] = in[x];
+        out[x * 3 + 1] = in[x];
+        out[x * 3 + 2] = in[x];
+        white &= in[x];
+    }
+    return white == 0xff;
+}
+
+#endif // __WPRINT_PIXELS__
@@ -18,12 +18,23 @@
 
 #include "wprint_scaler.h"
 #include <assert.h>
+#include <pthread.h>
+#include <stdint.h>
 #include <stdio.h>
+#include <unistd.h>
 
 #define ROUND_4_DOWN(x) ((x) & ~3)
 #define ROUND_4_UP(x)   (ROUND_4_DOWN((x) + 3))
 #define PSCALER_FRACT_BITS_COUNT 24
 
+// Most threads (including the caller) which may scale one image plane
+#define MAX_SCALER_BANDS 4
+
+// Fewest output rows and pixels worth handing to a helper thread. Image stripes are scaled a
+// few rows at a time (see strip_height in plugin_pcl.c), so bands are small.
+#define MIN_BAND_ROWS 2
+#define MIN_BAND_PIXELS (8 * 1024)
+
 typedef enum {
     FRACTION_ROUND_UP,
     FRACTION_TRUNCATE
@@ -36,6 +47,61 @@ static void _hw_scale_image_plane(scaler_config_t *pscaler_config, scaler_mode_t
 
 static void _calculate_factors(scaler_config_t *pscaler_config, scaler_mode_t scaleMode);
 
+/*
+ * A band of output rows of one image plane, which may be scaled independently of other bands
+ */
+typedef struct {
+    scaler_mode_t scaleMode;
+    uint8 *src;
+    uint8 *out;
+    uint32 in_row_ofs;
+    uint32 out_row_ofs;
+    uint64 first_y_src;
+    uint64 first_x_src;
+    uint64 x_factor_inv;
+    uint64 y_factor_inv;
+    uint64 weight_reciprocal;
+    int out_width;
+    uint32 box;
+    uint32 start_row;
+    uint32 end_row;
+} scaler_band_t;
+
+/*
+ * Helper threads shared by all scaling operations. They are started on first use and then wait
+ * for work for the life of the process, so handing them a band costs a wakeup rather than a
+ * thread creation. Only one caller uses them at a time; any other scales on its own thread.
+ */
+typedef struct {
+    pthread_mutex_t busy;       // held by the caller using the helpers
+    pthread_mutex_t lock;       // guards the fields below
+    pthread_cond_t work;        // signalled when a new generation of bands is handed out
+    pthread_cond_t done;        // signalled when the last pending band is finished
+    scaler_band_t *bands[MAX_SCALER_BANDS - 1];
+    uint32 generation;
+    int pending;
+    int helpers;
+} scaler_pool_t;
+
+static scaler_pool_t _pool = {
+        .busy = PTHREAD_MUTEX_INITIALIZER,
+        .lock = PTHREAD_MUTEX_INITIALIZER,
+        .work = PTHREAD_COND_INITIALIZER,
+        .done = PTHREAD_COND_INITIALIZER,
+};
+
+static pthread_once_t _pool_once = PTHREAD_ONCE_INIT;
+
+static void _start_pool(void);
+
+static int _count_bands(uint32 rows, uint32 width);
+
+static void *_pool_thread(void *arg);
+
+static void _scale_bands(scaler_band_t *bands, int count);
+
+static void _scale_band(scaler_band_t *band);
+
 void scaler_make_image_scaler_tables(uint16 image_input_width, uint16 image_input_buf_width,
         uint16 image_output_width, uint16 image_output_buf_width, uint16 image_input_height,
         uint16 image_output_height, scaler_config_t *pscaler_config) {
@@ -953,6 +1019,41 @@ static inline void _scale_row_down(uint8 *in, uint8 *_RESTRICT_ out, uint32 in_r
     }
 }
 
+/*
+ * Reduce by exactly 2 in each direction. Every input pixel carries the full weight of 256 * 256,
+ * so the result matches _scale_row_down while the loop body is simple enough to vectorize.
+ */
+static void _scale_row_box_2(uint8 *_RESTRICT_ in0, uint8 *_RESTRICT_ in1,
+        uint8 *_RESTRICT_ out, uint64 weight_reciprocal, int out_width) {
+    int x, c;
+    for (x = 0; x < out_width; x++) {
+        for (c = 0; c < 3; c++) {
+            uint32 sum = (uint32) in0[(x * 6) + c] + in0[(x * 6) + 3 + c] +
+                    in1[(x * 6) + c] + in1[(x * 6) + 3 + c];
+            out[(x * 3) + c] = ((uint64) (sum << 16) * weight_reciprocal +
+                    ((uint64) 1 << 31)) >> 32;
+        }
+    }
+}
+
+/*
+ * Reduce by exactly 3 in each direction, matching _scale_row_down as for _scale_row_box_2
+ */
+static void _scale_row_box_3(uint8 *_RESTRICT_ in0, uint8 *_RESTRICT_ in1,
+        uint8 *_RESTRICT_ in2, uint8 *_RESTRICT_ out, uint64 weight_reciprocal, int out_width) {
+    int x, c;
+    for (x = 0; x < out_width; x++) {
+        for (c = 0; c < 3; c++) {
+            uint32 sum = (uint32) in0[(x * 9) + c] + in0[(x * 9) + 3 + c] +
+                    in0[(x * 9) + 6 + c] + in1[(x * 9) + c] + in1[(x * 9) + 3 + c] +
+                    in1[(x * 9) + 6 + c] + in2[(x * 9) + c] + in2[(x * 9) + 3 + c] +
+                    in2[(x * 9) + 6 + c];
+            out[(x * 3) + c] = ((uint64) (sum << 16) * weight_reciprocal +
+                    ((uint64) 1 << 31)) >> 32;
+        }
+    }
+}
+
 static void _scale_row_up(uint8 *_RESTRICT_ in0, uint8 *_RESTRICT_ in1, uint8 *_RESTRICT_ out,
         sint32 weight_y, uint64 position_x, uint64 increment_x, int out_width) {
     int x;
@@ -1003,8 +1104,10 @@ static void _hw_scale_image_plane(scaler_config_t *pscaler_config, scaler_mode_t
     uint64 first_y_src, first_x_src, weight_reciprocal;
 
     // These are internal state
-    uint32 r;
     uint8 *outp;
+    scaler_band_t band;
+    scaler_band_t bands_data[MAX_SCALER_BANDS];
+    int bands, i;
 
     x_output_width = pscaler_config->iOutWidth;
     y_output_width = pscaler_config->iOutEndRow -
@@ -1049,21 +1152,160 @@ static void _hw_scale_image_plane(scaler_config_t *pscaler_config, scaler_mode_t
     // so ignore whole-number part of first_y_src.
     first_y_src = first_y_src & 0xffffffff;
 
-    for (r = 0; r < y_output_width; r++) {
-        uint8 *inp = (pscaler_config->pSrcBuf) +
-                (first_y_src >> 32) * input_pixel_ptr_offset;
-        {
-            if (scaleMode == PSCALER_SCALE_UP) {
-                _scale_row_up(inp, inp + input_pixel_ptr_offset, outp,
-                        (first_y_src & 0xffffffff) >> 22, first_x_src,
-                        x_factor_inv, x_output_width);
-            } else {
-                _scale_row_down(inp, outp, input_pixel_ptr_offset,
-                        first_x_src, first_y_src, x_factor_inv, y_factor_inv,
-                        weight_reciprocal, x_output_width);
+    band.scaleMode = scaleMode;
+    band.src = pscaler_config->pSrcBuf;
+    band.out = outp;
+    band.in_row_ofs = input_pixel_ptr_offset;
+    band.out_row_ofs = output_pixel_ptr_offset;
+    band.first_y_src = first_y_src;
+    band.first_x_src = first_x_src;
+    band.x_factor_inv = x_factor_inv;
+    band.y_factor_inv = y_factor_inv;
+    band.weight_reciprocal = weight_reciprocal;
+    band.out_width = x_output_width;
+    band.box = 0;
+
+    // Exact whole-number reductions with aligned positions weight every input pixel equally
+    if ((scaleMode == PSCALER_SCALE_DOWN) && (first_x_src == 0) &&
+            (((first_y_src >> 24) & 0xff) == 0) &&
+            ((x_factor_inv & 0xffffffff) == 0) && (x_factor_inv == y_factor_inv)) {
+        band.box = x_factor_inv >> 32;
+    }
+
+    bands = _count_bands(y_output_width, x_output_width);
+    for (i = 0; i < bands; i++) {
+        bands_data[i] = band;
+        bands_data[i].start_row = (y_output_width * i) / bands;
+        bands_data[i].end_row = (y_output_width * (i + 1)) / bands;
+    }
+
+    _scale_bands(bands_data, bands);
+}
+
+/*
+ * Start the helper threads, one fewer than the bands an image plane may be split into
+ */
+static void _start_pool(void) {
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    int wanted = (cpus < MAX_SCALER_BANDS ? (int) cpus : MAX_SCALER_BANDS) - 1;
+    pthread_attr_t attr;
+    pthread_t thread;
+
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+    for (; _pool.helpers < wanted; _pool.helpers++) {
+        if (pthread_create(&thread, &attr, _pool_thread, (void *) (intptr_t) _pool.helpers)
+                != 0) {
+            break;
+        }
+    }
+    pthread_attr_destroy(&attr);
+}
+
+/*
+ * Return the number of bands into which output rows should be split, so that each band is
+ * large enough to repay waking a helper thread
+ */
+static int _count_bands(uint32 rows, uint32 width) {
+    int bands;
+
+    pthread_once(&_pool_once, _start_pool);
+    bands = _pool.helpers + 1;
+    while (bands > 1 && ((rows / bands < MIN_BAND_ROWS) ||
+            ((uint64) rows * width / bands < MIN_BAND_PIXELS))) {
+        bands--;
+    }
+    return bands;
+}
+
+/*
+ * Scale whichever band each generation hands to this helper
+ */
+static void *_pool_thread(void *arg) {
+    int index = (int) (intptr_t) arg;
+    uint32 seen = 0;
+    scaler_band_t *band;
+
+    for (;;) {
+        pthread_mutex_lock(&_pool.lock);
+        while (_pool.generation == seen) {
+            pthread_cond_wait(&_pool.work, &_pool.lock);
+        }
+        seen = _pool.generation;
+        band = _pool.bands[index];
+        pthread_mutex_unlock(&_pool.lock);
+
+        if (band != NULL) {
+            _scale_band(band);
+            pthread_mutex_lock(&_pool.lock);
+            if (--_pool.pending == 0) {
+                pthread_cond_signal(&_pool.done);
             }
+            pthread_mutex_unlock(&_pool.lock);
+        }
+    }
+    return NULL;
+}
+
+/*
+ * Scale all bands, handing all but the last to helper threads while the caller scales the last
+ */
+static void _scale_bands(scaler_band_t *bands, int count) {
+    int i;
+
+    if (count == 1 || pthread_mutex_trylock(&_pool.busy) != 0) {
+        for (i = 0; i < count; i++) {
+            _scale_band(&bands[i]);
+        }
+        return;
+    }
+
+    pthread_mutex_lock(&_pool.lock);
+    for (i = 0; i < _pool.helpers; i++) {
+        _pool.bands[i] = i < count - 1 ? &bands[i] : NULL;
+    }
+    _pool.pending = count - 1;
+    _pool.generation++;
+    pthread_cond_broadcast(&_pool.work);
+    pthread_mutex_unlock(&_pool.lock);
+
+    _scale_band(&bands[count - 1]);
+
+    pthread_mutex_lock(&_pool.lock);
+    while (_pool.pending > 0) {
+        pthread_cond_wait(&_pool.done, &_pool.lock);
+    }
+    pthread_mutex_unlock(&_pool.lock);
+    pthread_mutex_unlock(&_pool.busy);
+}
+
+/*
+ * Scale a band of output rows. The source position of each row is computed from the first so
+ * that bands may be scaled independently with results identical to scaling all rows in turn.
+ */
+static void _scale_band(scaler_band_t *band) {
+    uint32 r;
+    uint64 y_src = band->first_y_src + band->start_row * band->y_factor_inv;
+    uint8 *outp = band->out + band->start_row * band->out_row_ofs;
+
+    for (r = band->start_row; r < band->end_row; r++) {
+        uint8 *inp = band->src + (y_src >> 32) * band->in_row_ofs;
+        if (band->scaleMode == PSCALER_SCALE_UP) {
+            _scale_row_up(inp, inp + band->in_row_ofs, outp,
+                    (y_src & 0xffffffff) >> 22, band->first_x_src,
+                    band->x_factor_inv, band->out_width);
+        } else if (band->box == 2) {
+            _scale_row_box_2(inp, inp + band->in_row_ofs, outp, band->weight_reciprocal,
+                    band->out_width);
+        } else if (band->box == 3) {
+            _scale_row_box_3(inp, inp + band->in_row_ofs, inp + 2 * band->in_row_ofs, outp,
+                    band->weight_reciprocal, band->out_width);
+        } else {
+            _scale_row_down(inp, outp, band->in_row_ofs,
+                    band->first_x_src, y_src, band->x_factor_inv, band->y_factor_inv,
+                    band->weight_reciprocal, band->out_width);
         }
-        first_y_src += y_factor_inv;
-        outp += output_pixel_ptr_offset;
+        y_src += band->y_factor_inv;
+        outp += band->out_row_ofs;
     }
 }
\ No newline at end of file
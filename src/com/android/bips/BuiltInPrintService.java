@@ -48,10 +48,13 @@ import com.android.bips.discovery.P2pDiscovery;
 import com.android.bips.ipp.Backend;
 import com.android.bips.ipp.CapabilitiesCache;
 import com.android.bips.ipp.CertificateStore;
+import com.android.bips.ipp.ReachabilityProber;
 import com.android.bips.p2p.P2pMonitor;
 import com.android.bips.p2p.P2pUtils;
 import com.android.bips.util.BroadcastMonitor;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 
 public class BuiltInPrintService extends PrintService {
@@ -89,6 +92,7 @@ public class BuiltInPrintService extends PrintService {
     private Handler mMainHandler;
     private Backend mBackend;
     private WifiManager.WifiLock mWifiLock;
+    private int mWifiLockCount;
     private P2pMonitor mP2pMonitor;
     private NsdResolveQueue mNsdResolveQueue;
     private P2pPermissionManager mP2pPermissionManager;
@@ -150,12 +154,20 @@ public class BuiltInPrintService extends PrintService {
         mCapabilitiesCache.close();
         mP2pMonitor.stopAll();
         mBackend.close();
+        mWifiLockCount = 0;
         unlockWifi();
         sInstance = null;
         mMainHandler.removeCallbacksAndMessages(null);
         super.onDestroy();
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (mBackend != null) {
+            mBackend.dump(writer);
+        }
+    }
+
     @Override
     protected PrinterDiscoverySession onCreatePrinterDiscoverySession() {
         if (DEBUG) Log.d(TAG, "onCreatePrinterDiscoverySession");
@@ -237,6 +249,13 @@ public class BuiltInPrintService extends PrintService {
         return mCapabilitiesCache;
     }
 
+    /**
+     * Return a prober for checking whether printers accept connections
+     */
+    public ReachabilityProber getReachabilityProber() {
+        return mBackend.getReachabilityProber();
+    }
+
     /**
      * Return a store of certificate public keys for supporting trust-on-first-use.
      */
@@ -273,16 +292,23 @@ public class BuiltInPrintService extends PrintService {
         }
     }
 
-    /** Prevent Wi-Fi from going to sleep until {@link #unlockWifi} is called */
+    /**
+     * Prevent Wi-Fi from going to sleep until {@link #unlockWifi} is called. Each call must be
+     * balanced by a call to {@link #unlockWifi}, since several jobs may hold the lock at once.
+     */
     public void lockWifi() {
+        mWifiLockCount++;
         if (!mWifiLock.isHeld()) {
             mWifiLock.acquire();
         }
     }
 
-    /** Allow Wi-Fi to be disabled during sleep modes. */
+    /** Allow Wi-Fi to be disabled during sleep modes once no jobs still need it. */
     public void unlockWifi() {
-        if (mWifiLock.isHeld()) {
+        if (mWifiLockCount > 0) {
+            mWifiLockCount--;
+        }
+        if (mWifiLockCount == 0 && mWifiLock.isHeld()) {
             mWifiLock.release();
         }
     }
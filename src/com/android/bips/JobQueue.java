@@ -20,39 +20,47 @@ package com.android.bips;
 import android.print.PrintJobId;
 import android.print.PrinterId;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-/** Manages a job queue, ensuring only one job is printed at a time */
+/**
+ * Manages a job queue, ensuring only one job is printed at a time to any given printer. Jobs for
+ * different printers are delivered concurrently while jobs for the same printer remain in order.
+ * Consecutive jobs for the same printer are delivered as a batch, each continuing with the
+ * printer path, capabilities and connection of the job before it.
+ */
 class JobQueue {
     private final List<LocalPrintJob> mJobs = new CopyOnWriteArrayList<>();
-    private LocalPrintJob mCurrent;
+    /** The job currently being delivered to each busy printer */
+    private final Map<PrinterId, LocalPrintJob> mCurrent = new HashMap<>();
 
     /** Queue a print job for printing at the next available opportunity */
     void print(LocalPrintJob job) {
         mJobs.add(job);
-        startNextJob();
+        startNextJobs();
     }
 
     /** Cancel any previously queued job for a printer with the supplied ID. */
     void cancel(PrinterId printerId) {
         for (LocalPrintJob job : mJobs) {
-            if (printerId.equals(job.getPrintJob().getInfo().getPrinterId())) {
+            if (printerId.equals(getPrinterId(job))) {
                 cancel(job.getPrintJobId());
             }
         }
 
-        if (mCurrent != null && printerId.equals(mCurrent.getPrintJob().getInfo().getPrinterId())) {
-            cancel(mCurrent.getPrintJobId());
+        LocalPrintJob current = mCurrent.get(printerId);
+        if (current != null) {
+            cancel(current.getPrintJobId());
         }
     }
 
     /** Restart any blocked job for a printer with this ID. */
     void restart(PrinterId printerId) {
-        if (mCurrent != null && printerId.equals(mCurrent.getPrintJob().getInfo().getPrinterId())) {
-            mCurrent.restart();
+        LocalPrintJob current = mCurrent.get(printerId);
+        if (current != null) {
+            current.restart();
         }
     }
 
@@ -67,21 +75,59 @@ class JobQueue {
             }
         }
 
-        if (mCurrent != null && mCurrent.getPrintJobId().equals(id)) {
-            mCurrent.cancel();
+        for (LocalPrintJob current : mCurrent.values()) {
+            if (current.getPrintJobId().equals(id)) {
+                current.cancel();
+                return;
+            }
         }
     }
 
-    /** Launch the next job if possible */
-    private void startNextJob() {
-        if (mJobs.isEmpty() || mCurrent != null) {
-            return;
+    /** Launch the oldest queued job for each idle printer */
+    private void startNextJobs() {
+        LocalPrintJob next;
+        while ((next = nextStartableJob()) != null) {
+            start(next, null);
         }
+    }
+
+    /** Launch a job, continuing from the previous job for the same printer if supplied */
+    private void start(LocalPrintJob job, LocalPrintJob previous) {
+        PrinterId printerId = getPrinterId(job);
+        mJobs.remove(job);
+        mCurrent.put(printerId, job);
+        job.start(done -> {
+            mCurrent.remove(printerId);
+            LocalPrintJob following = nextJob(printerId);
+            if (following != null) {
+                start(following, done);
+            }
+            done.release();
+            startNextJobs();
+        }, previous);
+    }
+
+    /** Return the oldest queued job for the printer, or null */
+    private LocalPrintJob nextJob(PrinterId printerId) {
+        for (LocalPrintJob job : mJobs) {
+            if (printerId.equals(getPrinterId(job))) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /** Return the oldest queued job whose printer is not already busy, or null */
+    private LocalPrintJob nextStartableJob() {
+        for (LocalPrintJob job : mJobs) {
+            if (!mCurrent.containsKey(getPrinterId(job))) {
+                return job;
+            }
+        }
+        return null;
+    }
 
-        mCurrent = mJobs.remove(0);
-        mCurrent.start(job -> {
-            mCurrent = null;
-            startNextJob();
-        });
+    private static PrinterId getPrinterId(LocalPrintJob job) {
+        return job.getPrintJob().getInfo().getPrinterId();
     }
 }
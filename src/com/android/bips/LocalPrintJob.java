@@ -29,6 +29,7 @@ import com.android.bips.discovery.MdnsDiscovery;
 import com.android.bips.ipp.Backend;
 import com.android.bips.ipp.CapabilitiesCache;
 import com.android.bips.ipp.CertificateStore;
+import com.android.bips.ipp.JobSession;
 import com.android.bips.ipp.JobStatus;
 import com.android.bips.jni.BackendConstants;
 import com.android.bips.jni.LocalPrinterCapabilities;
@@ -72,11 +73,13 @@ class LocalPrintJob implements MdnsDiscovery.Listener, ConnectionListener,
     private P2pPrinterConnection mConnection;
     private LocalPrinterCapabilities mCapabilities;
     private CertificateStore mCertificateStore;
+    private JobSession mSession;
+    private boolean mSucceeded;
     private long mStartTime;
     private ArrayList<String> mBlockedReasons = new ArrayList<>();
 
     /**
-     * Construct the object; use {@link #start(Consumer)} to begin job processing.
+     * Construct the object; use {@link #start(Consumer, LocalPrintJob)} to begin job processing.
      */
     LocalPrintJob(BuiltInPrintService printService, Backend backend, PrintJob printJob) {
         mPrintService = printService;
@@ -93,10 +96,14 @@ class LocalPrintJob implements MdnsDiscovery.Listener, ConnectionListener,
     /**
      * Begin the process of delivering the job. Internally, discovers the target printer,
      * obtains its capabilities, delivers the job to the printer, and waits for job completion.
+     * When following a job which was just delivered successfully to the same printer, its
+     * printer path, capabilities and connection are used instead of discovering the printer
+     * again.
      *
      * @param callback Callback to be issued when job processing is complete
+     * @param previous The job completed just before this one for the same printer, or null
      */
-    void start(Consumer<LocalPrintJob> callback) {
+    void start(Consumer<LocalPrintJob> callback, LocalPrintJob previous) {
         mStartTime = System.currentTimeMillis();
         // TODO: Log job attempted event here using getJobAttemptedBundle()
         if (DEBUG) Log.d(TAG, "start() " + mPrintJob);
@@ -109,8 +116,23 @@ class LocalPrintJob implements MdnsDiscovery.Listener, ConnectionListener,
         // Acquire a lock so that WiFi isn't put to sleep while we send the job
         mPrintService.lockWifi();
 
-        mState = STATE_DISCOVERY;
         mCompleteConsumer = callback;
+        if (previous != null && previous.mSucceeded) {
+            if (DEBUG) Log.d(TAG, "Continuing from " + previous.mPrintJob);
+            mConnection = previous.mConnection;
+            previous.mConnection = null;
+            if (mConnection != null) {
+                mConnection.setListener(this);
+            }
+            mPath = previous.mPath;
+            mCapabilities = previous.mCapabilities;
+            mCapabilities.certificate = mCertificateStore.get(mCapabilities.uuid);
+            mState = STATE_CAPABILITIES;
+            deliver();
+            return;
+        }
+
+        mState = STATE_DISCOVERY;
         mDiscoveryTimeout = mPrintService.delay(DISCOVERY_TIMEOUT, () -> {
             if (DEBUG) Log.d(TAG, "Discovery timeout");
             if (mState == STATE_DISCOVERY) {
@@ -147,7 +169,9 @@ class LocalPrintJob implements MdnsDiscovery.Listener, ConnectionListener,
             case STATE_DELIVERING:
                 // Request cancel and wait for completion
                 mState = STATE_CANCEL;
-                mBackend.cancel();
+                if (mSession != null) {
+                    mSession.cancel();
+                }
                 break;
         }
         Bundle bundle = getJobCompletedAnalyticsBundle(BackendConstants.JOB_DONE_CANCELLED);
@@ -155,6 +179,18 @@ class LocalPrintJob implements MdnsDiscovery.Listener, ConnectionListener,
         // TODO: Log job completed event here with the above bundle
     }
 
+    /**
+     * Release the Wi-Fi lock and any printer connection held by a completed job, unless the
+     * connection was passed to a following job.
+     */
+    void release() {
+        if (mConnection != null) {
+            mConnection.close();
+            mConnection = null;
+        }
+        mPrintService.unlockWifi();
+    }
+
     PrintJobId getPrintJobId() {
         return mPrintJob.getId();
     }
@@ -273,7 +309,7 @@ class LocalPrintJob implements MdnsDiscovery.Listener, ConnectionListener,
         } else {
             mState = STATE_DELIVERING;
             mPrintJob.start();
-            mBackend.print(mPath, mPrintJob, mCapabilities, this::handleJobStatus);
+            mSession = mBackend.print(mPath, mPrintJob, mCapabilities, this::handleJobStatus);
         }
     }
 
@@ -371,11 +407,8 @@ class LocalPrintJob implements MdnsDiscovery.Listener, ConnectionListener,
         if (mDiscoveryTimeout != null) {
             mDiscoveryTimeout.cancel();
         }
-        if (mConnection != null) {
-            mConnection.close();
-        }
-        mPrintService.unlockWifi();
         mBackend.closeDocument();
+        mSucceeded = success;
         if (success) {
             // Job must not be blocked before completion
             mPrintJob.start();
@@ -23,13 +23,16 @@ import android.util.Log;
 
 import com.android.bips.BuiltInPrintService;
 import com.android.bips.ipp.CapabilitiesCache;
+import com.android.bips.ipp.ReachabilityProber;
 import com.android.bips.jni.LocalPrinterCapabilities;
 import com.android.bips.util.WifiMonitor;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -46,6 +49,9 @@ public class ManualDiscovery extends SavedDiscovery {
             Uri.parse("ipps://host:631/ipp/print"), Uri.parse("ipps://host:443/ipp/print"),
             Uri.parse("ipps://host:10443/ipp/print")};
 
+    // Maximum time to wait for a printer to accept a connection on a port
+    private static final int PROBE_TIMEOUT = 8000;
+
     private WifiMonitor mWifiMonitor;
     private CapabilitiesCache mCapabilitiesCache;
     private List<CapabilitiesFinder> mAddRequests = new ArrayList<>();
@@ -158,6 +164,8 @@ public class ManualDiscovery extends SavedDiscovery {
         private final PrinterAddCallback mFinalCallback;
         private final List<CapabilitiesCache.OnLocalPrinterCapabilities> mRequests =
                 new ArrayList<>();
+        private final List<ReachabilityProber.Probe> mProbes = new ArrayList<>();
+        private int mPendingProbes;
 
         /**
          * Constructs a new finder
@@ -168,30 +176,59 @@ public class ManualDiscovery extends SavedDiscovery {
          */
         CapabilitiesFinder(Collection<Uri> uris, PrinterAddCallback callback) {
             mFinalCallback = callback;
+
+            // Probe each distinct port once, only requesting capabilities where it is open
+            Map<Integer, List<Uri>> urisByPort = new LinkedHashMap<>();
             for (Uri uri : uris) {
-                CapabilitiesCache.OnLocalPrinterCapabilities capabilitiesCallback =
-                        new CapabilitiesCache.OnLocalPrinterCapabilities() {
-                            @Override
-                            public void onCapabilities(LocalPrinterCapabilities capabilities) {
-                                mRequests.remove(this);
-                                handleCapabilities(uri, capabilities);
-                            }
-                        };
-                mRequests.add(capabilitiesCallback);
-
-                // Force a clean attempt from scratch
-                mCapabilitiesCache.remove(uri);
-                mCapabilitiesCache.request(new DiscoveredPrinter(null, "", uri, null),
-                        true, capabilitiesCallback);
+                urisByPort.computeIfAbsent(uri.getPort(), port -> new ArrayList<>()).add(uri);
+            }
+            mPendingProbes = urisByPort.size();
+            ReachabilityProber prober = getPrintService().getReachabilityProber();
+            for (Map.Entry<Integer, List<Uri>> entry : urisByPort.entrySet()) {
+                List<Uri> portUris = entry.getValue();
+                mProbes.add(prober.probe(portUris.get(0).getHost(), entry.getKey(),
+                        PROBE_TIMEOUT, reachable -> handleProbe(portUris, reachable)));
+            }
+        }
+
+        /** A port has been found to be open (or not) */
+        void handleProbe(List<Uri> uris, boolean reachable) {
+            if (DEBUG) Log.d(TAG, "probe " + uris.get(0) + " reachable=" + reachable);
+            mPendingProbes--;
+            if (reachable) {
+                for (Uri uri : uris) {
+                    requestCapabilities(uri);
+                }
+            } else if (mPendingProbes == 0 && mRequests.isEmpty()) {
+                mAddRequests.remove(this);
+                mFinalCallback.onNotFound();
             }
         }
 
+        /** Request capabilities for a printer at the given path */
+        private void requestCapabilities(Uri uri) {
+            CapabilitiesCache.OnLocalPrinterCapabilities capabilitiesCallback =
+                    new CapabilitiesCache.OnLocalPrinterCapabilities() {
+                        @Override
+                        public void onCapabilities(LocalPrinterCapabilities capabilities) {
+                            mRequests.remove(this);
+                            handleCapabilities(uri, capabilities);
+                        }
+                    };
+            mRequests.add(capabilitiesCallback);
+
+            // Force a clean attempt from scratch
+            mCapabilitiesCache.remove(uri);
+            mCapabilitiesCache.request(new DiscoveredPrinter(null, "", uri, null),
+                    true, capabilitiesCallback);
+        }
+
         /** Capabilities have arrived (or not) for the printer at a given path */
         void handleCapabilities(Uri printerPath, LocalPrinterCapabilities capabilities) {
             if (DEBUG) Log.d(TAG, "request " + printerPath + " cap=" + capabilities);
 
             if (capabilities == null) {
-                if (mRequests.isEmpty()) {
+                if (mPendingProbes == 0 && mRequests.isEmpty()) {
                     mAddRequests.remove(this);
                     mFinalCallback.onNotFound();
                 }
@@ -199,10 +236,7 @@ public class ManualDiscovery extends SavedDiscovery {
             }
 
             // Success, so cancel all other requests
-            for (CapabilitiesCache.OnLocalPrinterCapabilities request : mRequests) {
-                mCapabilitiesCache.cancel(request);
-            }
-            mRequests.clear();
+            cancel();
 
             // Deliver a successful response
             Uri uuid = TextUtils.isEmpty(capabilities.uuid) ? null : Uri.parse(capabilities.uuid);
@@ -224,6 +258,10 @@ public class ManualDiscovery extends SavedDiscovery {
 
         /** Stop all in-progress capability requests that are in progress */
         public void cancel() {
+            for (ReachabilityProber.Probe probe : mProbes) {
+                probe.cancel();
+            }
+            mProbes.clear();
             for (CapabilitiesCache.OnLocalPrinterCapabilities callback : mRequests) {
                 mCapabilitiesCache.cancel(callback);
             }
@@ -21,12 +21,14 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.printservice.PrintJob;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.bips.R;
 import com.android.bips.jni.BackendConstants;
@@ -38,6 +40,9 @@ import com.android.bips.jni.PdfRender;
 import com.android.bips.util.FileUtils;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.function.Consumer;
 
@@ -54,19 +59,39 @@ public class Backend implements JobCallback {
 
     private static final String VERSION_UNKNOWN = "(unknown)";
 
+    // Maximum number of printer host names to resolve at once before probing
+    private static final int MAX_PROBE_THREADS = 4;
+
+    // Maximum number of printer attribute requests to run at once
+    private static final int MAX_FETCH_THREADS = CapabilitiesCache.DEFAULT_MAX_CONCURRENT;
+
+    // Maximum number of job start and cancel requests, and document spool copies, to run at once
+    private static final int MAX_JOB_THREADS = 4;
+
     private final Handler mMainHandler;
     private final Context mContext;
-    private JobStatus mCurrentJobStatus;
-    private Consumer<JobStatus> mJobStatusListener;
-    private AsyncTask<Void, Void, Integer> mStartTask;
+    private final IppExecutor mProbeExecutor = new IppExecutor("ipp-probe", MAX_PROBE_THREADS);
+    private final IppExecutor mFetchExecutor = new IppExecutor("ipp-fetch", MAX_FETCH_THREADS);
+    private final IppExecutor mJobExecutor = new IppExecutor("ipp-job", MAX_JOB_THREADS);
+    private final ReachabilityProber mProber;
+    /** Sessions whose {@link StartJobTask} has not yet reported a native job handle */
+    private final List<JobSession> mStartingSessions = new ArrayList<>();
+    /** Sessions in progress, keyed by native job handle */
+    private final SparseArray<JobSession> mSessions = new SparseArray<>();
+    /** Callbacks received for job handles not yet reported by their {@link StartJobTask} */
+    private final SparseArray<List<JobCallbackParams>> mEarlyCallbacks = new SparseArray<>();
 
     public Backend(Context context) {
         if (DEBUG) Log.d(TAG, "Backend()");
 
         mContext = context;
         mMainHandler = new Handler(context.getMainLooper());
+        mProber = new ReachabilityProber(mMainHandler, mProbeExecutor.withPriority(true));
         PdfRender.getInstance(mContext);
 
+        // Discard any spooled data left behind by a previous instance
+        FileUtils.deleteAll(new File(mContext.getFilesDir(), TEMP_JOB_FOLDER));
+
         // Load required JNI libraries
         System.loadLibrary(BackendConstants.WPRINT_LIBRARY_PREFIX);
 
@@ -93,42 +118,78 @@ public class Backend implements JobCallback {
             final Consumer<LocalPrinterCapabilities> capabilitiesConsumer) {
         if (DEBUG) Log.d(TAG, "getCapabilities()");
 
-        GetCapabilitiesTask task = new GetCapabilitiesTask(this, uri, timeout, highPriority) {
+        GetCapabilitiesTask task = new GetCapabilitiesTask(this, uri, timeout) {
             @Override
             protected void onPostExecute(LocalPrinterCapabilities result) {
                 capabilitiesConsumer.accept(result);
             }
         };
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        task.start(mProber, mFetchExecutor.withPriority(highPriority));
         return task;
     }
 
+    /** Return the prober used to check printer reachability */
+    public ReachabilityProber getReachabilityProber() {
+        return mProber;
+    }
+
+    /** Write queue depth and completion counts for each kind of IPP work */
+    public void dump(PrintWriter writer) {
+        writer.println(mProbeExecutor);
+        writer.println(mFetchExecutor);
+        writer.println(mJobExecutor);
+    }
+
     /**
-     * Start a print job. Results will be notified to the listener. Do not start more than
-     * one job at a time.
+     * Start a print job. Results will be notified to the listener. Jobs for different printers
+     * may be in progress at the same time.
+     *
+     * @return a session which may be used to cancel the job
      */
-    public void print(Uri uri, PrintJob printJob, LocalPrinterCapabilities capabilities,
+    public JobSession print(Uri uri, PrintJob printJob, LocalPrinterCapabilities capabilities,
             Consumer<JobStatus> listener) {
         if (DEBUG) Log.d(TAG, "print()");
 
-        mJobStatusListener = listener;
-        mCurrentJobStatus = new JobStatus();
+        File spoolFile = new File(new File(mContext.getFilesDir(), TEMP_JOB_FOLDER),
+                printJob.getId() + ".pdf");
+        ParcelFileDescriptor source = printJob.getDocument().getData();
+        final JobSession session = new JobSession(this, printJob.getId(), source, spoolFile,
+                listener);
+        mStartingSessions.add(session);
 
-        mStartTask = new StartJobTask(mContext, this, uri, printJob, capabilities) {
+        session.mStartTask = new StartJobTask(mContext, this, uri, printJob, capabilities,
+                source, spoolFile, mJobExecutor.withPriority(true)) {
             @Override
             public void onCancelled(Integer result) {
                 if (DEBUG) Log.d(TAG, "StartJobTask onCancelled " + result);
+                if (result != null && result > 0) {
+                    // The job started before cancellation took effect, so cancel it natively
+                    onPostExecute(result);
+                    Backend.this.cancel(session);
+                    return;
+                }
                 onPostExecute(ERROR_CANCEL);
             }
 
             @Override
             protected void onPostExecute(Integer result) {
                 if (DEBUG) Log.d(TAG, "StartJobTask onPostExecute " + result);
-                mStartTask = null;
+                session.mStartTask = null;
+                mStartingSessions.remove(session);
+                if (mStartingSessions.isEmpty()) {
+                    // Callbacks still held cannot belong to any job which is yet to start
+                    discardEarlyCallbacks(result);
+                }
                 if (result > 0) {
-                    mCurrentJobStatus = new JobStatus.Builder(mCurrentJobStatus).setId(result)
-                            .build();
-                } else if (mJobStatusListener != null) {
+                    session.mStatus = new JobStatus.Builder(session.mStatus).setId(result).build();
+                    mSessions.put(result, session);
+                    replayEarlyCallbacks(session);
+                } else {
+                    session.releaseFiles();
+                    if (session.mListener == null) {
+                        return;
+                    }
+
                     String jobResult = BackendConstants.JOB_DONE_ERROR;
                     if (result == ERROR_CANCEL) {
                         jobResult = BackendConstants.JOB_DONE_CANCELLED;
@@ -137,28 +198,30 @@ public class Backend implements JobCallback {
                     }
 
                     // If the start attempt failed and we are still listening, notify and be done
-                    mCurrentJobStatus = new JobStatus.Builder()
+                    session.mStatus = new JobStatus.Builder()
                             .setJobState(BackendConstants.JOB_STATE_DONE)
                             .setJobResult(jobResult).build();
-                    mJobStatusListener.accept(mCurrentJobStatus);
-                    mJobStatusListener = null;
+                    session.mListener.accept(session.mStatus);
+                    session.mListener = null;
                 }
             }
         };
-        mStartTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        session.mStartTask.executeOnExecutor(mJobExecutor.withPriority(false));
+        return session;
     }
 
-    /** Attempt to cancel the current job */
-    public void cancel() {
-        if (DEBUG) Log.d(TAG, "cancel()");
+    /** Attempt to cancel a session previously returned by {@link #print} */
+    void cancel(JobSession session) {
+        if (DEBUG) Log.d(TAG, "cancel() " + session);
 
-        if (mStartTask != null) {
+        if (session.mStartTask != null) {
             if (DEBUG) Log.d(TAG, "cancelling start task");
-            mStartTask.cancel(true);
-        } else if (mCurrentJobStatus != null && mCurrentJobStatus.getId() != JobStatus.ID_UNKNOWN) {
+            session.mStartTask.cancel(true);
+        } else if (session.getId() != JobStatus.ID_UNKNOWN && !session.mStatus.isJobDone()) {
             if (DEBUG) Log.d(TAG, "cancelling job via new task");
-            new CancelJobTask(this, mCurrentJobStatus.getId())
-                    .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            // Cancellation is queued ahead of any jobs still waiting to start
+            new CancelJobTask(this, session.getId())
+                    .executeOnExecutor(mJobExecutor.withPriority(true));
         } else {
             if (DEBUG) Log.d(TAG, "Nothing to cancel in backend, ignoring");
         }
@@ -168,15 +231,34 @@ public class Backend implements JobCallback {
      * Call when it is safe to release document-centric resources related to a print job
      */
     public void closeDocument() {
+        // The renderer holds one document at a time, which may belong to another active job
+        if (!mStartingSessions.isEmpty() || mSessions.size() != 0) {
+            return;
+        }
+
         // Tell the renderer it may release resources for the document
         PdfRender.getInstance(mContext).closeDocument();
     }
 
+    /** Discard anything renderers hold for a job's document, which is named by its spool file */
+    void releaseDocument(File spoolFile) {
+        // Avoid creating a new renderer if it was already closed
+        PdfRender render = PdfRender.getInstance(null);
+        if (render != null) {
+            render.releaseDocument(spoolFile.getPath());
+        }
+    }
+
     /**
      * Call when service is shutting down, nothing else is happening, and this object
      * is no longer required. After closing this object it should be discarded.
      */
     public void close() {
+        // Idle executor threads are released on their own
+        mProber.close();
+        if (DEBUG) {
+            Log.d(TAG, "close() " + mProbeExecutor + " " + mFetchExecutor + " " + mJobExecutor);
+        }
         new Thread(this::nativeExit).start();
         PdfRender.getInstance(mContext).close();
     }
@@ -187,38 +269,91 @@ public class Backend implements JobCallback {
         mMainHandler.post(() -> {
             if (DEBUG) Log.d(TAG, "jobCallback() jobId=" + jobId + ", params=" + params);
 
-            JobStatus.Builder builder = new JobStatus.Builder(mCurrentJobStatus);
-
-            builder.setId(params.jobId);
-
-            if (params.certificate != null) {
-                builder.setCertificate(params.certificate);
-            }
+            JobSession session = mSessions.get(jobId);
+            if (session == null) {
+                if (mStartingSessions.isEmpty()) {
+                    if (DEBUG) Log.d(TAG, "Dropping callback for unknown job " + jobId);
+                    return;
+                }
 
-            if (!TextUtils.isEmpty(params.printerState)) {
-                updateBlockedReasons(builder, params);
-            } else if (!TextUtils.isEmpty(params.jobState)) {
-                builder.setJobState(params.jobState);
-                if (!TextUtils.isEmpty(params.jobDoneResult)) {
-                    builder.setJobResult(params.jobDoneResult);
+                // The job may still be starting, so hold this update until its ID is known
+                List<JobCallbackParams> early = mEarlyCallbacks.get(jobId);
+                if (early == null) {
+                    early = new ArrayList<>();
+                    mEarlyCallbacks.put(jobId, early);
                 }
-                updateBlockedReasons(builder, params);
+                early.add(params);
+                return;
             }
-            mCurrentJobStatus = builder.build();
+            handleJobCallback(session, params);
+        });
+    }
 
-            if (mJobStatusListener != null) {
-                mJobStatusListener.accept(mCurrentJobStatus);
+    /** Deliver any callbacks which arrived before the session's job handle was known */
+    private void replayEarlyCallbacks(JobSession session) {
+        int jobId = session.getId();
+        List<JobCallbackParams> early = mEarlyCallbacks.get(jobId);
+        if (early == null) {
+            return;
+        }
+        mEarlyCallbacks.remove(jobId);
+        for (JobCallbackParams params : early) {
+            if (mSessions.get(jobId) != session) {
+                break;
             }
+            handleJobCallback(session, params);
+        }
+    }
+
+    /** Discard callbacks held for all job handles other than the one specified */
+    private void discardEarlyCallbacks(int keepJobId) {
+        List<JobCallbackParams> keep = mEarlyCallbacks.get(keepJobId);
+        mEarlyCallbacks.clear();
+        if (keep != null) {
+            mEarlyCallbacks.put(keepJobId, keep);
+        }
+    }
+
+    /** Apply a status update to the session, notifying its listener */
+    private void handleJobCallback(JobSession session, JobCallbackParams params) {
+        int jobId = session.getId();
+        if (DEBUG && BackendConstants.JOB_STATE_RUNNING.equals(params.jobState)
+                && !BackendConstants.JOB_STATE_RUNNING.equals(session.mStatus.getJobState())) {
+            Log.d(TAG, "Job " + jobId + " running after "
+                    + (SystemClock.elapsedRealtime() - session.mStartTime) + "ms");
+        }
+        JobStatus.Builder builder = new JobStatus.Builder(session.mStatus);
 
-            if (mCurrentJobStatus.isJobDone()) {
-                nativeEndJob(jobId);
-                // Reset status for next job.
-                mCurrentJobStatus = new JobStatus();
-                mJobStatusListener = null;
+        builder.setId(params.jobId);
 
-                FileUtils.deleteAll(new File(mContext.getFilesDir(), Backend.TEMP_JOB_FOLDER));
+        if (params.certificate != null) {
+            builder.setCertificate(params.certificate);
+        }
+
+        if (!TextUtils.isEmpty(params.printerState)) {
+            updateBlockedReasons(builder, params);
+        } else if (!TextUtils.isEmpty(params.jobState)) {
+            builder.setJobState(params.jobState);
+            if (!TextUtils.isEmpty(params.jobDoneResult)) {
+                builder.setJobResult(params.jobDoneResult);
             }
-        });
+            updateBlockedReasons(builder, params);
+        }
+        session.mStatus = builder.build();
+
+        if (session.mStatus.isJobDone()) {
+            nativeEndJob(jobId);
+            mSessions.remove(jobId);
+            session.releaseFiles();
+        }
+
+        if (session.mListener != null) {
+            session.mListener.accept(session.mStatus);
+        }
+
+        if (session.mStatus.isJobDone()) {
+            session.mListener = null;
+        }
     }
 
     /** Update the blocked reason list with non-empty strings */
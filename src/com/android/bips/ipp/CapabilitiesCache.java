@@ -22,6 +22,7 @@ import android.content.Intent;
 import android.net.NetworkInfo;
 import android.net.Uri;
 import android.net.wifi.p2p.WifiP2pManager;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LruCache;
@@ -34,40 +35,68 @@ import com.android.bips.util.BroadcastMonitor;
 import com.android.bips.util.WifiMonitor;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Consumer;
 
 /**
  * A cache of printer URIs (see {@link DiscoveredPrinter#path}) to printer capabilities,
- * with the ability to fetch them on cache misses. {@link #close} must be called when use
- * is complete.
+ * with the ability to fetch them on cache misses. Capabilities of printers seen before are
+ * served from persistent storage while being revalidated in the background. {@link #close}
+ * must be called when use is complete.
  */
 public class CapabilitiesCache implements AutoCloseable {
     private static final String TAG = CapabilitiesCache.class.getSimpleName();
     private static final boolean DEBUG = false;
 
-    // Maximum number of capability queries to perform at any one time, so as not to overwhelm
-    // AsyncTask.THREAD_POOL_EXECUTOR
-    public static final int DEFAULT_MAX_CONCURRENT = 3;
+    // Maximum number of capability queries to perform at any one time. Each query runs a full
+    // IPP exchange in parallel with others on Backend's dedicated fetch threads.
+    public static final int DEFAULT_MAX_CONCURRENT = 6;
 
     // Maximum number of printers expected on a single network
     private static final int CACHE_SIZE = 100;
 
-    // Maximum time per retry before giving up on first pass
+    // Maximum time per retry before giving up on first pass, for printers with no history
     private static final int FIRST_PASS_TIMEOUT = 500;
 
-    // Maximum time per retry before giving up on second pass. Must differ from FIRST_PASS_TIMEOUT.
+    // Shortest time per retry ever allowed on first pass, however fast the printer has been
+    private static final int MIN_FIRST_PASS_TIMEOUT = 100;
+
+    // Maximum time per retry before giving up on second pass
     private static final int SECOND_PASS_TIMEOUT = 8000;
 
     // Underlying cache
     private final LruCache<Uri, LocalPrinterCapabilities> mCache = new LruCache<>(CACHE_SIZE);
 
+    // Persistent store of full capabilities, used to populate the cache
+    private final CapabilitiesStore mStore;
+
+    // Observed response times, used to choose timeouts for each printer
+    private final LatencyTracker mLatency = new LatencyTracker(CACHE_SIZE,
+            MIN_FIRST_PASS_TIMEOUT, SECOND_PASS_TIMEOUT);
+
     // Outstanding requests based on printer path
     private final Map<Uri, Request> mRequests = new HashMap<>();
+
+    // Requests waiting to start, best first
+    private final NavigableSet<Request> mPending = new TreeSet<>();
+
+    // Outstanding requests for each callback
+    private final Map<OnLocalPrinterCapabilities, Set<Request>> mRequestsByCallback =
+            new HashMap<>();
+
+    // Number of requests currently being performed
+    private int mInFlight;
+
+    // Order in which requests were queued, used to break ties
+    private long mSequence;
+
     private final Set<Uri> mToEvict = new HashSet<>();
     private final Set<Uri> mToEvictP2p = new HashSet<>();
     private final int mMaxConcurrent;
@@ -86,6 +115,7 @@ public class CapabilitiesCache implements AutoCloseable {
         mService = service;
         mBackend = backend;
         mMaxConcurrent = maxConcurrent;
+        mStore = new CapabilitiesStore(service);
 
         mP2pMonitor = mService.receiveBroadcasts(new BroadcastReceiver() {
             @Override
@@ -147,32 +177,49 @@ public class CapabilitiesCache implements AutoCloseable {
             return;
         }
 
-        if (P2pUtils.isOnConnectedInterface(mService, printer)) {
-            if (DEBUG) Log.d(TAG, "Adding to P2P evict list: " + printer);
-            mToEvictP2p.add(printer.path);
-        } else {
-            if (DEBUG) Log.d(TAG, "Adding to WLAN evict list: " + printer);
-            mToEvict.add(printer.path);
-        }
+        addToEvictList(printer);
 
-        // Create a new request with timeout based on priority
-        Request request = mRequests.computeIfAbsent(printer.path, uri ->
-                new Request(printer, highPriority ? SECOND_PASS_TIMEOUT : FIRST_PASS_TIMEOUT));
-
-        if (highPriority) {
+        // Create a new request with timeout based on priority and history
+        Request request = mRequests.get(printer.path);
+        if (request == null) {
+            request = new Request(printer, highPriority);
+            mRequests.put(printer.path, request);
+            enqueue(request);
+        } else if (highPriority && !request.mHighPriority) {
+            // Reposition the request if it is still waiting
+            boolean pending = mPending.remove(request);
             request.mHighPriority = true;
+            if (pending) {
+                mPending.add(request);
+            }
         }
 
         request.mCallbacks.add(onLocalPrinterCapabilities);
+        mRequestsByCallback.computeIfAbsent(onLocalPrinterCapabilities, callback ->
+                new HashSet<>()).add(request);
 
         startNextRequest();
     }
 
+    /** Arrange for the printer's capabilities to be evicted when its network is lost */
+    private void addToEvictList(DiscoveredPrinter printer) {
+        if (P2pUtils.isOnConnectedInterface(mService, printer)) {
+            if (DEBUG) Log.d(TAG, "Adding to P2P evict list: " + printer);
+            mToEvictP2p.add(printer.path);
+        } else {
+            if (DEBUG) Log.d(TAG, "Adding to WLAN evict list: " + printer);
+            mToEvict.add(printer.path);
+        }
+    }
+
     /**
      * Returns capabilities for the specified printer, if known
      */
     public LocalPrinterCapabilities get(DiscoveredPrinter printer) {
         LocalPrinterCapabilities capabilities = mCache.get(printer.path);
+        if (capabilities == null) {
+            capabilities = getStored(printer);
+        }
         // Populate certificate from store if possible
         if (capabilities != null) {
             capabilities.certificate = mService.getCertificateStore().get(capabilities.uuid);
@@ -180,6 +227,35 @@ public class CapabilitiesCache implements AutoCloseable {
         return capabilities;
     }
 
+    /**
+     * Return capabilities previously stored for the printer, if any, and start a low-priority
+     * request to revalidate them.
+     */
+    private LocalPrinterCapabilities getStored(DiscoveredPrinter printer) {
+        if (printer.uuid == null || mIsStopped) {
+            return null;
+        }
+
+        LocalPrinterCapabilities capabilities = mStore.get(printer.uuid.toString(),
+                printer.path);
+        if (capabilities == null) {
+            return null;
+        }
+
+        if (DEBUG) Log.d(TAG, "Using stored capabilities for " + printer);
+        mCache.put(printer.path, capabilities);
+        addToEvictList(printer);
+
+        // Revalidate without any callbacks; the cache will simply be updated
+        if (!mRequests.containsKey(printer.path)) {
+            Request request = new Request(printer, false);
+            mRequests.put(printer.path, request);
+            enqueue(request);
+        }
+        startNextRequest();
+        return capabilities;
+    }
+
     /**
      * Remove capabilities corresponding to a Printer URI
      * @return The removed capabilities, if any
@@ -192,66 +268,80 @@ public class CapabilitiesCache implements AutoCloseable {
      * Cancel all outstanding attempts to get capabilities for this callback
      */
     public void cancel(OnLocalPrinterCapabilities onLocalPrinterCapabilities) {
-        List<Uri> toDrop = new ArrayList<>();
-        for (Map.Entry<Uri, Request> entry : mRequests.entrySet()) {
-            Request request = entry.getValue();
-            request.mCallbacks.remove(onLocalPrinterCapabilities);
+        Set<Request> requests = mRequestsByCallback.remove(onLocalPrinterCapabilities);
+        if (requests == null) {
+            return;
+        }
+
+        for (Request request : requests) {
+            request.mCallbacks.removeAll(Collections.singleton(onLocalPrinterCapabilities));
             if (request.mCallbacks.isEmpty()) {
-                toDrop.add(entry.getKey());
+                mRequests.remove(request.mPrinter.path);
+                mPending.remove(request);
                 request.cancel();
             }
         }
-        for (Uri request : toDrop) {
-            mRequests.remove(request);
-        }
+        startNextRequest();
+    }
+
+    /** Queue a request to be started when there is capacity */
+    private void enqueue(Request request) {
+        request.mSequence = mSequence++;
+        mPending.add(request);
     }
 
-    /** Look for next query and launch it */
+    /** Launch the best waiting requests until the concurrency limit is reached */
     private void startNextRequest() {
-        final Request request = getNextRequest();
-        if (request == null) {
-            return;
+        while (mInFlight < mMaxConcurrent && !mPending.isEmpty()) {
+            mPending.pollFirst().start();
         }
-
-        request.start();
     }
 
-    /** Return the next request if it is appropriate to perform one */
-    private Request getNextRequest() {
-        Request found = null;
-        int total = 0;
-        for (Request request : mRequests.values()) {
-            if (request.mQuery != null) {
-                total++;
-            } else if (found == null || (!found.mHighPriority && request.mHighPriority)
-                    || (found.mHighPriority == request.mHighPriority
-                    && request.mTimeout < found.mTimeout)) {
-                // First valid or higher priority request
-                found = request;
+    /** Drop a completed request from the reverse index of each of its callbacks */
+    private void unindex(Request request) {
+        for (OnLocalPrinterCapabilities callback : request.mCallbacks) {
+            Set<Request> requests = mRequestsByCallback.get(callback);
+            if (requests != null && requests.remove(request) && requests.isEmpty()) {
+                mRequestsByCallback.remove(callback);
             }
         }
-
-        if (total >= mMaxConcurrent) {
-            return null;
-        }
-
-        return found;
     }
 
     /** Holds an outstanding capabilities request */
-    public class Request implements Consumer<LocalPrinterCapabilities> {
+    public class Request implements Consumer<LocalPrinterCapabilities>, Comparable<Request> {
         final DiscoveredPrinter mPrinter;
         final List<OnLocalPrinterCapabilities> mCallbacks = new ArrayList<>();
         GetCapabilitiesTask mQuery;
         boolean mHighPriority = false;
+        boolean mFirstPass;
         long mTimeout;
+        long mStartTime;
+        long mSequence;
 
-        Request(DiscoveredPrinter printer, long timeout) {
+        Request(DiscoveredPrinter printer, boolean highPriority) {
             mPrinter = printer;
-            mTimeout = timeout;
+            mHighPriority = highPriority;
+            long expected = mLatency.getTimeout(getLatencyKey());
+            if (highPriority || expected > FIRST_PASS_TIMEOUT) {
+                // Known to be slow (or urgent) so a short first pass would be wasted
+                mFirstPass = false;
+                mTimeout = SECOND_PASS_TIMEOUT;
+            } else {
+                mFirstPass = true;
+                mTimeout = expected == 0 ? FIRST_PASS_TIMEOUT : expected;
+            }
+            if (DEBUG) Log.d(TAG, "Request " + printer + " expected=" + expected
+                    + " timeout=" + mTimeout);
+        }
+
+        /** Return the key under which this printer's response times are tracked */
+        private String getLatencyKey() {
+            return mPrinter.uuid != null ? mPrinter.uuid.toString() : mPrinter.path.toString();
         }
 
         private void start() {
+            mStartTime = SystemClock.elapsedRealtime();
+            mInFlight++;
             mQuery = mBackend.getCapabilities(mPrinter.path, mTimeout, mHighPriority, this);
         }
 
@@ -259,7 +349,24 @@ public class CapabilitiesCache implements AutoCloseable {
             if (mQuery != null) {
                 mQuery.forceCancel();
                 mQuery = null;
+                mInFlight--;
+            }
+        }
+
+        /**
+         * Order higher priority requests first, then those expected to finish sooner (which
+         * places first passes ahead of second passes), then by the order in which they were
+         * queued.
+         */
+        @Override
+        public int compareTo(Request other) {
+            if (mHighPriority != other.mHighPriority) {
+                return mHighPriority ? -1 : 1;
+            }
+            if (mTimeout != other.mTimeout) {
+                return Long.compare(mTimeout, other.mTimeout);
             }
+            return Long.compare(mSequence, other.mSequence);
         }
 
         @Override
@@ -270,6 +377,8 @@ public class CapabilitiesCache implements AutoCloseable {
             if (mIsStopped) {
                 return;
             }
+            mQuery = null;
+            mInFlight--;
             mRequests.remove(printer.path);
 
             // Grab uuid from capabilities if possible
@@ -280,26 +389,31 @@ public class CapabilitiesCache implements AutoCloseable {
                 }
                 if (printer.uuid != null && !printer.uuid.equals(capUuid)) {
                     Log.w(TAG, "UUID mismatch for " + printer + "; rejecting capabilities");
+                    mStore.remove(printer.uuid.toString());
                     capabilities = null;
                 }
             }
 
             if (capabilities == null) {
-                if (mTimeout == FIRST_PASS_TIMEOUT) {
+                if (mFirstPass) {
                     // Printer did not respond quickly, try again in the slow lane
+                    mFirstPass = false;
                     mTimeout = SECOND_PASS_TIMEOUT;
-                    mQuery = null;
                     mRequests.put(printer.path, this);
+                    enqueue(this);
                     startNextRequest();
                     return;
                 } else {
                     mCache.remove(printer.getUri());
                 }
             } else {
+                mLatency.record(getLatencyKey(), SystemClock.elapsedRealtime() - mStartTime);
                 capabilities.certificate = mService.getCertificateStore().get(capabilities.uuid);
                 mCache.put(printer.path, capabilities);
+                mStore.put(printer.path, capabilities);
             }
 
+            unindex(this);
             LocalPrinterCapabilities result = capabilities;
             for (OnLocalPrinterCapabilities callback : mCallbacks) {
                 callback.onCapabilities(result);
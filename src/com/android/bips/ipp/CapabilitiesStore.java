@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright (C) 2016 Mopria Alliance, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.android.bips.jni.LocalPrinterCapabilities;
+import com.android.bips.util.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent store of full printer capabilities, keyed by printer UUID, so that printers seen
+ * before are ready immediately after the service restarts. Each printer is held in its own file
+ * so that an update rewrites only that printer's entry.
+ */
+class CapabilitiesStore {
+    private static final String TAG = CapabilitiesStore.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** Maximum number of printers to keep on disk */
+    private static final int MAX_ENTRIES = 100;
+
+    /** Directory holding one file per printer */
+    private final File mStoreDir;
+
+    /**
+     * Time at which this package was last installed or updated. Entries written before then may
+     * hold native data in an outdated layout and are discarded.
+     */
+    private final long mPackageTime;
+
+    /** RAM-based store of entries already loaded (UUID to entry) */
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    CapabilitiesStore(Context context) {
+        mStoreDir = new File(context.getCacheDir(), getClass().getSimpleName());
+        long packageTime;
+        try {
+            packageTime = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            packageTime = Long.MAX_VALUE;
+        }
+        mPackageTime = packageTime;
+    }
+
+    /**
+     * Return stored capabilities for the printer having the specified UUID, or null if none are
+     * known to have been fetched from the same URI.
+     */
+    LocalPrinterCapabilities get(String uuid, Uri uri) {
+        if (TextUtils.isEmpty(uuid)) {
+            return null;
+        }
+
+        Entry entry = mEntries.get(uuid);
+        if (entry == null) {
+            entry = load(uuid);
+            if (entry == null) {
+                return null;
+            }
+            mEntries.put(uuid, entry);
+        }
+        return entry.mUri.equals(uri) ? entry.mCapabilities : null;
+    }
+
+    /**
+     * Store full capabilities fetched from a URI. Storage is only written if the native data
+     * differs from what is already known.
+     */
+    void put(Uri uri, LocalPrinterCapabilities capabilities) {
+        if (TextUtils.isEmpty(capabilities.uuid) || capabilities.nativeData == null) {
+            return;
+        }
+
+        Entry old = mEntries.put(capabilities.uuid, new Entry(uri, capabilities));
+        if (old == null || !old.mUri.equals(uri)
+                || !Arrays.equals(old.mCapabilities.nativeData, capabilities.nativeData)) {
+            if (DEBUG) Log.d(TAG, "New capabilities uuid=" + capabilities.uuid);
+            save(uri, capabilities);
+        }
+    }
+
+    /** Remove any capabilities associated with the specified UUID. */
+    void remove(String uuid) {
+        if (TextUtils.isEmpty(uuid)) {
+            return;
+        }
+        mEntries.remove(uuid);
+        getFile(uuid).delete();
+    }
+
+    /** Return the file used to store capabilities for the specified UUID */
+    private File getFile(String uuid) {
+        return new File(mStoreDir, uuid.replaceAll("[^A-Za-z0-9-]", "_") + ".json");
+    }
+
+    /** Write a single entry to storage immediately. */
+    private void save(Uri uri, LocalPrinterCapabilities capabilities) {
+        if (!FileUtils.makeDirectory(mStoreDir)) {
+            Log.w(TAG, "Could not create " + mStoreDir);
+            return;
+        }
+
+        File file = getFile(capabilities.uuid);
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new FileWriter(file)))) {
+            writer.beginObject();
+            writer.name("uri").value(uri.toString());
+            writer.name("path").value(capabilities.path);
+            writer.name("name").value(capabilities.name);
+            writer.name("uuid").value(capabilities.uuid);
+            writer.name("location").value(capabilities.location);
+            writer.name("duplex").value(capabilities.duplex);
+            writer.name("borderless").value(capabilities.borderless);
+            writer.name("color").value(capabilities.color);
+            writer.name("isSupported").value(capabilities.isSupported);
+            writer.name("mediaDefault").value(capabilities.mediaDefault);
+            writeInts(writer.name("supportedMediaTypes"), capabilities.supportedMediaTypes);
+            writeInts(writer.name("supportedMediaSizes"), capabilities.supportedMediaSizes);
+            if (capabilities.inetAddress != null) {
+                writer.name("inetAddress").value(capabilities.inetAddress.getHostAddress());
+            }
+            writer.name("nativeData").value(
+                    Base64.encodeToString(capabilities.nativeData, Base64.NO_WRAP));
+            writer.endObject();
+        } catch (NullPointerException | IOException e) {
+            Log.w(TAG, "Error while storing to " + file, e);
+            file.delete();
+            return;
+        }
+        trim();
+    }
+
+    private static void writeInts(JsonWriter writer, int[] values) throws IOException {
+        writer.beginArray();
+        if (values != null) {
+            for (int value : values) {
+                writer.value(value);
+            }
+        }
+        writer.endArray();
+    }
+
+    /** Delete the least recently written entries if there are too many */
+    private void trim() {
+        File[] files = mStoreDir.listFiles();
+        if (files == null || files.length <= MAX_ENTRIES) {
+            return;
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < files.length - MAX_ENTRIES; i++) {
+            if (DEBUG) Log.d(TAG, "Trimming " + files[i]);
+            files[i].delete();
+        }
+    }
+
+    /** Load the entry for a UUID from storage, or return null if not present or not valid. */
+    private Entry load(String uuid) {
+        File file = getFile(uuid);
+        if (!file.exists()) {
+            return null;
+        }
+        if (file.lastModified() < mPackageTime) {
+            file.delete();
+            return null;
+        }
+
+        Uri uri = null;
+        LocalPrinterCapabilities capabilities = new LocalPrinterCapabilities();
+        try (JsonReader reader = new JsonReader(new BufferedReader(new FileReader(file)))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String itemName = reader.nextName();
+                switch (itemName) {
+                    case "uri":
+                        uri = Uri.parse(reader.nextString());
+                        break;
+                    case "path":
+                        capabilities.path = nextString(reader);
+                        break;
+                    case "name":
+                        capabilities.name = nextString(reader);
+                        break;
+                    case "uuid":
+                        capabilities.uuid = reader.nextString();
+                        break;
+                    case "location":
+                        capabilities.location = nextString(reader);
+                        break;
+                    case "duplex":
+                        capabilities.duplex = reader.nextBoolean();
+                        break;
+                    case "borderless":
+                        capabilities.borderless = reader.nextBoolean();
+                        break;
+                    case "color":
+                        capabilities.color = reader.nextBoolean();
+                        break;
+                    case "isSupported":
+                        capabilities.isSupported = reader.nextBoolean();
+                        break;
+                    case "mediaDefault":
+                        capabilities.mediaDefault = nextString(reader);
+                        break;
+                    case "supportedMediaTypes":
+                        capabilities.supportedMediaTypes = readInts(reader);
+                        break;
+                    case "supportedMediaSizes":
+                        capabilities.supportedMediaSizes = readInts(reader);
+                        break;
+                    case "inetAddress":
+                        // Always a numeric address, so no lookup is performed
+                        capabilities.inetAddress = InetAddress.getByName(reader.nextString());
+                        break;
+                    case "nativeData":
+                        capabilities.nativeData = Base64.decode(reader.nextString(),
+                                Base64.NO_WRAP);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | IllegalArgumentException | IOException error) {
+            Log.w(TAG, "Error while loading from " + file, error);
+            file.delete();
+            return null;
+        }
+
+        if (uri == null || !uuid.equals(capabilities.uuid) || capabilities.nativeData == null) {
+            file.delete();
+            return null;
+        }
+        if (DEBUG) Log.d(TAG, "Loaded " + capabilities + " from " + file);
+        return new Entry(uri, capabilities);
+    }
+
+    /** Return the next string value, which may be null */
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static int[] readInts(JsonReader reader) throws IOException {
+        List<Integer> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            values.add(reader.nextInt());
+        }
+        reader.endArray();
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Capabilities along with the URI from which they were fetched */
+    private static class Entry {
+        final Uri mUri;
+        final LocalPrinterCapabilities mCapabilities;
+
+        Entry(Uri uri, LocalPrinterCapabilities capabilities) {
+            mUri = uri;
+            mCapabilities = capabilities;
+        }
+    }
+}
@@ -23,64 +23,58 @@ import android.util.Log;
 
 import com.android.bips.jni.BackendConstants;
 import com.android.bips.jni.LocalPrinterCapabilities;
-import com.android.bips.util.PriorityLock;
 
-import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.concurrent.Executor;
 
 /** A background task that queries a specific URI for its complete capabilities */
 public class GetCapabilitiesTask extends AsyncTask<Void, Void, LocalPrinterCapabilities> {
     private static final String TAG = GetCapabilitiesTask.class.getSimpleName();
     private static final boolean DEBUG = false;
 
-    /** Lock to ensure we don't issue multiple simultaneous capability requests */
-    private static final PriorityLock sLock = new PriorityLock();
-
     private final Backend mBackend;
     private final Uri mUri;
     private final long mTimeout;
-    private final boolean mPriority;
-    private volatile Socket mSocket;
+    private ReachabilityProber.Probe mProbe;
+    private volatile boolean mOffline;
 
-    GetCapabilitiesTask(Backend backend, Uri uri, long timeout, boolean priority) {
+    GetCapabilitiesTask(Backend backend, Uri uri, long timeout) {
         mUri = uri;
         mBackend = backend;
         mTimeout = timeout;
-        mPriority = priority;
     }
 
-    private boolean isDeviceOnline(Uri uri) {
-        try (Socket socket = new Socket()) {
-            mSocket = socket;
-            InetSocketAddress a = new InetSocketAddress(uri.getHost(), uri.getPort());
-            socket.connect(a, (int) mTimeout);
-            return true;
-        } catch (IOException e) {
-            return false;
-        } finally {
-            mSocket = null;
-        }
+    /**
+     * Check that the printer is reachable and, if so, execute this task. Connection attempts do
+     * not occupy a thread, so unreachable printers never delay IPP requests to others.
+     */
+    void start(ReachabilityProber prober, Executor executor) {
+        mProbe = prober.probe(mUri.getHost(), mUri.getPort(), mTimeout, online -> {
+            mProbe = null;
+            if (DEBUG) Log.d(TAG, "probe uri=" + mUri + " online=" + online);
+
+            // When offline, execute anyway to report failure through the usual path
+            mOffline = !online;
+            executeOnExecutor(executor);
+        });
     }
 
-    /** Forcibly cancel this task, including stopping any socket that was opened */
+    /** Forcibly cancel this task, including any reachability probe in progress */
     public void forceCancel() {
         cancel(true);
-        Socket socket = mSocket;
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // Ignored
-            }
+        ReachabilityProber.Probe probe = mProbe;
+        if (probe != null) {
+            probe.cancel();
+            mProbe = null;
         }
     }
 
     @Override
     protected LocalPrinterCapabilities doInBackground(Void... dummy) {
-        long start = System.currentTimeMillis();
+        if (mOffline || isCancelled()) {
+            return null;
+        }
 
         LocalPrinterCapabilities printerCaps = new LocalPrinterCapabilities();
         try {
@@ -89,34 +83,11 @@ public class GetCapabilitiesTask extends AsyncTask<Void, Void, LocalPrinterCapab
             return null;
         }
 
-        boolean online = isDeviceOnline(mUri);
-        if (DEBUG) {
-            Log.d(TAG, "isDeviceOnline uri=" + mUri + " online=" + online
-                    + " (" + (System.currentTimeMillis() - start) + "ms)");
-        }
-
-        if (!online || isCancelled()) {
-            return null;
-        }
-
-        // Do not permit more than a single call to this API or crashes may result
-        try {
-            // Always allow priority capability requests to execute first
-            sLock.lock(mPriority ? 1 : 0);
-        } catch (InterruptedException e) {
-            return null;
-        }
-        int status = -1;
-        start = System.currentTimeMillis();
-        try {
-            if (isCancelled()) {
-                return null;
-            }
-            status = mBackend.nativeGetCapabilities(Backend.getIp(mUri.getHost()),
-                    mUri.getPort(), mUri.getPath(), mUri.getScheme(), mTimeout, printerCaps);
-        } finally {
-            sLock.unlock();
-        }
+        // The native call is re-entrant, so requests to different printers proceed in parallel.
+        // Concurrency and priority are managed by CapabilitiesCache.
+        long start = System.currentTimeMillis();
+        int status = mBackend.nativeGetCapabilities(Backend.getIp(mUri.getHost()),
+                mUri.getPort(), mUri.getPath(), mUri.getScheme(), mTimeout, printerCaps);
 
         if (DEBUG) {
             Log.d(TAG, "callNativeGetCapabilities uri=" + mUri + " status=" + status
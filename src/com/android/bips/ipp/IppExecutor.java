@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright (C) 2016 Mopria Alliance, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of threads dedicated to one kind of IPP work. Queued work runs in priority
+ * order, first-come first-served within a priority, so that low-priority work can never delay
+ * high-priority work already queued behind it. Queue depth is tracked for diagnostics.
+ */
+class IppExecutor {
+    private static final String TAG = IppExecutor.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** Priority for work that a user is waiting on */
+    static final int PRIORITY_HIGH = 1;
+
+    /** Priority for background work */
+    static final int PRIORITY_LOW = 0;
+
+    /** Time after which idle threads are released */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicInteger mPeakQueueDepth = new AtomicInteger();
+    private final Executor mHighPriority = command -> execute(command, PRIORITY_HIGH);
+    private final Executor mLowPriority = command -> execute(command, PRIORITY_LOW);
+
+    /**
+     * @param name name used for threads and diagnostics
+     * @param maxThreads maximum number of tasks to run at once
+     */
+    IppExecutor(String name, int maxThreads) {
+        mName = name;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable ->
+                new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<>(), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Return an executor which queues work at the specified priority */
+    Executor withPriority(boolean highPriority) {
+        return highPriority ? mHighPriority : mLowPriority;
+    }
+
+    /** Queue work at the specified priority */
+    void execute(Runnable command, int priority) {
+        mExecutor.execute(new Entry(command, priority, mSequence.getAndIncrement()));
+
+        int depth = mExecutor.getQueue().size();
+        if (depth > mPeakQueueDepth.getAndAccumulate(depth, Math::max)) {
+            if (DEBUG) Log.d(TAG, "New peak " + this);
+        }
+    }
+
+    /** Return the number of tasks waiting for a thread */
+    int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /** Return the largest number of tasks seen waiting for a thread */
+    int getPeakQueueDepth() {
+        return mPeakQueueDepth.get();
+    }
+
+    /** Return the number of tasks currently running */
+    int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    @Override
+    public String toString() {
+        return "IppExecutor{" + mName
+                + " active=" + getActiveCount()
+                + " queued=" + getQueueDepth()
+                + " peakQueued=" + getPeakQueueDepth()
+                + " completed=" + mExecutor.getCompletedTaskCount()
+                + "}";
+    }
+
+    /** Work queued with a priority and order of arrival */
+    private static class Entry implements Runnable, Comparable<Entry> {
+        final Runnable mCommand;
+        final int mPriority;
+        final long mSequence;
+
+        Entry(Runnable command, int priority, long sequence) {
+            mCommand = command;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mCommand.run();
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (mPriority != other.mPriority) {
+                // Higher priorities first
+                return Integer.compare(other.mPriority, mPriority);
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
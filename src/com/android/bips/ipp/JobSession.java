@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright (C) 2016 Mopria Alliance, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.print.PrintJobId;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * State held by the {@link Backend} for a single print job, from the time it is started until
+ * the native layer reports it done. Each session owns its own native job handle and spool file
+ * so that several sessions may be in progress at once.
+ */
+public class JobSession {
+    private static final String TAG = JobSession.class.getSimpleName();
+
+    private final Backend mBackend;
+    final PrintJobId mPrintJobId;
+    /** Document source, which native code may be reading in place */
+    final ParcelFileDescriptor mSource;
+    final File mSpoolFile;
+    /** Time at which the session was created, in {@link SystemClock#elapsedRealtime} millis */
+    final long mStartTime = SystemClock.elapsedRealtime();
+    Consumer<JobStatus> mListener;
+    JobStatus mStatus = new JobStatus();
+    AsyncTask<Void, Void, Integer> mStartTask;
+
+    JobSession(Backend backend, PrintJobId printJobId, ParcelFileDescriptor source,
+            File spoolFile, Consumer<JobStatus> listener) {
+        mBackend = backend;
+        mPrintJobId = printJobId;
+        mSource = source;
+        mSpoolFile = spoolFile;
+        mListener = listener;
+    }
+
+    /** Return the native job handle for this session, or {@link JobStatus#ID_UNKNOWN} */
+    public int getId() {
+        return mStatus.getId();
+    }
+
+    /** Return the most recent status of this session */
+    public JobStatus getStatus() {
+        return mStatus;
+    }
+
+    /** Attempt to cancel this session */
+    public void cancel() {
+        mBackend.cancel(this);
+    }
+
+    /**
+     * Release the document source and any spooled copy or link to it once the session is
+     * complete, along with anything renderers hold for the document
+     */
+    void releaseFiles() {
+        mBackend.releaseDocument(mSpoolFile);
+        try {
+            mSource.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close source", e);
+        }
+        mSpoolFile.delete();
+    }
+
+    @Override
+    public String toString() {
+        return "JobSession{" + mPrintJobId + ", " + mStatus + "}";
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright (C) 2016 Mopria Alliance, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import android.util.LruCache;
+
+/**
+ * Tracks how quickly each printer has responded in the past, in order to choose how long to wait
+ * for it next time. Uses a smoothed mean and mean deviation in the same way TCP estimates
+ * retransmission timeouts.
+ */
+class LatencyTracker {
+    // Weight given to each new sample when updating the mean
+    private static final float MEAN_GAIN = 0.125f;
+
+    // Weight given to each new sample when updating the deviation
+    private static final float DEVIATION_GAIN = 0.25f;
+
+    // Number of deviations above the mean to allow before giving up
+    private static final int DEVIATIONS = 4;
+
+    private final LruCache<String, Estimate> mEstimates;
+    private final long mMinTimeout;
+    private final long mMaxTimeout;
+
+    /**
+     * @param size maximum number of printers to track
+     * @param minTimeout shortest timeout ever returned
+     * @param maxTimeout longest timeout ever returned
+     */
+    LatencyTracker(int size, long minTimeout, long maxTimeout) {
+        mEstimates = new LruCache<>(size);
+        mMinTimeout = minTimeout;
+        mMaxTimeout = maxTimeout;
+    }
+
+    /** Record the time taken by a successful exchange with a printer */
+    void record(String key, long millis) {
+        Estimate estimate = mEstimates.get(key);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimate.mMean = millis;
+            estimate.mDeviation = millis / 2f;
+            mEstimates.put(key, estimate);
+        } else {
+            estimate.mDeviation += DEVIATION_GAIN * (Math.abs(millis - estimate.mMean)
+                    - estimate.mDeviation);
+            estimate.mMean += MEAN_GAIN * (millis - estimate.mMean);
+        }
+    }
+
+    /**
+     * Return the time within which the printer is expected to respond, or 0 if there is no
+     * history for it
+     */
+    long getTimeout(String key) {
+        Estimate estimate = mEstimates.get(key);
+        if (estimate == null) {
+            return 0;
+        }
+        long timeout = (long) (estimate.mMean + DEVIATIONS * estimate.mDeviation);
+        return Math.max(mMinTimeout, Math.min(mMaxTimeout, timeout));
+    }
+
+    /** Smoothed response time statistics for one printer */
+    private static class Estimate {
+        float mMean;
+        float mDeviation;
+    }
+}
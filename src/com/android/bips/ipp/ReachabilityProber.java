@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright (C) 2016 Mopria Alliance, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Determines whether hosts accept TCP connections on a port. All connection attempts are made
+ * without blocking and share a single selector thread, so any number of printers may be probed
+ * at once with a constant number of threads.
+ */
+public class ReachabilityProber implements AutoCloseable {
+    private static final String TAG = ReachabilityProber.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private final Handler mCallbackHandler;
+    private final Executor mResolver;
+    private final Queue<Probe> mPending = new ConcurrentLinkedQueue<>();
+    private Selector mSelector;
+    private Thread mThread;
+    private boolean mClosed;
+
+    /**
+     * @param callbackHandler handler on which to deliver probe results
+     * @param resolver executor on which host names may be resolved
+     */
+    ReachabilityProber(Handler callbackHandler, Executor resolver) {
+        mCallbackHandler = callbackHandler;
+        mResolver = resolver;
+    }
+
+    /**
+     * Begin checking whether a host accepts connections on a port.
+     *
+     * @param host host name or numeric address
+     * @param port TCP port
+     * @param timeout milliseconds to wait for a connection before reporting failure
+     * @param callback receives true if the host accepted a connection, or false. Not called
+     *                 if the probe is cancelled first.
+     * @return a probe which may be cancelled
+     */
+    public Probe probe(String host, int port, long timeout, Consumer<Boolean> callback) {
+        Probe probe = new Probe(timeout, callback);
+        mResolver.execute(() -> {
+            // Resolution may block for host names but not for numeric addresses
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            if (address.isUnresolved()) {
+                probe.finish(false);
+                return;
+            }
+            probe.mAddress = address;
+            submit(probe);
+        });
+        return probe;
+    }
+
+    /** Queue a probe for the selector thread, starting it if necessary */
+    private synchronized void submit(Probe probe) {
+        if (mClosed) {
+            probe.finish(false);
+            return;
+        }
+
+        if (mThread == null) {
+            try {
+                mSelector = Selector.open();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open selector", e);
+                probe.finish(false);
+                return;
+            }
+            mThread = new Thread(this::run, TAG);
+            mThread.start();
+        }
+        mPending.add(probe);
+        mSelector.wakeup();
+    }
+
+    /** Stop the selector thread. Outstanding probes report failure. */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        if (mThread != null) {
+            mThread.interrupt();
+            mSelector.wakeup();
+            mThread = null;
+        }
+    }
+
+    /** Cause the selector thread to re-examine its probes */
+    private synchronized void wakeup() {
+        if (mThread != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    /** Main loop of the selector thread */
+    private void run() {
+        Selector selector = mSelector;
+        List<Probe> active = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Probe probe;
+                while ((probe = mPending.poll()) != null) {
+                    if (probe.start(selector)) {
+                        active.add(probe);
+                    }
+                }
+
+                // Wait no longer than the earliest deadline
+                long now = SystemClock.elapsedRealtime();
+                long wait = 0;
+                for (Probe activeProbe : active) {
+                    long remaining = Math.max(1, activeProbe.mDeadline - now);
+                    wait = wait == 0 ? remaining : Math.min(wait, remaining);
+                }
+                selector.select(wait);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Probe connected = (Probe) key.attachment();
+                    connected.complete();
+                    active.remove(connected);
+                }
+
+                // Fail any probes which are out of time or no longer wanted
+                now = SystemClock.elapsedRealtime();
+                Iterator<Probe> probes = active.iterator();
+                while (probes.hasNext()) {
+                    Probe activeProbe = probes.next();
+                    if (activeProbe.mCancelled || now >= activeProbe.mDeadline) {
+                        probes.remove();
+                        activeProbe.close();
+                        activeProbe.finish(false);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Selector failure", e);
+        } finally {
+            for (Probe probe : active) {
+                probe.close();
+                probe.finish(false);
+            }
+            synchronized (this) {
+                if (mSelector == selector) {
+                    // Probes queued for this thread will never be started by it
+                    Probe probe;
+                    while ((probe = mPending.poll()) != null) {
+                        probe.finish(false);
+                    }
+
+                    // Allow the next submission to start a new thread
+                    mSelector = null;
+                    mThread = null;
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** A single attempt to connect to a host */
+    public class Probe {
+        private final long mDeadline;
+        private final Consumer<Boolean> mCallback;
+        private InetSocketAddress mAddress;
+        private SocketChannel mChannel;
+        private volatile boolean mCancelled;
+
+        Probe(long timeout, Consumer<Boolean> callback) {
+            mDeadline = SystemClock.elapsedRealtime() + timeout;
+            mCallback = callback;
+        }
+
+        /** Stop this probe. Its callback will not be called. */
+        public void cancel() {
+            mCancelled = true;
+            wakeup();
+        }
+
+        /** Begin connecting, returning true if the connection is still pending */
+        private boolean start(Selector selector) {
+            if (mCancelled) {
+                return false;
+            }
+            try {
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                if (mChannel.connect(mAddress)) {
+                    close();
+                    finish(true);
+                    return false;
+                }
+                mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+                return true;
+            } catch (IOException e) {
+                close();
+                finish(false);
+                return false;
+            }
+        }
+
+        /** Complete a pending connection */
+        private void complete() {
+            boolean connected;
+            try {
+                connected = mChannel.finishConnect();
+            } catch (IOException e) {
+                connected = false;
+            }
+            close();
+            finish(connected);
+        }
+
+        private void close() {
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException ignored) {
+                }
+                mChannel = null;
+            }
+        }
+
+        /** Deliver the result to the callback */
+        private void finish(boolean reachable) {
+            if (DEBUG) Log.d(TAG, "Probe " + mAddress + " reachable=" + reachable);
+            mCallbackHandler.post(() -> {
+                if (!mCancelled) {
+                    mCallback.accept(reachable);
+                }
+            });
+        }
+    }
+}
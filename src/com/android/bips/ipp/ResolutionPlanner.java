@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright (C) 2016 Mopria Alliance, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Chooses the resolution at which to render a PDF document. Rendering cost grows with the square
+ * of the resolution, so documents made only of scanned or photographic page images are rendered
+ * at the resolution their images hold, which may be below or above the default. All other
+ * documents are rendered at the default resolution, or the printer's if that is lower.
+ */
+class ResolutionPlanner {
+    private static final String TAG = ResolutionPlanner.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** Resolution chosen unless the document's content is known to need another */
+    static final int DEFAULT_RESOLUTION = 300;
+
+    /** Lowest resolution ever chosen */
+    private static final int MIN_RESOLUTION = 150;
+
+    /** Chosen resolutions are multiples of this */
+    private static final int RESOLUTION_STEP = 75;
+
+    /**
+     * Largest relative difference between the horizontal and vertical resolution of an image
+     * stretched over the whole page. Allows for letter scans placed on A4 pages and vice versa.
+     */
+    private static final float PLACEMENT_TOLERANCE = 0.1f;
+
+    /** Documents larger than this are not examined */
+    private static final long MAX_SCAN_BYTES = 64 * 1024 * 1024;
+
+    /** Size of each block of the document examined at once */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /** Bytes carried over between blocks so that dictionaries spanning them are still seen */
+    private static final int OVERLAP = 4096;
+
+    /** Furthest distance searched back from a stream to the start of its dictionary */
+    private static final int DICTIONARY_WINDOW = 2048;
+
+    /** Most bytes of a compressed stream examined for inline images */
+    private static final int MAX_INFLATED_BYTES = 1024 * 1024;
+
+    /** Size of each block of a compressed stream examined at once */
+    private static final int INFLATE_CHUNK_SIZE = 16 * 1024;
+
+    /** Characters carried over between inflated blocks so that operators spanning them are seen */
+    private static final int INFLATE_OVERLAP = 16;
+
+    /** Start of stream data, but not the end of a stream */
+    private static final Pattern STREAM = Pattern.compile("(?<!end)stream\\r?\\n");
+    private static final Pattern IMAGE = Pattern.compile("/Subtype\\s*/Image\\b");
+    private static final Pattern FLATE = Pattern.compile("/Filter\\s*\\[?\\s*/FlateDecode\\b");
+    private static final Pattern WIDTH = Pattern.compile("/Width\\s+(\\d+)(\\s+\\d+\\s+R)?");
+    private static final Pattern HEIGHT = Pattern.compile("/Height\\s+(\\d+)(\\s+\\d+\\s+R)?");
+
+    /** Start of an inline image drawn by a content stream */
+    private static final Pattern INLINE_IMAGE = Pattern.compile("\\bBI\\s*/(W|Width)\\b");
+
+    /** Fonts, or object streams which may hide them, mean the document may contain text */
+    private static final Pattern TEXT = Pattern.compile(
+            "/Type\\s*/(Font|FontDescriptor|ObjStm)\\b");
+
+    /**
+     * Return the resolution at which to render the document.
+     *
+     * @param pageCount number of pages in the document
+     * @param pageWidth width of the first page in inches
+     * @param pageHeight height of the first page in inches
+     * @param printResolution resolution at which the printer will print
+     */
+    static int plan(File file, int pageCount, float pageWidth, float pageHeight,
+            int printResolution) {
+        int defaultResolution = Math.min(printResolution, DEFAULT_RESOLUTION);
+        if (pageCount <= 0 || pageWidth <= 0 || pageHeight <= 0
+                || printResolution <= MIN_RESOLUTION || file.length() > MAX_SCAN_BYTES) {
+            return defaultResolution;
+        }
+
+        float longSide = Math.max(pageWidth, pageHeight);
+        float shortSide = Math.min(pageWidth, pageHeight);
+        Content content;
+        try {
+            content = scan(file, longSide, shortSide);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not examine " + file, e);
+            return defaultResolution;
+        }
+
+        // Only whole-page images, one per page or one shown on every page, hold no finer detail
+        if (content == null || (content.mImages != pageCount && content.mImages != 1)) {
+            if (DEBUG) {
+                Log.d(TAG, "Rendering at " + defaultResolution + " dpi, content=" + content);
+            }
+            return defaultResolution;
+        }
+
+        float imageResolution = Math.max(content.mMaxLongSide / longSide,
+                content.mMaxShortSide / shortSide);
+        int resolution = (int) Math.ceil(imageResolution / RESOLUTION_STEP) * RESOLUTION_STEP;
+        resolution = Math.max(MIN_RESOLUTION, Math.min(printResolution, resolution));
+        if (DEBUG) {
+            Log.d(TAG, "Rendering at " + resolution + " dpi for images of " + imageResolution
+                    + " dpi");
+        }
+        return resolution;
+    }
+
+    /**
+     * Return a summary of the images in the document, or null if it may contain anything other
+     * than whole-page images of known size
+     */
+    private static Content scan(File file, float longSide, float shortSide) throws IOException {
+        Content content = new Content(longSide, shortSide);
+        byte[] buffer = new byte[CHUNK_SIZE + OVERLAP];
+        int carried = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer, carried, CHUNK_SIZE)) > 0) {
+                int length = carried + read;
+                String text = new String(buffer, 0, length, StandardCharsets.ISO_8859_1);
+                if (TEXT.matcher(text).find() || INLINE_IMAGE.matcher(text).find()) {
+                    return null;
+                }
+
+                // Streams found in the overlap were already examined with the previous block
+                Matcher stream = STREAM.matcher(text);
+                while (stream.find()) {
+                    if (stream.start() >= carried
+                            && !examineStream(content, buffer, text, stream, length)) {
+                        return null;
+                    }
+                }
+
+                carried = Math.min(OVERLAP, length);
+                System.arraycopy(buffer, length - carried, buffer, 0, carried);
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Record an image stream or look inside a compressed stream for inline images, returning
+     * false if the stream's dictionary cannot be found or its content is not acceptable
+     */
+    private static boolean examineStream(Content content, byte[] buffer, String text,
+            Matcher stream, int length) {
+        // Stream dictionaries lie between "obj" and the start of their stream
+        int start = text.lastIndexOf("obj", stream.start());
+        if (start < 0 || stream.start() - start > DICTIONARY_WINDOW) {
+            return false;
+        }
+        String dictionary = text.substring(start, stream.start());
+        if (IMAGE.matcher(dictionary).find()) {
+            return content.addImage(dictionary);
+        } else if (FLATE.matcher(dictionary).find()) {
+            // Content streams are usually compressed so their inline images must be inflated.
+            // Only the part of the stream within this block is examined.
+            return !mayContainInlineImage(buffer, stream.end(), length - stream.end());
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the compressed stream starting at the offset contains an inline image, or
+     * is too large or corrupt to tell
+     */
+    private static boolean mayContainInlineImage(byte[] buffer, int offset, int length) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(buffer, offset, length);
+        byte[] output = new byte[INFLATE_CHUNK_SIZE];
+        String tail = "";
+        int total = 0;
+        try {
+            int count;
+            while ((count = inflater.inflate(output)) > 0) {
+                String text = tail + new String(output, 0, count, StandardCharsets.ISO_8859_1);
+                if (INLINE_IMAGE.matcher(text).find()) {
+                    return true;
+                }
+                total += count;
+                if (total > MAX_INFLATED_BYTES) {
+                    return true;
+                }
+                tail = text.substring(Math.max(0, text.length() - INFLATE_OVERLAP));
+            }
+            return inflater.needsDictionary();
+        } catch (DataFormatException e) {
+            return true;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Images found in a document */
+    private static class Content {
+        final float mLongSide;
+        final float mShortSide;
+        int mImages;
+        int mMaxLongSide;
+        int mMaxShortSide;
+
+        Content(float longSide, float shortSide) {
+            mLongSide = longSide;
+            mShortSide = shortSide;
+        }
+
+        /**
+         * Record the image with the specified dictionary, returning false if its dimensions
+         * cannot be found or it would not fill the page
+         */
+        boolean addImage(String dictionary) {
+            int width = getValue(WIDTH, dictionary);
+            int height = getValue(HEIGHT, dictionary);
+            if (width <= 0 || height <= 0) {
+                return false;
+            }
+            int longSide = Math.max(width, height);
+            int shortSide = Math.min(width, height);
+
+            // A whole-page image has the same resolution in both directions
+            float longResolution = longSide / mLongSide;
+            float shortResolution = shortSide / mShortSide;
+            if (Math.abs(longResolution - shortResolution)
+                    > PLACEMENT_TOLERANCE * Math.max(longResolution, shortResolution)) {
+                if (DEBUG) Log.d(TAG, "Image " + width + "x" + height + " does not fill page");
+                return false;
+            }
+            mImages++;
+            mMaxLongSide = Math.max(mMaxLongSide, longSide);
+            mMaxShortSide = Math.max(mMaxShortSide, shortSide);
+            return true;
+        }
+
+        /** Return a direct integer value from the dictionary, or 0 if there is none */
+        private static int getValue(Pattern pattern, String dictionary) {
+            Matcher matcher = pattern.matcher(dictionary);
+            if (!matcher.find() || matcher.group(2) != null) {
+                return 0;
+            }
+            try {
+                return Integer.parseInt(matcher.group(1));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Content{images=" + mImages + " long=" + mMaxLongSide + " short="
+                    + mMaxShortSide + "}";
+        }
+    }
+}
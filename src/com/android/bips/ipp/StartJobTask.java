@@ -23,10 +23,14 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.print.PrintAttributes;
 import android.print.PrintDocumentInfo;
 import android.print.PrintJobInfo;
 import android.printservice.PrintJob;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 import android.view.Gravity;
 
@@ -37,10 +41,12 @@ import com.android.bips.jni.LocalPrinterCapabilities;
 import com.android.bips.jni.MediaSizes;
 import com.android.bips.util.FileUtils;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /**
  * A background task that starts sending a print job. The result of this task is an integer
@@ -52,6 +58,9 @@ class StartJobTask extends AsyncTask<Void, Void, Integer> {
 
     private static final String MIME_TYPE_PDF = "application/pdf";
 
+    /** Path prefix through which an open file descriptor may be re-opened by name */
+    private static final String FD_PATH_PREFIX = "/proc/self/fd/";
+
     // see wprint_df_types.h for enum values
     private static final int MEDIA_TYPE_PLAIN = 0;
     private static final int MEDIA_TYPE_AUTO = 98;
@@ -77,22 +86,25 @@ class StartJobTask extends AsyncTask<Void, Void, Integer> {
     private final LocalPrinterCapabilities mCapabilities;
     private final LocalJobParams mJobParams;
     private final ParcelFileDescriptor mSourceFileDescriptor;
-    private final String mJobId;
+    private final File mSpoolFile;
+    private final Executor mSpoolExecutor;
     private final PrintJobInfo mJobInfo;
     private final PrintDocumentInfo mDocInfo;
     private final MediaSizes mMediaSizes;
 
     StartJobTask(Context context, Backend backend, Uri destination, PrintJob printJob,
-            LocalPrinterCapabilities capabilities) {
+            LocalPrinterCapabilities capabilities, ParcelFileDescriptor source, File spoolFile,
+            Executor spoolExecutor) {
         mContext = context;
         mBackend = backend;
         mDestination = destination;
         mCapabilities = capabilities;
         mJobParams = new LocalJobParams();
-        mJobId = printJob.getId().toString();
+        mSpoolFile = spoolFile;
+        mSpoolExecutor = spoolExecutor;
         mJobInfo = printJob.getInfo();
         mDocInfo = printJob.getDocument().getInfo();
-        mSourceFileDescriptor = printJob.getDocument().getData();
+        mSourceFileDescriptor = source;
         mMediaSizes = MediaSizes.getInstance(mContext);
     }
 
@@ -128,22 +140,29 @@ class StartJobTask extends AsyncTask<Void, Void, Integer> {
     @Override
     protected Integer doInBackground(Void... voids) {
         if (DEBUG) Log.d(TAG, "doInBackground() job=" + mJobParams + ", cap=" + mCapabilities);
-        File tempFolder = new File(mContext.getFilesDir(), Backend.TEMP_JOB_FOLDER);
-        if (!FileUtils.makeDirectory(tempFolder)) {
-            Log.w(TAG, "makeDirectory failure");
-            return Backend.ERROR_FILE;
-        }
-
-        File pdfFile = new File(tempFolder, mJobId + ".pdf");
+        long start = SystemClock.elapsedRealtime();
+        File pdfFile = null;
+        FutureTask<Long> spool = null;
+        long spoolWait = 0;
+        long spoolSize = 0;
         try {
-            try {
-                FileUtils.copy(new ParcelFileDescriptor.AutoCloseInputStream(mSourceFileDescriptor),
-                        new BufferedOutputStream(new FileOutputStream(pdfFile)));
-            } catch (IOException e) {
-                Log.w(TAG, "Error while copying to " + pdfFile, e);
+            if (!FileUtils.makeDirectory(mSpoolFile.getParentFile())) {
+                Log.w(TAG, "makeDirectory failure");
                 return Backend.ERROR_FILE;
             }
-            String[] files = new String[]{pdfFile.toString()};
+
+            String path = getDirectPath();
+            if (path == null) {
+                // The source cannot be read in place so spool a copy of it
+                pdfFile = mSpoolFile;
+                spool = new FutureTask<>(() -> FileUtils.copy(
+                        new ParcelFileDescriptor.AutoCloseInputStream(mSourceFileDescriptor)
+                                .getChannel(),
+                        new FileOutputStream(mSpoolFile).getChannel()));
+                mSpoolExecutor.execute(spool);
+                path = pdfFile.toString();
+            }
+            String[] files = new String[]{path};
 
             // Address, without port.
             String address = mDestination.getHost() + mDestination.getPath();
@@ -152,7 +171,7 @@ class StartJobTask extends AsyncTask<Void, Void, Integer> {
                 return Backend.ERROR_CANCEL;
             }
 
-            // Get default job parameters
+            // Get default job parameters while any spool copy proceeds
             int result = mBackend.nativeGetDefaultJobParameters(mJobParams);
             if (result != 0) {
                 if (DEBUG) Log.w(TAG, "nativeGetDefaultJobParameters failure: " + result);
@@ -165,9 +184,30 @@ class StartJobTask extends AsyncTask<Void, Void, Integer> {
 
             // Fill in job parameters from capabilities and print job info.
             populateJobParams();
+
+            if (spool != null) {
+                // The page-size probe, resolution planning and native job all need a complete,
+                // seekable document, so the copy can only overlap the steps above. Copy here if
+                // no pool thread has taken it yet, so that start tasks filling the pool never
+                // wait on copies queued behind them.
+                long spoolStart = SystemClock.elapsedRealtime();
+                spool.run();
+                try {
+                    spoolSize = spool.get();
+                    spoolWait = SystemClock.elapsedRealtime() - spoolStart;
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Error while copying to " + pdfFile, e.getCause());
+                    return Backend.ERROR_FILE;
+                } catch (InterruptedException e) {
+                    return Backend.ERROR_CANCEL;
+                }
+            }
+
+            int pageCount = 0;
             try (PdfRenderer renderer = new PdfRenderer(
-                    ParcelFileDescriptor.open(pdfFile, ParcelFileDescriptor.MODE_READ_ONLY));
+                    ParcelFileDescriptor.open(new File(path), ParcelFileDescriptor.MODE_READ_ONLY));
                  PdfRenderer.Page page = renderer.openPage(0)) {
+                pageCount = renderer.getPageCount();
                 if (mJobParams.portrait_mode) {
                     mJobParams.source_height = (float) page.getHeight() / 72;
                     mJobParams.source_width = (float) page.getWidth() / 72;
@@ -182,6 +222,12 @@ class StartJobTask extends AsyncTask<Void, Void, Integer> {
             // Finalize job parameters
             mBackend.nativeGetFinalJobParameters(mJobParams, mCapabilities);
 
+            // Render at the default resolution unless the document's content needs another
+            mJobParams.pdf_render_resolution = ResolutionPlanner.plan(new File(path), pageCount,
+                    mJobParams.source_width, mJobParams.source_height,
+                    mJobParams.print_resolution > 0 ? mJobParams.print_resolution
+                            : RESOLUTION_300_DPI);
+
             if (isCancelled()) {
                 return Backend.ERROR_CANCEL;
             }
@@ -198,16 +244,54 @@ class StartJobTask extends AsyncTask<Void, Void, Integer> {
                 Log.w(TAG, "nativeStartJob failure: " + result);
                 return Backend.ERROR_UNKNOWN;
             }
+            Log.i(TAG, "Job started in " + (SystemClock.elapsedRealtime() - start) + "ms"
+                    + (spool == null ? ", document read in place"
+                    : ", waited " + spoolWait + "ms for " + spoolSize + " byte spool copy"));
 
             pdfFile = null;
             return result;
         } finally {
+            if (spool != null) {
+                spool.cancel(true);
+            }
             if (pdfFile != null) {
                 pdfFile.delete();
             }
         }
     }
 
+    /**
+     * Return a path through which the source document can be re-opened in place, or null if the
+     * source is not a seekable file (for example, a pipe) and must be spooled first.
+     *
+     * <p>The path is a link at the spool file location rather than the descriptor's own path.
+     * Descriptor numbers are reused once a job's source is closed, while renderers cache open
+     * documents by name, so each job's document needs a name of its own.
+     */
+    private String getDirectPath() {
+        try {
+            if (!OsConstants.S_ISREG(Os.fstat(mSourceFileDescriptor.getFileDescriptor()).st_mode)) {
+                return null;
+            }
+            mSpoolFile.delete();
+            Os.symlink(FD_PATH_PREFIX + mSourceFileDescriptor.getFd(), mSpoolFile.getPath());
+        } catch (ErrnoException e) {
+            if (DEBUG) Log.d(TAG, "Cannot link to source", e);
+            return null;
+        }
+
+        // Make sure we are permitted to open the file by name before handing the path on
+        try (ParcelFileDescriptor ignored = ParcelFileDescriptor.open(mSpoolFile,
+                ParcelFileDescriptor.MODE_READ_ONLY)) {
+            return mSpoolFile.getPath();
+        } catch (IOException e) {
+            if (DEBUG) Log.d(TAG, "Cannot re-open " + mSpoolFile, e);
+            // Remove the link so that spooling does not write through it
+            mSpoolFile.delete();
+            return null;
+        }
+    }
+
     private boolean isBorderless() {
         return mCapabilities.borderless
                 && mDocInfo.getContentType() == PrintDocumentInfo.CONTENT_TYPE_PHOTO;
@@ -24,6 +24,8 @@ import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.util.Log;
 
 import com.android.bips.render.IPdfRender;
@@ -31,26 +33,45 @@ import com.android.bips.render.PdfRenderService;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 /**
- * Renders pages of a PDF into an RGB buffer. For security, relies on a remote rendering service.
+ * Renders pages of a PDF into shared RGBA or gray buffers. For security, relies on remote rendering
+ * services.
  */
 public class PdfRender {
     private static final String TAG = PdfRender.class.getSimpleName();
     private static final boolean DEBUG = false;
 
+    /** Most regions kept for reuse by each document, as native code holds up to four stripes */
+    private static final int MAX_FREE_REGIONS = 4;
+
     /** The current singleton instance */
     private static final Object sLock = new Object();
     private static PdfRender sInstance;
 
     private final Context mContext;
     private final Intent mIntent;
+    private final RenderAhead mRenderAhead;
     private IPdfRender mService;
     private String mCurrentFile;
 
+    /** Page count of each document opened since the last {@link #closeDocument} */
+    private final Map<String, Integer> mPageCounts = new HashMap<>();
+
+    /** Size of the page most recently measured in each document */
+    private final Map<String, SizeD> mPageSizes = new HashMap<>();
+
+    /** Stripe regions released by native code and kept for reuse by each open document */
+    private final Map<String, Deque<SharedMemory>> mFreeRegions = new HashMap<>();
+
+    /** Document of each stripe region not yet released, guarded by mFreeRegions */
+    private final Map<SharedMemory, String> mRegionDocuments = new HashMap<>();
+
     /**
      * Returns the PdfRender singleton, creating it if necessary.
      */
@@ -81,11 +102,13 @@ public class PdfRender {
     private PdfRender(Context context) {
         mContext = context;
         mIntent = new Intent(context, PdfRenderService.class);
+        mRenderAhead = new RenderAhead(context, mIntent);
         context.bindService(mIntent, mConnection, Context.BIND_AUTO_CREATE);
     }
 
     /** Shut down the PDF renderer */
     public void close() {
+        mRenderAhead.clear();
         mContext.unbindService(mConnection);
         mService = null;
 
@@ -98,39 +121,59 @@ public class PdfRender {
      * Opens the specified document, returning the page count or 0 on error. (Called by native
      * code.)
      */
-    private int openDocument(String fileName) {
+    private synchronized int openDocument(String fileName) {
         if (DEBUG) Log.d(TAG, "openDocument() " + fileName);
         if (mService == null) {
             return 0;
         }
 
-        if (mCurrentFile != null && !mCurrentFile.equals(fileName)) {
-            closeDocument();
+        // Native code opens the document again for each page
+        if (fileName.equals(mCurrentFile) && mPageCounts.containsKey(fileName)) {
+            return mPageCounts.get(fileName);
         }
 
+        // The service closes any previously open document when opening a new one
+        mCurrentFile = null;
+
         try {
             ParcelFileDescriptor pfd = ParcelFileDescriptor.open(new File(fileName),
                     ParcelFileDescriptor.MODE_READ_ONLY);
-            return mService.openDocument(pfd);
+            int pages = mService.openDocument(pfd);
+            mCurrentFile = pages > 0 ? fileName : null;
+            mPageCounts.put(fileName, pages);
+            return pages;
         } catch (RemoteException | FileNotFoundException ex) {
             Log.w(TAG, "Failed to open " + fileName, ex);
             return 0;
         }
     }
 
+    /**
+     * Ensure the specified document is the one open in the renderer. Several jobs may be rendering
+     * at once, each of which may have caused a different document to be opened.
+     */
+    private boolean ensureOpen(String fileName) {
+        return fileName.equals(mCurrentFile) || openDocument(fileName) > 0;
+    }
+
     /**
      * Returns the size of the specified page or null on error. (Called by native code.)
+     * @param fileName document containing the page
      * @param page 0-based page
      * @return width and height of page in points (1/72")
      */
-    public SizeD getPageSize(int page) {
+    public synchronized SizeD getPageSize(String fileName, int page) {
         if (DEBUG) Log.d(TAG, "getPageSize() page=" + page);
-        if (mService == null) {
+        if (mService == null || !ensureOpen(fileName)) {
             return null;
         }
 
         try {
-            return mService.getPageSize(page - 1);
+            SizeD size = mService.getPageSize(page - 1);
+            if (size != null) {
+                mPageSizes.put(fileName, size);
+            }
+            return size;
         } catch (RemoteException | IllegalArgumentException ex) {
             Log.w(TAG, "getPageWidth failed", ex);
             return null;
@@ -138,58 +181,175 @@ public class PdfRender {
     }
 
     /**
-     * Renders the content of the page. (Called by native code.)
+     * Renders part of a page into shared memory. Pages may already have been rendered ahead by
+     * other renderer processes, in which case memory holding the whole page is returned without
+     * further work. Memory returned must be passed to {@link #releaseStripe} when no longer
+     * needed. (Called by native code.)
+     * @param fileName document containing the page
      * @param page 0-based page
      * @param y y-offset onto page
      * @param width width of area to render
      * @param height height of area to render
      * @param zoomFactor zoom factor to use when rendering data
-     * @param target target byte buffer to fill with results
-     * @return true if rendering was successful
+     * @param components bytes per pixel: 4 for RGBA or 1 for gray
+     * @return shared memory holding the requested width * height * components bytes of pixel
+     * data at {@link #getStripeOffset}, or null on failure
      */
-    public boolean renderPageStripe(int page, int y, int width, int height,
-            double zoomFactor, ByteBuffer target) {
+    public SharedMemory renderPageStripe(String fileName, int page, int y, int width,
+            int height, double zoomFactor, int components) {
         if (DEBUG) {
             Log.d(TAG, "renderPageStripe() page=" + page + " y=" + y + " w=" + width
-                    + " h=" + height + " zoom=" + zoomFactor);
+                    + " h=" + height + " zoom=" + zoomFactor + " components=" + components);
         }
-        if (mService == null) {
-            return false;
+
+        SharedMemory memory = mRenderAhead.get(fileName, page, y, width, height, zoomFactor,
+                components);
+        if (memory == null) {
+            memory = render(fileName, page, y, width, height, zoomFactor, components);
         }
 
-        try {
-            long start = System.currentTimeMillis();
-            ParcelFileDescriptor input = mService.renderPageStripe(page - 1, y, width, height,
-                    zoomFactor);
-
-            // Copy received data into the ByteBuffer
-            int expectedSize = width * height * 3;
-            byte[] readBuffer = new byte[128 * 1024];
-            try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(input)) {
-                int length;
-                while ((length = in.read(readBuffer, 0, readBuffer.length)) > 0) {
-                    target.put(readBuffer, 0, length);
+        // Look ahead when each new page begins
+        if (memory != null && y == 0) {
+            int pageCount;
+            long pageBytes;
+            synchronized (this) {
+                pageCount = mPageCounts.getOrDefault(fileName, 0);
+                SizeD size = mPageSizes.get(fileName);
+                pageBytes = size == null ? (long) width * height * components
+                        : (long) (int) (size.getWidth() * zoomFactor)
+                        * (int) (size.getHeight() * zoomFactor) * components;
+            }
+            mRenderAhead.schedule(fileName, page, pageCount, zoomFactor, components, pageBytes);
+        }
+        return memory;
+    }
+
+    /**
+     * Return the offset in bytes of the requested rows within memory returned by
+     * {@link #renderPageStripe}. Only pages rendered ahead hold rows before those requested.
+     * (Called by native code.)
+     */
+    public long getStripeOffset(SharedMemory memory, int y, int width, int components) {
+        return mRenderAhead.isRetained(memory) ? (long) y * width * components : 0;
+    }
+
+    /** Release memory returned by {@link #renderPageStripe}. (Called by native code.) */
+    public void releaseStripe(SharedMemory memory) {
+        if (!mRenderAhead.isRetained(memory)) {
+            recycleRegion(memory);
+        }
+    }
+
+    /** Return a region of at least the specified size for the document, reusing a free one */
+    private SharedMemory obtainRegion(String fileName, int size) throws ErrnoException {
+        synchronized (mFreeRegions) {
+            Deque<SharedMemory> free = mFreeRegions.computeIfAbsent(fileName,
+                    name -> new ArrayDeque<>());
+            Iterator<SharedMemory> iterator = free.iterator();
+            while (iterator.hasNext()) {
+                SharedMemory memory = iterator.next();
+                if (memory.getSize() >= size) {
+                    iterator.remove();
+                    mRegionDocuments.put(memory, fileName);
+                    return memory;
                 }
             }
-            if (target.position() != expectedSize) {
-                Log.w(TAG, "Render failed: expected " + target.position() + ", got "
-                        + expectedSize + " bytes");
-                return false;
+            if (free.size() >= MAX_FREE_REGIONS) {
+                // Stripes have grown, so make room for a larger region
+                free.removeLast().close();
             }
+        }
+
+        SharedMemory memory = SharedMemory.create(TAG, size);
+        synchronized (mFreeRegions) {
+            mRegionDocuments.put(memory, fileName);
+        }
+        return memory;
+    }
+
+    /** Keep a region for further stripes of its document, or close it if not wanted */
+    private void recycleRegion(SharedMemory memory) {
+        synchronized (mFreeRegions) {
+            String fileName = mRegionDocuments.remove(memory);
+            Deque<SharedMemory> free = fileName == null ? null : mFreeRegions.get(fileName);
+            if (free != null && free.size() < MAX_FREE_REGIONS) {
+                free.addFirst(memory);
+                return;
+            }
+        }
+        memory.close();
+    }
+
+    /** Close regions kept for the document, or for all documents if null */
+    private void closeFreeRegions(String fileName) {
+        synchronized (mFreeRegions) {
+            for (Map.Entry<String, Deque<SharedMemory>> entry : mFreeRegions.entrySet()) {
+                if (fileName == null || fileName.equals(entry.getKey())) {
+                    for (SharedMemory memory : entry.getValue()) {
+                        memory.close();
+                    }
+                }
+            }
+            if (fileName == null) {
+                mFreeRegions.clear();
+            } else {
+                mFreeRegions.remove(fileName);
+            }
+        }
+    }
 
-            if (DEBUG) Log.d(TAG, "Received (" + (System.currentTimeMillis() - start) + "ms)");
-            return true;
-        } catch (RemoteException | IOException | IllegalArgumentException | OutOfMemoryError ex) {
+    /** Render part of a page using the primary renderer, returning the result or null */
+    private synchronized SharedMemory render(String fileName, int page, int y, int width,
+            int height, double zoomFactor, int components) {
+        if (mService == null || !ensureOpen(fileName)) {
+            return null;
+        }
+
+        SharedMemory memory = null;
+        try {
+            long start = System.currentTimeMillis();
+            memory = obtainRegion(fileName, width * height * components);
+            if (!mService.renderPageStripe(page - 1, y, width, height, zoomFactor, components,
+                    memory)) {
+                Log.w(TAG, "Render failed");
+                recycleRegion(memory);
+                return null;
+            }
+            if (DEBUG) Log.d(TAG, "Rendered (" + (System.currentTimeMillis() - start) + "ms)");
+            return memory;
+        } catch (RemoteException | ErrnoException | IllegalArgumentException ex) {
             Log.w(TAG, "Render failed", ex);
-            return false;
+            if (memory != null) {
+                recycleRegion(memory);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Forget everything held for the specified document, which will not be rendered again.
+     */
+    public synchronized void releaseDocument(String fileName) {
+        if (DEBUG) Log.d(TAG, "releaseDocument() " + fileName);
+        if (fileName.equals(mCurrentFile)) {
+            mCurrentFile = null;
         }
+        mPageCounts.remove(fileName);
+        mPageSizes.remove(fileName);
+        closeFreeRegions(fileName);
+        mRenderAhead.release(fileName);
     }
 
     /**
      * Releases any open resources for the current document and page.
      */
-    public void closeDocument() {
+    public synchronized void closeDocument() {
         if (DEBUG) Log.d(TAG, "closeDocument()");
+        mCurrentFile = null;
+        mPageCounts.clear();
+        mPageSizes.clear();
+        closeFreeRegions(null);
+        mRenderAhead.clear();
         if (mService == null) {
             return;
         }
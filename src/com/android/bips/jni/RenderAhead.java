@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright (C) 2016 Mopria Alliance, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.jni;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import com.android.bips.render.IPdfRender;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Renders upcoming pages of a document before they are requested, using additional isolated
+ * renderer processes so that pages are rasterized on separate cores while earlier pages are
+ * encoded. (PdfRenderer serializes all rendering within a process, so parallel rendering
+ * requires separate processes.) Pages rendered ahead are held in shared memory, the total size
+ * of which is bounded by a memory budget.
+ */
+class RenderAhead {
+    private static final String TAG = RenderAhead.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** Maximum number of additional renderer processes */
+    private static final int MAX_HELPERS = 3;
+
+    /** Upper limit on memory held by pages rendered ahead */
+    private static final long MAX_BUDGET = 192 * 1024 * 1024;
+
+    /** Fraction of available system memory which may be held by pages rendered ahead */
+    private static final int BUDGET_DIVISOR = 8;
+
+    /** Time to wait for a helper process to start */
+    private static final long CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Time to wait for a helper to become free or for a page rendered ahead, after which the
+     * page is rendered by the primary renderer instead
+     */
+    private static final long RENDER_TIMEOUT = 30000;
+
+    private final Context mContext;
+    private final Intent mIntent;
+    private final int mHelperCount;
+    private final List<Helper> mHelpers = new ArrayList<>();
+    private final BlockingQueue<Helper> mIdleHelpers = new LinkedBlockingQueue<>();
+    private final Map<String, Ahead> mPages = new HashMap<>();
+
+    /** The page most recently taken from each document */
+    private final Map<String, Retained> mRetained = new HashMap<>();
+
+    private ExecutorService mExecutor;
+    private long mBudget;
+    private long mReserved;
+
+    /** True once a page was not rendered ahead in time, after which helpers are not waited for */
+    private boolean mUnresponsive;
+
+    RenderAhead(Context context, Intent intent) {
+        mContext = context;
+        mIntent = intent;
+        mHelperCount = Math.min(MAX_HELPERS, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Return shared memory holding the whole of a page previously rendered ahead, waiting for it
+     * if still in progress, or null if the requested rows were not rendered ahead. The page is
+     * retained until another page of the same document is requested, so the caller must not
+     * close it (see {@link #isRetained}).
+     */
+    SharedMemory get(String fileName, int page, int y, int width, int height,
+            double zoomFactor, int components) {
+        Ahead ahead;
+        long timeout;
+        synchronized (this) {
+            Retained retained = mRetained.get(fileName);
+            if (retained != null && retained.mPage == page
+                    && retained.mZoomFactor == zoomFactor) {
+                return retained.mRendered.covers(y, width, height, components)
+                        ? retained.mRendered.mMemory : null;
+            }
+
+            ahead = mPages.remove(getKey(fileName, page, zoomFactor, components));
+            if (ahead == null) {
+                return null;
+            }
+            timeout = mUnresponsive ? 0 : RENDER_TIMEOUT;
+        }
+
+        Rendered rendered;
+        try {
+            rendered = ahead.mFuture.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Page " + page + " not rendered ahead in time");
+            synchronized (this) {
+                ahead.discard();
+                mUnresponsive = true;
+            }
+            return null;
+        } catch (InterruptedException | ExecutionException e) {
+            rendered = null;
+        }
+        if (rendered == null) {
+            synchronized (this) {
+                ahead.discard();
+            }
+            return null;
+        }
+
+        synchronized (this) {
+            // Readers are finished with the previous page once they move to another
+            Retained previous = mRetained.put(fileName, new Retained(page, zoomFactor, rendered));
+            mReserved += rendered.getSize() - ahead.mSize;
+            if (previous != null) {
+                mReserved -= previous.mRendered.getSize();
+                previous.mRendered.mMemory.close();
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Using page " + page + " rendered ahead");
+        return rendered.covers(y, width, height, components) ? rendered.mMemory : null;
+    }
+
+    /** Return true if the memory holds a page retained by this object */
+    synchronized boolean isRetained(SharedMemory memory) {
+        for (Retained retained : mRetained.values()) {
+            if (retained.mRendered.mMemory == memory) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Begin rendering pages following the specified page, as far as the memory budget allows.
+     *
+     * @param pageCount number of pages in the document
+     * @param components bytes per pixel to render
+     * @param pageBytes estimated size of each rendered page
+     */
+    synchronized void schedule(String fileName, int page, int pageCount, double zoomFactor,
+            int components, long pageBytes) {
+        if (mHelperCount <= 0 || mUnresponsive) {
+            return;
+        }
+        bind();
+        if (mHelpers.isEmpty()) {
+            // No helper could be bound, so nothing would ever render queued pages
+            return;
+        }
+
+        for (int next = page + 1; next <= page + mHelperCount && next <= pageCount; next++) {
+            String key = getKey(fileName, next, zoomFactor, components);
+            if (mPages.containsKey(key)) {
+                continue;
+            }
+            if (mReserved + pageBytes > mBudget) {
+                break;
+            }
+            final int nextPage = next;
+            mReserved += pageBytes;
+            Ahead ahead = new Ahead(fileName, pageBytes);
+            ahead.mFuture = mExecutor.submit(() -> ahead.render(nextPage, zoomFactor,
+                    components));
+            mPages.put(key, ahead);
+        }
+    }
+
+    /** Discard all pages of the document rendered ahead, including any being read */
+    synchronized void release(String fileName) {
+        Iterator<Ahead> iterator = mPages.values().iterator();
+        while (iterator.hasNext()) {
+            Ahead ahead = iterator.next();
+            if (ahead.mFileName.equals(fileName)) {
+                iterator.remove();
+                ahead.discard();
+            }
+        }
+
+        Retained retained = mRetained.remove(fileName);
+        if (retained != null) {
+            mReserved -= retained.mRendered.getSize();
+            retained.mRendered.mMemory.close();
+        }
+
+        // A later document may be given the same name
+        for (Helper helper : mHelpers) {
+            helper.forget(fileName);
+        }
+    }
+
+    /** Discard all pages rendered ahead and release helper processes */
+    synchronized void clear() {
+        for (Ahead ahead : mPages.values()) {
+            ahead.discard();
+        }
+        mPages.clear();
+        for (Retained retained : mRetained.values()) {
+            mReserved -= retained.mRendered.getSize();
+            retained.mRendered.mMemory.close();
+        }
+        mRetained.clear();
+        mUnresponsive = false;
+
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+        for (Helper helper : mHelpers) {
+            mContext.unbindService(helper);
+        }
+        mHelpers.clear();
+        mIdleHelpers.clear();
+    }
+
+    /** Start helper processes if not already started */
+    private void bind() {
+        if (mExecutor != null) {
+            return;
+        }
+
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        mContext.getSystemService(ActivityManager.class).getMemoryInfo(memoryInfo);
+        mBudget = Math.min(MAX_BUDGET, memoryInfo.availMem / BUDGET_DIVISOR);
+        if (DEBUG) Log.d(TAG, "Starting " + mHelperCount + " helpers, budget=" + mBudget);
+
+        mExecutor = Executors.newFixedThreadPool(mHelperCount);
+        for (int i = 0; i < mHelperCount; i++) {
+            Helper helper = new Helper();
+            if (mContext.bindIsolatedService(mIntent, Context.BIND_AUTO_CREATE, TAG + i,
+                    mContext.getMainExecutor(), helper)) {
+                mHelpers.add(helper);
+                mIdleHelpers.add(helper);
+            }
+        }
+    }
+
+    /** Render a page using the next available helper, returning null on failure */
+    private Rendered render(String fileName, int page, double zoomFactor, int components)
+            throws InterruptedException {
+        Helper helper = mIdleHelpers.poll(RENDER_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (helper == null) {
+            Log.w(TAG, "No helper free to render page " + page);
+            return null;
+        }
+        try {
+            return helper.render(fileName, page, zoomFactor, components);
+        } finally {
+            mIdleHelpers.add(helper);
+        }
+    }
+
+    private static String getKey(String fileName, int page, double zoomFactor,
+            int components) {
+        return fileName + ":" + page + ":" + zoomFactor + ":" + components;
+    }
+
+    /**
+     * A page being rendered ahead along with the memory reserved for it. The reservation is
+     * held until the page is taken or, if discarded, until no memory remains for it.
+     */
+    private class Ahead {
+        final String mFileName;
+        final long mSize;
+        Future<Rendered> mFuture;
+
+        // The following are guarded by RenderAhead.this
+        private boolean mStarted;
+        private boolean mFinished;
+        private boolean mDiscarded;
+        private Rendered mRendered;
+
+        Ahead(String fileName, long size) {
+            mFileName = fileName;
+            mSize = size;
+        }
+
+        /** Render the page, or return null if it was discarded first */
+        Rendered render(int page, double zoomFactor, int components)
+                throws InterruptedException {
+            synchronized (RenderAhead.this) {
+                if (mDiscarded) {
+                    return null;
+                }
+                mStarted = true;
+            }
+
+            Rendered rendered = null;
+            try {
+                rendered = RenderAhead.this.render(mFileName, page, zoomFactor, components);
+                return rendered;
+            } finally {
+                synchronized (RenderAhead.this) {
+                    mFinished = true;
+                    mRendered = rendered;
+                    if (mDiscarded) {
+                        // Nobody will take the page now, so release it as soon as it exists
+                        release();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Give up on the page, releasing its memory and reservation now or, if it is still being
+         * rendered, as soon as rendering ends. Call with RenderAhead.this held.
+         */
+        void discard() {
+            if (mDiscarded) {
+                return;
+            }
+            mDiscarded = true;
+            if (!mStarted || mFinished) {
+                release();
+            }
+            mFuture.cancel(true);
+        }
+
+        private void release() {
+            mReserved -= mSize;
+            if (mRendered != null) {
+                mRendered.mMemory.close();
+                mRendered = null;
+            }
+        }
+    }
+
+    /** A fully rendered page */
+    private static class Rendered {
+        final int mWidth;
+        final int mHeight;
+        final int mComponents;
+        final SharedMemory mMemory;
+
+        Rendered(int width, int height, int components, SharedMemory memory) {
+            mWidth = width;
+            mHeight = height;
+            mComponents = components;
+            mMemory = memory;
+        }
+
+        long getSize() {
+            return (long) mWidth * mHeight * mComponents;
+        }
+
+        /** Return true if the specified rows are present in the specified format */
+        boolean covers(int y, int width, int height, int components) {
+            return width == mWidth && components == mComponents && y >= 0
+                    && y + height <= mHeight;
+        }
+    }
+
+    /** A page rendered ahead which is now being read */
+    private static class Retained {
+        final int mPage;
+        final double mZoomFactor;
+        final Rendered mRendered;
+
+        Retained(int page, double zoomFactor, Rendered rendered) {
+            mPage = page;
+            mZoomFactor = zoomFactor;
+            mRendered = rendered;
+        }
+    }
+
+    /** A connection to one additional isolated renderer process */
+    private static class Helper implements ServiceConnection {
+        private IPdfRender mService;
+        private volatile String mCurrentFile;
+
+        @Override
+        public synchronized void onServiceConnected(ComponentName name, IBinder service) {
+            mService = IPdfRender.Stub.asInterface(service);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onServiceDisconnected(ComponentName name) {
+            mService = null;
+            mCurrentFile = null;
+        }
+
+        /** Ensure the document is opened again before its name is next rendered */
+        void forget(String fileName) {
+            if (fileName.equals(mCurrentFile)) {
+                mCurrentFile = null;
+            }
+        }
+
+        /** Wait for the service to connect, returning it or null */
+        private synchronized IPdfRender getService() throws InterruptedException {
+            long end = SystemClock.elapsedRealtime() + CONNECT_TIMEOUT;
+            long remaining;
+            while (mService == null && (remaining = end - SystemClock.elapsedRealtime()) > 0) {
+                wait(remaining);
+            }
+            return mService;
+        }
+
+        /** Render a full page at the specified zoom into new shared memory */
+        private Rendered render(String fileName, int page, double zoomFactor, int components)
+                throws InterruptedException {
+            IPdfRender service = getService();
+            if (service == null) {
+                return null;
+            }
+
+            SharedMemory memory = null;
+            try {
+                if (!fileName.equals(mCurrentFile)) {
+                    mCurrentFile = null;
+                    try (ParcelFileDescriptor pfd = ParcelFileDescriptor.open(new File(fileName),
+                            ParcelFileDescriptor.MODE_READ_ONLY)) {
+                        if (service.openDocument(pfd) <= 0) {
+                            return null;
+                        }
+                    }
+                    mCurrentFile = fileName;
+                }
+
+                // Compute dimensions exactly as the native decoder does
+                SizeD size = service.getPageSize(page - 1);
+                if (size == null) {
+                    return null;
+                }
+                int width = (int) (size.getWidth() * zoomFactor);
+                int height = (int) (size.getHeight() * zoomFactor);
+
+                memory = SharedMemory.create(TAG, width * height * components);
+                if (!service.renderPageStripe(page - 1, 0, width, height, zoomFactor, components,
+                        memory)) {
+                    memory.close();
+                    return null;
+                }
+                return new Rendered(width, height, components, memory);
+            } catch (RemoteException | IOException | ErrnoException
+                    | IllegalArgumentException e) {
+                Log.w(TAG, "Could not render page " + page + " ahead", e);
+                if (memory != null) {
+                    memory.close();
+                }
+                return null;
+            }
+        }
+    }
+}
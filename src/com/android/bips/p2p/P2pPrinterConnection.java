@@ -199,6 +199,11 @@ public class P2pPrinterConnection implements Discovery.Listener, P2pConnectionLi
     public void onPrinterLost(DiscoveredPrinter printer) {
     }
 
+    /** Send further connection events to a different listener, such as a following job */
+    public void setListener(ConnectionListener listener) {
+        mListener = listener;
+    }
+
     /** Close the connection and any intermediate procedures */
     public void close() {
         if (DEBUG) Log.d(TAG, "close()");
@@ -20,17 +20,25 @@ package com.android.bips.render;
 import android.app.Service;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.pdf.PdfRenderer;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.util.Log;
 
 import com.android.bips.jni.SizeD;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 
 /**
@@ -40,15 +48,39 @@ public class PdfRenderService extends Service {
     private static final String TAG = PdfRenderService.class.getSimpleName();
     private static final boolean DEBUG = false;
 
-    /** How large of a chunk of Bitmap data to copy at once to the output stream */
+    /** How large of a chunk of Bitmap data to render at once */
     private static final int MAX_BYTES_PER_CHUNK = 1024 * 1024 * 5;
 
+    /** Bytes per pixel of RGBA output */
+    private static final int COMPONENTS_RGBA = 4;
+
+    /** Bytes per pixel of gray output */
+    private static final int COMPONENTS_GRAY = 1;
+
+    /**
+     * Converts opaque colors to gray levels held in the alpha channel, using the same weights as
+     * native monochrome conversion (SP_GRAY)
+     */
+    private static final Paint GRAY_PAINT = new Paint();
+    static {
+        GRAY_PAINT.setColorFilter(new ColorMatrixColorFilter(new float[] {
+                0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0,
+                0.25f, 0.625f, 0.125f, 0, 0,
+        }));
+        GRAY_PAINT.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
     private PdfRenderer mRenderer;
     private PdfRenderer.Page mPage;
 
     /** Lock held to protect against close() of current page during rendering. */
     private final Object mPageOpenLock = new Object();
 
+    /** Bitmaps and buffers retained between render calls */
+    private final RenderBufferPool mBufferPool = new RenderBufferPool(MAX_BYTES_PER_CHUNK);
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -57,9 +89,15 @@ public class PdfRenderService extends Service {
     @Override
     public boolean onUnbind(Intent intent) {
         closeAll();
+        mBufferPool.clear();
         return super.onUnbind(intent);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mBufferPool);
+    }
+
     private final IPdfRender.Stub mBinder = new IPdfRender.Stub() {
         @Override
         public int openDocument(ParcelFileDescriptor pfd) throws RemoteException {
@@ -78,31 +116,21 @@ public class PdfRenderService extends Service {
         }
 
         @Override
-        public ParcelFileDescriptor renderPageStripe(int page, int y, int width, int height,
-                double zoomFactor)
-                throws RemoteException {
-            if (!openPage(page)) {
-                return null;
-            }
-
-            // Create a pipe with input and output sides
-            ParcelFileDescriptor[] pipes;
+        public boolean renderPageStripe(int page, int y, int width, int height,
+                double zoomFactor, int components, SharedMemory target) throws RemoteException {
             try {
-                pipes = ParcelFileDescriptor.createPipe();
-            } catch (IOException e) {
-                return null;
+                if (!openPage(page)) {
+                    return false;
+                }
+                return render(y, width, height, zoomFactor, components, target);
+            } finally {
+                target.close();
             }
-
-            // Use a thread to spool out the bitmap data
-            new RenderThread(mPage, y, width, height, zoomFactor, pipes[1]).start();
-
-            // Return the corresponding input stream.
-            return pipes[0];
         }
 
         @Override
         public void closeDocument() throws RemoteException {
-            if (DEBUG) Log.d(TAG, "closeDocument");
+            if (DEBUG) Log.d(TAG, "closeDocument " + mBufferPool);
             closeAll();
         }
 
@@ -167,95 +195,86 @@ public class PdfRenderService extends Service {
     }
 
     /**
-     * Renders page data to RGB bytes and writes them to an output stream
+     * Render part of the current page directly into shared memory as RGBA or gray bytes,
+     * returning true if successful
      */
-    private class RenderThread extends Thread {
-        private final PdfRenderer.Page mPage;
-        private final int mWidth;
-        private final int mYOffset;
-        private final int mHeight;
-        private final double mZoomFactor;
-        private final int mRowsPerStripe;
-        private final ParcelFileDescriptor mOutput;
-        private final ByteBuffer mBuffer;
-
-        RenderThread(PdfRenderer.Page page, int y, int width, int height, double zoom,
-                ParcelFileDescriptor output) {
-            mPage = page;
-            mWidth = width;
-            mYOffset = y;
-            mHeight = height;
-            mZoomFactor = zoom;
-            mOutput = output;
-
-            // Buffer will temporarily hold RGBA data from Bitmap
-            mRowsPerStripe = MAX_BYTES_PER_CHUNK / mWidth / 4;
-            mBuffer = ByteBuffer.allocate(mWidth * mRowsPerStripe * 4);
+    private boolean render(int y, int width, int height, double zoomFactor, int components,
+            SharedMemory target) {
+        if (width <= 0 || height <= 0
+                || (components != COMPONENTS_RGBA && components != COMPONENTS_GRAY)) {
+            return false;
         }
+        ByteBuffer output = null;
+        RenderBufferPool.Buffers buffers = null;
 
-        @Override
-        public void run() {
-            Bitmap bitmap = null;
+        // Make sure nobody closes page while we're using it
+        synchronized (mPageOpenLock) {
+            try {
+                if (mPage == null) {
+                    Log.e(TAG, "Page lost");
+                    return false;
+                }
+                output = target.mapReadWrite();
+                if (output.capacity() < width * height * components) {
+                    Log.e(TAG, "Target too small: " + output.capacity());
+                    return false;
+                }
 
-            // Make sure nobody closes page while we're using it
-            synchronized (mPageOpenLock) {
-                try (OutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(
-                        mOutput)) {
-                    if (mPage == null) {
-                        // If page was closed before we synchronized, this closes the outputStream
-                        Log.e(TAG, "Page lost");
-                        return;
-                    }
-                    // Allocate and clear bitmap to white with no transparency
-                    bitmap = Bitmap.createBitmap(mWidth, mRowsPerStripe, Bitmap.Config.ARGB_8888);
-
-                    // Render each stripe to output
-                    for (int startRow = mYOffset; startRow < mYOffset + mHeight; startRow +=
-                            mRowsPerStripe) {
-                        int stripeRows = Math.min(mRowsPerStripe, (mYOffset + mHeight) - startRow);
-                        renderToBitmap(startRow, bitmap);
-                        writeRgb(bitmap, stripeRows, outputStream);
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to write", e);
-                } finally {
-                    if (bitmap != null) {
-                        bitmap.recycle();
+                buffers = mBufferPool.acquire(width);
+                int rowsPerStripe = buffers.getRows();
+
+                // Render each stripe to output
+                for (int startRow = y; startRow < y + height; startRow += rowsPerStripe) {
+                    int stripeRows = Math.min(rowsPerStripe, (y + height) - startRow);
+                    renderToBitmap(mPage, startRow, zoomFactor, buffers.mBitmap);
+                    Bitmap source = buffers.mBitmap;
+                    if (components == COMPONENTS_GRAY) {
+                        source = buffers.getGray();
+                        new Canvas(source).drawBitmap(buffers.mBitmap, 0, 0, GRAY_PAINT);
                     }
+                    writePixels(source, stripeRows * width * components, buffers.mScratch,
+                            output);
+                }
+                return true;
+            } catch (ErrnoException | RuntimeException e) {
+                Log.e(TAG, "Failed to render", e);
+                return false;
+            } finally {
+                if (buffers != null) {
+                    mBufferPool.release(buffers);
+                }
+                if (output != null) {
+                    SharedMemory.unmap(output);
                 }
             }
         }
+    }
 
-        /** From the specified starting row, render from the current page into the target bitmap */
-        private void renderToBitmap(int startRow, Bitmap bitmap) {
-            Matrix matrix = new Matrix();
-            // The scaling matrix increases DPI (default is 72dpi) to page output
-            matrix.setScale((float) mZoomFactor, (float) mZoomFactor);
-            // The translate specifies adjusts which part of the page we are rendering
-            matrix.postTranslate(0, 0 - startRow);
-            bitmap.eraseColor(0xFFFFFFFF);
-
-            mPage.render(bitmap, null, matrix, PdfRenderer.Page.RENDER_MODE_FOR_PRINT);
-        }
-
-        /** Copy rows of RGB bytes from the bitmap to the output stream */
-        private void writeRgb(Bitmap bitmap, int rows, OutputStream out)
-                throws IOException {
-            mBuffer.clear();
-            bitmap.copyPixelsToBuffer(mBuffer);
-            int alphaPixelSize = mWidth * rows * 4;
-
-            // Chop out the alpha byte
-            byte[] array = mBuffer.array();
-            int from, to;
-            for (from = 0, to = 0; from < alphaPixelSize; from += 4, to += 3) {
-                array[to] = array[from];
-                array[to + 1] = array[from + 1];
-                array[to + 2] = array[from + 2];
-            }
+    /** From the specified starting row, render from the page into the target bitmap */
+    private static void renderToBitmap(PdfRenderer.Page page, int startRow, double zoomFactor,
+            Bitmap bitmap) {
+        Matrix matrix = new Matrix();
+        // The scaling matrix increases DPI (default is 72dpi) to page output
+        matrix.setScale((float) zoomFactor, (float) zoomFactor);
+        // The translate specifies adjusts which part of the page we are rendering
+        matrix.postTranslate(0, 0 - startRow);
+        bitmap.eraseColor(0xFFFFFFFF);
+
+        page.render(bitmap, null, matrix, PdfRenderer.Page.RENDER_MODE_FOR_PRINT);
+    }
 
-            // Write it
-            out.write(mBuffer.array(), 0, to);
+    /**
+     * Copy the first bytes of the bitmap's pixels to the output. Pixels are copied directly
+     * unless only part of the bitmap is wanted, in which case buffer is used as scratch space.
+     */
+    private static void writePixels(Bitmap bitmap, int bytes, ByteBuffer buffer,
+            ByteBuffer output) {
+        if (bitmap.getByteCount() == bytes) {
+            bitmap.copyPixelsToBuffer(output);
+        } else {
+            buffer.clear();
+            bitmap.copyPixelsToBuffer(buffer);
+            output.put(buffer.array(), 0, bytes);
         }
     }
 }
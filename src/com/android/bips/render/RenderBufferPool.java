@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright (C) 2016 Mopria Alliance, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.render;
+
+import android.graphics.Bitmap;
+import android.os.Debug;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Holds bitmaps and scratch buffers used for rendering so they can be reused from one stripe,
+ * page and document to the next rather than allocated each time. Buffers are sized by the
+ * width of the rendered area.
+ */
+class RenderBufferPool {
+    /** Maximum number of idle buffer sets to retain */
+    private static final int MAX_IDLE = 2;
+
+    private final int mMaxBytes;
+    private final Deque<Buffers> mIdle = new ArrayDeque<>();
+    private int mAllocations;
+    private int mReuses;
+
+    /**
+     * @param maxBytes maximum size in bytes of the RGBA data for each bitmap
+     */
+    RenderBufferPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /** Return a set of buffers suitable for rendering the specified width */
+    synchronized Buffers acquire(int width) {
+        Iterator<Buffers> iterator = mIdle.iterator();
+        while (iterator.hasNext()) {
+            Buffers buffers = iterator.next();
+            if (buffers.mBitmap.getWidth() == width) {
+                iterator.remove();
+                mReuses++;
+                return buffers;
+            }
+        }
+
+        mAllocations++;
+        return new Buffers(width, Math.max(1, mMaxBytes / width / 4));
+    }
+
+    /** Return buffers to the pool, discarding the least recently used if there are too many */
+    synchronized void release(Buffers buffers) {
+        mIdle.addFirst(buffers);
+        while (mIdle.size() > MAX_IDLE) {
+            mIdle.removeLast().recycle();
+        }
+    }
+
+    /** Discard all idle buffers */
+    synchronized void clear() {
+        for (Buffers buffers : mIdle) {
+            buffers.recycle();
+        }
+        mIdle.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RenderBufferPool{allocations=" + mAllocations
+                + " reuses=" + mReuses
+                + " idle=" + mIdle.size()
+                + " gcCount=" + Debug.getRuntimeStat("art.gc.gc-count")
+                + " gcTime=" + Debug.getRuntimeStat("art.gc.gc-time")
+                + "}";
+    }
+
+    /** A bitmap and a scratch buffer large enough to hold its RGBA data */
+    static class Buffers {
+        final Bitmap mBitmap;
+        final ByteBuffer mScratch;
+        private Bitmap mGray;
+
+        Buffers(int width, int rows) {
+            mBitmap = Bitmap.createBitmap(width, rows, Bitmap.Config.ARGB_8888);
+            mScratch = ByteBuffer.allocate(width * rows * 4);
+        }
+
+        /** Return the number of rows which can be rendered at once */
+        int getRows() {
+            return mBitmap.getHeight();
+        }
+
+        /** Return an 8-bit bitmap of the same dimensions, creating it if necessary */
+        Bitmap getGray() {
+            if (mGray == null) {
+                mGray = Bitmap.createBitmap(mBitmap.getWidth(), mBitmap.getHeight(),
+                        Bitmap.Config.ALPHA_8);
+            }
+            return mGray;
+        }
+
+        void recycle() {
+            mBitmap.recycle();
+            if (mGray != null) {
+                mGray.recycle();
+            }
+        }
+    }
+}
@@ -22,17 +22,25 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 
 public class FileUtils {
     private static final String TAG = FileUtils.class.getSimpleName();
     private static final boolean DEBUG = false;
 
     private static final int BUFFER_SIZE = 8092;
+    private static final int CHANNEL_BUFFER_SIZE = 256 * 1024;
 
-    /** Recursively delete the target (file or directory) and everything beneath it */
+    /**
+     * Recursively delete the target (file or directory) and everything beneath it. Symbolic links
+     * are deleted without following them.
+     */
     public static void deleteAll(File target) {
         if (DEBUG) Log.d(TAG, "Deleting " + target);
-        if (target.isDirectory()) {
+        if (target.isDirectory() && !Files.isSymbolicLink(target.toPath())) {
             for (File child : target.listFiles()) {
                 deleteAll(child);
             }
@@ -53,6 +61,43 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Copy all data from source to target, closing each channel when done. Data is moved by the
+     * kernel where the source permits it, otherwise through a single direct buffer.
+     *
+     * @return number of bytes copied
+     */
+    public static long copy(ReadableByteChannel source, FileChannel target) throws IOException {
+        try (ReadableByteChannel in = source; FileChannel out = target) {
+            long position = 0;
+            if (in instanceof FileChannel) {
+                // Pipes report a size of 0, leaving all of the work to the buffered loop below
+                FileChannel inFile = (FileChannel) in;
+                long size = inFile.size();
+                long count;
+                while (position < size
+                        && (count = inFile.transferTo(position, size - position, out)) > 0) {
+                    position += count;
+                }
+
+                // Only seekable sources get here with data moved, and pipes cannot be seeked
+                if (position > 0) {
+                    inFile.position(position);
+                }
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNEL_BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer);
+                }
+                buffer.clear();
+            }
+            return position;
+        }
+    }
+
     /** Return true if a directory exists or was made at the specified location */
     public static boolean makeDirectory(File dir) {
         if (DEBUG) {
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Compares the RGBA to RGB pack which PdfRenderService.writeRgb used to run on every stripe
+ * with the row kernels in wprint_pixels.h which replaced it.
+ */
+
+#include <benchmark/benchmark.h>
+
+#include <vector>
+
+#include "wprint_pixels.h"
+
+// One row of a US Letter page at 600dpi
+static const int kWidth = 5100;
+
+// Rows converted per iteration
+static const int kRows = 64;
+
+/*
+ * The loop formerly in PdfRenderService.writeRgb, which packed pixels in place. This C port is
+ * free of the bounds checks the Java original paid for, so it understates the old cost.
+ */
+static void old_write_rgb(unsigned char *array, int pixels) {
+    int from, to;
+    for (from = 0, to = 0; from < pixels * 4; from += 4, to += 3) {
+        array[to] = array[from];
+        array[to + 1] = array[from + 1];
+        array[to + 2] = array[from + 2];
+    }
+}
+
+static void BM_OldWriteRgb(benchmark::State &state) {
+    std::vector<unsigned char> array(kWidth * kRows * 4, 0x80);
+    for (auto _ : state) {
+        old_write_rgb(array.data(), kWidth * kRows);
+        benchmark::DoNotOptimize(array.data());
+    }
+    state.SetBytesProcessed(state.iterations() * array.size());
+}
+BENCHMARK(BM_OldWriteRgb);
+
+static void BM_RgbaToRgb(benchmark::State &state) {
+    std::vector<unsigned char> in(kWidth * kRows * 4, 0x80);
+    std::vector<unsigned char> out(kWidth * 3);
+    for (auto _ : state) {
+        for (int row = 0; row < kRows; row++) {
+            benchmark::DoNotOptimize(_rgba_to_rgb(out.data(), &in[row * kWidth * 4], kWidth));
+        }
+    }
+    state.SetBytesProcessed(state.iterations() * in.size());
+}
+BENCHMARK(BM_RgbaToRgb);
+
+static void BM_GrayToRgb(benchmark::State &state) {
+    std::vector<unsigned char> in(kWidth * kRows, 0x80);
+    std::vector<unsigned char> out(kWidth * 3);
+    for (auto _ : state) {
+        for (int row = 0; row < kRows; row++) {
+            benchmark::DoNotOptimize(_gray_to_rgb(out.data(), &in[row * kWidth], kWidth));
+        }
+    }
+    state.SetBytesProcessed(state.iterations() * in.size());
+}
+BENCHMARK(BM_GrayToRgb);
+
+BENCHMARK_MAIN();
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Scales generated images the way wprint_image.c does and compares the output with golden
+ * hashes taken from the single-threaded scaler, before rows were split into bands and whole
+ * number reductions were given their own kernels.
+ */
+
+#include <gtest/gtest.h>
+
+#include <stdint.h>
+#include <string.h>
+
+#include <algorithm>
+#include <vector>
+
+#include "wprint_scaler.h"
+
+// Output rows scaled per call, as for the strip_height used by plugin_pcl.c
+static const int kStripRows = 16;
+
+// Rows of slack after the source image, as wprint_image.c decodes a little beyond what it needs
+static const int kSlackRows = 3;
+
+// Hashes of the output of the single-threaded scaler
+static const uint64_t kGoldenDown = 0x70e927e011fd7617ull;
+static const uint64_t kGoldenUp = 0x0739c79473167f88ull;
+static const uint64_t kGoldenDown2x = 0x345aa5a03de19fa5ull;
+static const uint64_t kGoldenDown3x = 0x69832b869708fa71ull;
+
+/*
+ * Return a repeatable image with both smooth gradients and pixel-to-pixel noise, so that any
+ * error in weights or positions changes the output
+ */
+static std::vector<uint8> make_image(int width, int height) {
+    std::vector<uint8> image((size_t) width * (height + kSlackRows) * 3);
+    uint32_t noise = 2463534242u;
+    for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+            noise ^= noise << 13;
+            noise ^= noise >> 17;
+            noise ^= noise << 5;
+            uint8 *pixel = &image[((size_t) y * width + x) * 3];
+            pixel[0] = (uint8) ((x * 255 / width + (noise & 0x3f)) & 0xff);
+            pixel[1] = (uint8) ((y * 255 / height + ((noise >> 8) & 0x3f)) & 0xff);
+            pixel[2] = (uint8) ((noise >> 16) & 0xff);
+        }
+    }
+    return image;
+}
+
+/*
+ * Return a hash of the image scaled from the source to the output size a strip at a time
+ */
+static uint64_t scale(int src_width, int src_height, int out_width, int out_height) {
+    std::vector<uint8> src = make_image(src_width, src_height);
+    std::vector<uint8> out((size_t) out_width * out_height * 3);
+    scaler_config_t config;
+    scaler_make_image_scaler_tables(src_width, src_width * 3, out_width, out_width * 3,
+            src_height, out_height, &config);
+
+    for (int start = 0; start < out_height; start += kStripRows) {
+        int end = std::min(start + kStripRows, out_height) - 1;
+        uint16 src_start, src_end, generated, offset;
+        uint32 mixed;
+        scaler_calculate_scaling_rows(start, end, &config, &src_start, &src_end, &generated,
+                &offset, &mixed);
+
+        std::vector<uint8> strip((size_t) (generated + 1) * out_width * 3);
+        std::vector<uint8> temp(mixed);
+        scaler_scale_image_data(&src[(size_t) src_start * src_width * 3], &config, strip.data(),
+                temp.data());
+        memcpy(&out[(size_t) start * out_width * 3], &strip[(size_t) offset * out_width * 3],
+                (size_t) (end - start + 1) * out_width * 3);
+    }
+
+    // FNV-1a
+    uint64_t hash = 14695981039346656037ull;
+    for (uint8 value : out) {
+        hash = (hash ^ value) * 1099511628211ull;
+    }
+    return hash;
+}
+
+TEST(ScalerTest, ScaleDown) {
+    EXPECT_EQ(kGoldenDown, scale(2550, 330, 1700, 220));
+}
+
+TEST(ScalerTest, ScaleUp) {
+    EXPECT_EQ(kGoldenUp, scale(850, 110, 2550, 330));
+}
+
+TEST(ScalerTest, ScaleDown2x) {
+    EXPECT_EQ(kGoldenDown2x, scale(5100, 660, 2550, 330));
+}
+
+TEST(ScalerTest, ScaleDown3x) {
+    EXPECT_EQ(kGoldenDown3x, scale(7650, 990, 2550, 330));
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bips.BuiltInPrintService;
+import com.android.bips.discovery.DiscoveredPrinter;
+import com.android.bips.jni.LocalPrinterCapabilities;
+import com.android.bips.p2p.P2pMonitor;
+import com.android.bips.util.BroadcastMonitor;
+import com.android.bips.util.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Races capability requests, cancellations and query completions against each other, as
+ * discovery sessions and fetch threads do, and checks that the scheduler neither exceeds its
+ * concurrency limit nor loses, duplicates or misdirects any callback.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CapabilitiesCacheTest {
+    private static final int MAX_CONCURRENT = 3;
+    private static final int PRINTERS = 40;
+    private static final int CLIENTS = 12;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 2000;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<DiscoveredPrinter> mPrinters = new ArrayList<>();
+    private final List<Client> mClients = new ArrayList<>();
+
+    // The following are only touched on the main thread, as CapabilitiesCache itself is
+    private final List<Query> mQueries = new ArrayList<>();
+    private final List<String> mFailures = new ArrayList<>();
+    private int mMaxOutstanding;
+    private int mStarted;
+
+    /** Printer whose query is being completed, so that callbacks can be matched to it */
+    private Uri mFinishing;
+
+    private File mCacheDir;
+    private CapabilitiesCache mCache;
+
+    @Before
+    public void setUp() {
+        Context context = mInstrumentation.getTargetContext();
+        mCacheDir = new File(context.getCacheDir(), getClass().getSimpleName());
+        FileUtils.deleteAll(mCacheDir);
+
+        BuiltInPrintService service = mock(BuiltInPrintService.class);
+        when(service.getCacheDir()).thenReturn(mCacheDir);
+        when(service.getPackageManager()).thenReturn(context.getPackageManager());
+        when(service.getPackageName()).thenReturn(context.getPackageName());
+        when(service.receiveBroadcasts(any(), any())).thenReturn(mock(BroadcastMonitor.class));
+        when(service.getP2pMonitor()).thenReturn(mock(P2pMonitor.class));
+        when(service.getCertificateStore()).thenReturn(mock(CertificateStore.class));
+
+        Backend backend = mock(Backend.class);
+        when(backend.getCapabilities(any(), anyLong(), anyBoolean(), any())).thenAnswer(
+                invocation -> startQuery(invocation.getArgument(0), invocation.getArgument(3)));
+
+        for (int i = 0; i < PRINTERS; i++) {
+            // No UUID, so that nothing is served from or written to persistent storage
+            mPrinters.add(new DiscoveredPrinter(null, "Printer " + i,
+                    Uri.parse("ipp://192.168.0." + (i + 1) + ":631/ipp/print"), null));
+        }
+        for (int i = 0; i < CLIENTS; i++) {
+            mClients.add(new Client(i));
+        }
+
+        mInstrumentation.runOnMainSync(() ->
+                mCache = new CapabilitiesCache(service, backend, MAX_CONCURRENT));
+    }
+
+    @After
+    public void tearDown() {
+        mInstrumentation.runOnMainSync(() -> mCache.close());
+        FileUtils.deleteAll(mCacheDir);
+    }
+
+    @Test
+    public void raceRequestCancelFinish() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(t);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    int operation = random.nextInt(10);
+                    int seed = random.nextInt();
+                    mMainHandler.post(() -> perform(operation, new Random(seed)));
+                    if (random.nextInt(50) == 0) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Wait for every posted operation to run
+        CountDownLatch latch = new CountDownLatch(1);
+        mMainHandler.post(latch::countDown);
+        assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Let every remaining query finish, including second passes that failures lead to
+        mInstrumentation.runOnMainSync(() -> {
+            while (!mQueries.isEmpty()) {
+                finish(mQueries.get(0), null);
+            }
+            for (Client client : mClients) {
+                for (Map.Entry<Uri, Integer> entry : client.mExpected.entrySet()) {
+                    if (entry.getValue() != 0) {
+                        mFailures.add(client + " missed " + entry.getValue() + " callbacks for "
+                                + entry.getKey());
+                    }
+                }
+            }
+        });
+
+        assertEquals(new ArrayList<String>(), mFailures);
+        assertEquals("Concurrency limit never reached", MAX_CONCURRENT, mMaxOutstanding);
+        assertTrue("Too few queries started: " + mStarted, mStarted > MAX_CONCURRENT);
+
+        // The scheduler must still accept and start new work
+        Client client = mClients.get(0);
+        DiscoveredPrinter printer = new DiscoveredPrinter(null, "Late printer",
+                Uri.parse("ipp://192.168.1.1:631/ipp/print"), null);
+        mInstrumentation.runOnMainSync(() -> {
+            client.request(printer, true);
+            if (mQueries.size() != 1) {
+                mFailures.add(mQueries.size() + " queries started for a new request");
+            } else {
+                finish(mQueries.get(0), new LocalPrinterCapabilities());
+            }
+            if (client.mExpected.get(printer.path) != 0) {
+                mFailures.add("No callback for a new request");
+            }
+        });
+        assertEquals(new ArrayList<String>(), mFailures);
+    }
+
+    @Test
+    public void highPriorityRequestStartsFirst() {
+        Client client = mClients.get(0);
+        mInstrumentation.runOnMainSync(() -> {
+            // Occupy every query slot, then queue a normal request ahead of an urgent one
+            for (int i = 0; i <= MAX_CONCURRENT + 1; i++) {
+                client.request(mPrinters.get(i), i == MAX_CONCURRENT + 1);
+            }
+            finish(mQueries.get(0), new LocalPrinterCapabilities());
+        });
+
+        assertEquals(new ArrayList<String>(), mFailures);
+        assertEquals(mPrinters.get(MAX_CONCURRENT + 1).path,
+                mQueries.get(mQueries.size() - 1).mUri);
+    }
+
+    /** Perform a randomly chosen operation on the main thread */
+    private void perform(int operation, Random random) {
+        if (operation < 5) {
+            mClients.get(random.nextInt(CLIENTS)).request(
+                    mPrinters.get(random.nextInt(PRINTERS)), random.nextInt(4) == 0);
+        } else if (operation < 6) {
+            mClients.get(random.nextInt(CLIENTS)).cancel();
+        } else if (!mQueries.isEmpty()) {
+            Query query = mQueries.get(random.nextInt(mQueries.size()));
+            LocalPrinterCapabilities capabilities = null;
+            if (random.nextBoolean()) {
+                capabilities = new LocalPrinterCapabilities();
+                if (random.nextInt(8) == 0) {
+                    // Full capabilities are served from the cache from now on
+                    capabilities.nativeData = new byte[1];
+                }
+            }
+            finish(query, capabilities);
+        }
+    }
+
+    /** Called when CapabilitiesCache starts a native query */
+    private GetCapabilitiesTask startQuery(Uri uri, Consumer<LocalPrinterCapabilities> consumer) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mFailures.add("Query started off the main thread");
+        }
+        GetCapabilitiesTask task = mock(GetCapabilitiesTask.class);
+        Query query = new Query(uri, consumer);
+        doAnswer(invocation -> {
+            if (!mQueries.remove(query)) {
+                mFailures.add("Cancelled a finished query for " + uri);
+            }
+            return null;
+        }).when(task).forceCancel();
+
+        for (Query other : mQueries) {
+            if (other.mUri.equals(uri)) {
+                mFailures.add("Two queries at once for " + uri);
+            }
+        }
+        mQueries.add(query);
+        mStarted++;
+        mMaxOutstanding = Math.max(mMaxOutstanding, mQueries.size());
+        if (mQueries.size() > MAX_CONCURRENT) {
+            mFailures.add(mQueries.size() + " queries at once");
+        }
+        return task;
+    }
+
+    /** Complete a query as a fetch thread would, on the main thread */
+    private void finish(Query query, LocalPrinterCapabilities capabilities) {
+        mQueries.remove(query);
+        mFinishing = query.mUri;
+        query.mConsumer.accept(capabilities);
+        mFinishing = null;
+    }
+
+    /** A native query started by the cache */
+    private static class Query {
+        final Uri mUri;
+        final Consumer<LocalPrinterCapabilities> mConsumer;
+
+        Query(Uri uri, Consumer<LocalPrinterCapabilities> consumer) {
+            mUri = uri;
+            mConsumer = consumer;
+        }
+    }
+
+    /** A user of the cache, such as a discovery session, which tracks callbacks it is owed */
+    private class Client implements CapabilitiesCache.OnLocalPrinterCapabilities {
+        private final int mId;
+
+        /** Number of callbacks still expected for each printer */
+        final Map<Uri, Integer> mExpected = new HashMap<>();
+
+        /** Printer whose request is being made, so that immediate callbacks are matched */
+        private Uri mRequesting;
+
+        Client(int id) {
+            mId = id;
+        }
+
+        void request(DiscoveredPrinter printer, boolean highPriority) {
+            mExpected.merge(printer.path, 1, Integer::sum);
+            mRequesting = printer.path;
+            mCache.request(printer, highPriority, this);
+            mRequesting = null;
+        }
+
+        void cancel() {
+            mCache.cancel(this);
+            mExpected.clear();
+        }
+
+        @Override
+        public void onCapabilities(LocalPrinterCapabilities capabilities) {
+            // Callbacks arrive either during the request itself or while a query completes
+            Uri path = mRequesting != null ? mRequesting : mFinishing;
+            Integer expected = path == null ? null : mExpected.get(path);
+            if (expected == null || expected == 0) {
+                mFailures.add(this + " received an unexpected callback for " + path);
+                return;
+            }
+            mExpected.put(path, expected - 1);
+        }
+
+        @Override
+        public String toString() {
+            return "Client " + mId;
+        }
+    }
+}
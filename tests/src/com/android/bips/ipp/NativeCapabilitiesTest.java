@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bips.jni.BackendConstants;
+import com.android.bips.jni.LocalPrinterCapabilities;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries several printers at once through the native layer, as concurrent capability requests
+ * do, and checks that every query runs alongside the others and completes with its own printer's
+ * capabilities.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NativeCapabilitiesTest {
+    private static final int PRINTERS = CapabilitiesCache.DEFAULT_MAX_CONCURRENT;
+    private static final int ROUNDS = 5;
+    private static final long QUERY_TIMEOUT = 15000;
+    private static final long GATE_SECONDS = 10;
+    private static final String RESOURCE = "/ipp/print/";
+
+    private Backend mBackend;
+    private Responder mResponder;
+
+    @Before
+    public void setUp() throws IOException {
+        mBackend = new Backend(InstrumentationRegistry.getTargetContext());
+        mResponder = new Responder(PRINTERS);
+        mResponder.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mResponder.close();
+        mBackend.close();
+    }
+
+    @Test
+    public void concurrentQueries() throws InterruptedException {
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < PRINTERS; i++) {
+            final int printer = i;
+            threads.add(new Thread(() -> {
+                for (int round = 0; round < ROUNDS; round++) {
+                    LocalPrinterCapabilities capabilities = new LocalPrinterCapabilities();
+                    int result = mBackend.nativeGetCapabilities("127.0.0.1", mResponder.getPort(),
+                            RESOURCE + printer, "ipp", QUERY_TIMEOUT, capabilities);
+                    if (result != BackendConstants.STATUS_OK) {
+                        failures.add("printer " + printer + " round " + round + ": " + result);
+                    } else if (!printerName(printer).equals(capabilities.name)
+                            || !capabilities.isSupported) {
+                        failures.add("printer " + printer + " round " + round + ": got "
+                                + capabilities.name + ", supported=" + capabilities.isSupported);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(GATE_SECONDS) + ROUNDS * QUERY_TIMEOUT);
+        }
+
+        assertTrue("All queries must be in progress at once", mResponder.isGateOpen());
+        assertEquals("[]", failures.toString());
+        for (Thread thread : threads) {
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    private static String printerName(int printer) {
+        return "Printer " + printer;
+    }
+
+    /**
+     * A minimal IPP printer serving any number of printers, one per resource path. The first
+     * request for each printer is held until every printer has made one.
+     */
+    private static class Responder extends Thread {
+        private static final int TAG_OPERATION = 0x01;
+        private static final int TAG_END = 0x03;
+        private static final int TAG_PRINTER = 0x04;
+        private static final int TAG_ENUM = 0x23;
+        private static final int TAG_TEXT = 0x41;
+        private static final int TAG_NAME = 0x42;
+        private static final int TAG_KEYWORD = 0x44;
+        private static final int TAG_CHARSET = 0x47;
+        private static final int TAG_LANGUAGE = 0x48;
+        private static final int TAG_MIME = 0x49;
+        private static final int PRINTER_STATE_IDLE = 3;
+
+        private final ServerSocket mServerSocket;
+        private final CountDownLatch mGate;
+        private final Set<String> mSeen = new HashSet<>();
+        private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<>());
+
+        Responder(int printers) throws IOException {
+            super("Responder");
+            mServerSocket = new ServerSocket(0, printers, InetAddress.getLoopbackAddress());
+            mGate = new CountDownLatch(printers);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        boolean isGateOpen() {
+            return mGate.getCount() == 0;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = mServerSocket.accept();
+                    mSockets.add(socket);
+                    new Thread(() -> serve(socket), "Responder-" + mSockets.size()).start();
+                }
+            } catch (IOException ignored) {
+                // Closed
+            }
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) {
+                    socket.close();
+                }
+            }
+        }
+
+        /** Answer requests on one connection until it closes */
+        private void serve(Socket socket) {
+            try (InputStream in = socket.getInputStream();
+                 OutputStream out = socket.getOutputStream()) {
+                while (true) {
+                    String requestLine = readLine(in);
+                    String path = requestLine.split(" ")[1];
+                    int length = 0;
+                    boolean chunked = false;
+                    String header;
+                    while (!(header = readLine(in)).isEmpty()) {
+                        String lower = header.toLowerCase(Locale.US);
+                        if (lower.startsWith("content-length:")) {
+                            length = Integer.parseInt(header.substring(15).trim());
+                        } else if (lower.startsWith("transfer-encoding:")
+                                && lower.contains("chunked")) {
+                            chunked = true;
+                        } else if (lower.startsWith("expect:") && lower.contains("100")) {
+                            out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(
+                                    StandardCharsets.US_ASCII));
+                            out.flush();
+                        }
+                    }
+                    byte[] request = chunked ? readChunked(in) : readFully(in, length);
+
+                    hold(path);
+                    byte[] response = respond(request, path);
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/ipp\r\n"
+                            + "Content-Length: " + response.length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.write(response);
+                    out.flush();
+                }
+            } catch (IOException | RuntimeException | InterruptedException ignored) {
+                // Connection closed
+            }
+        }
+
+        /** Hold the first request for each printer until all printers have made one */
+        private void hold(String path) throws InterruptedException {
+            synchronized (mSeen) {
+                if (!mSeen.add(path)) {
+                    return;
+                }
+            }
+            mGate.countDown();
+            mGate.await(GATE_SECONDS, TimeUnit.SECONDS);
+        }
+
+        /** Return a Get-Printer-Attributes response for the printer at the path */
+        private static byte[] respond(byte[] request, String path) throws IOException {
+            String name = printerName(Integer.parseInt(path.substring(RESOURCE.length())));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            // Same version and request-id as the request, status successful-ok
+            out.write(request, 0, 2);
+            out.writeShort(0);
+            out.write(request, 4, 4);
+
+            out.writeByte(TAG_OPERATION);
+            writeAttribute(out, TAG_CHARSET, "attributes-charset", "utf-8");
+            writeAttribute(out, TAG_LANGUAGE, "attributes-natural-language", "en");
+
+            out.writeByte(TAG_PRINTER);
+            writeAttribute(out, TAG_NAME, "printer-dns-sd-name", name);
+            writeAttribute(out, TAG_TEXT, "printer-make-and-model", name);
+            writeAttribute(out, TAG_KEYWORD, "ipp-versions-supported", "1.1", "2.0");
+            writeAttribute(out, TAG_MIME, "document-format-supported", "application/pdf",
+                    "image/pwg-raster");
+            writeAttribute(out, TAG_KEYWORD, "media-supported", "na_letter_8.5x11in",
+                    "iso_a4_210x297mm");
+            writeAttribute(out, TAG_KEYWORD, "media-default", "na_letter_8.5x11in");
+            out.writeByte(TAG_ENUM);
+            out.writeShort("printer-state".length());
+            out.writeBytes("printer-state");
+            out.writeShort(4);
+            out.writeInt(PRINTER_STATE_IDLE);
+
+            out.writeByte(TAG_END);
+            return bytes.toByteArray();
+        }
+
+        /** Write a string attribute, with any further values following the first */
+        private static void writeAttribute(DataOutputStream out, int tag, String name,
+                String... values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                out.writeByte(tag);
+                String attributeName = i == 0 ? name : "";
+                out.writeShort(attributeName.length());
+                out.writeBytes(attributeName);
+                byte[] value = values[i].getBytes(StandardCharsets.UTF_8);
+                out.writeShort(value.length);
+                out.write(value);
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private static byte[] readFully(InputStream in, int length) throws IOException {
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int count = in.read(data, offset, length - offset);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                offset += count;
+            }
+            return data;
+        }
+
+        private static byte[] readChunked(InputStream in) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int size;
+            while ((size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                data.write(readFully(in, size));
+                readLine(in);
+            }
+            // Trailers, if any, end with an empty line
+            String trailer;
+            do {
+                trailer = readLine(in);
+            } while (!trailer.isEmpty());
+            return data.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.ipp;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bips.util.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Checks the render resolution chosen for minimal documents. The planner only looks at the
+ * document's bytes, so the documents here are just complete enough to be recognized.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ResolutionPlannerTest {
+    private static final float LETTER_WIDTH = 8.5f;
+    private static final float LETTER_HEIGHT = 11f;
+    private static final int PRINT_RESOLUTION = 600;
+
+    private File mDir;
+    private ByteArrayOutputStream mPdf;
+    private int mObjects;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                getClass().getSimpleName());
+        FileUtils.deleteAll(mDir);
+        FileUtils.makeDirectory(mDir);
+        mPdf = new ByteArrayOutputStream();
+        mObjects = 0;
+        write("%PDF-1.4\n");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteAll(mDir);
+    }
+
+    /** Scans are rendered at their own resolution rather than the default */
+    @Test
+    public void lowResolutionScan() throws IOException {
+        for (int page = 0; page < 2; page++) {
+            addImage(1275, 1650);
+            addContent("q 612 0 0 792 0 0 cm /Im0 Do Q", true);
+        }
+        assertEquals(150, plan(2));
+    }
+
+    @Test
+    public void midResolutionScan() throws IOException {
+        addImage(1700, 2200);
+        addContent("q 612 0 0 792 0 0 cm /Im0 Do Q", true);
+        assertEquals(225, plan(1));
+    }
+
+    /** Images finer than the default are rendered finer, up to the printer's resolution */
+    @Test
+    public void highResolutionScan() throws IOException {
+        addImage(3400, 4400);
+        addContent("q 612 0 0 792 0 0 cm /Im0 Do Q", true);
+        assertEquals(450, plan(1));
+        assertEquals(400, ResolutionPlanner.plan(save(), 1, LETTER_WIDTH, LETTER_HEIGHT, 400));
+    }
+
+    /** Landscape images on portrait pages are rotated to fill them */
+    @Test
+    public void rotatedScan() throws IOException {
+        addImage(1650, 1275);
+        addContent("q 0 792 -612 0 612 0 cm /Im0 Do Q", true);
+        assertEquals(150, plan(1));
+    }
+
+    /** A letter scan placed on an A4 page still fills it */
+    @Test
+    public void letterScanOnA4() throws IOException {
+        addImage(1275, 1650);
+        addContent("q 595 0 0 770 0 36 cm /Im0 Do Q", true);
+        assertEquals(225, ResolutionPlanner.plan(save(), 1, 8.27f, 11.69f, PRINT_RESOLUTION));
+    }
+
+    /** One image shown on every page */
+    @Test
+    public void reusedImage() throws IOException {
+        addImage(1275, 1650);
+        for (int page = 0; page < 3; page++) {
+            addContent("q 612 0 0 792 0 0 cm /Im0 Do Q", true);
+        }
+        assertEquals(150, plan(3));
+    }
+
+    @Test
+    public void text() throws IOException {
+        addImage(1275, 1650);
+        addObject("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>");
+        addContent("BT /F1 12 Tf 72 720 Td (Hello) Tj ET q 612 0 0 792 0 0 cm /Im0 Do Q", true);
+        assertEquals(ResolutionPlanner.DEFAULT_RESOLUTION, plan(1));
+    }
+
+    /** A small image may sit among line art or a blank page, so holds no clue to detail */
+    @Test
+    public void partialPageImage() throws IOException {
+        addImage(1275, 400);
+        addContent("q 612 0 0 192 0 600 cm /Im0 Do Q 72 72 m 540 72 l S", true);
+        assertEquals(ResolutionPlanner.DEFAULT_RESOLUTION, plan(1));
+    }
+
+    @Test
+    public void inlineImage() throws IOException {
+        addImage(1275, 1650);
+        addContent("q 612 0 0 792 0 0 cm /Im0 Do Q q 72 0 0 72 36 36 cm "
+                + "BI /W 4 /H 4 /BPC 8 /CS /G ID 0123456789abcdef EI Q", false);
+        assertEquals(ResolutionPlanner.DEFAULT_RESOLUTION, plan(1));
+    }
+
+    @Test
+    public void compressedInlineImage() throws IOException {
+        addImage(1275, 1650);
+        addContent("q 612 0 0 792 0 0 cm /Im0 Do Q q 72 0 0 72 36 36 cm "
+                + "BI /Width 4 /Height 4 /BitsPerComponent 8 /ColorSpace /DeviceGray ID "
+                + "0123456789abcdef EI Q", true);
+        assertEquals(ResolutionPlanner.DEFAULT_RESOLUTION, plan(1));
+    }
+
+    /** More images than pages, so some pages hold several */
+    @Test
+    public void severalImagesPerPage() throws IOException {
+        addImage(1275, 1650);
+        addImage(1275, 1650);
+        addContent("q 612 0 0 792 0 0 cm /Im0 Do Q q 612 0 0 792 0 0 cm /Im1 Do Q", true);
+        assertEquals(ResolutionPlanner.DEFAULT_RESOLUTION, plan(1));
+    }
+
+    /** Printers coarser than the default are never sent more than they print */
+    @Test
+    public void lowResolutionPrinter() throws IOException {
+        addObject("<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>");
+        addContent("BT /F1 12 Tf 72 720 Td (Hello) Tj ET", true);
+        assertEquals(200, ResolutionPlanner.plan(save(), 1, LETTER_WIDTH, LETTER_HEIGHT, 200));
+    }
+
+    private int plan(int pageCount) throws IOException {
+        return ResolutionPlanner.plan(save(), pageCount, LETTER_WIDTH, LETTER_HEIGHT,
+                PRINT_RESOLUTION);
+    }
+
+    private File save() throws IOException {
+        File file = new File(mDir, "document.pdf");
+        try (OutputStream out = new FileOutputStream(file)) {
+            mPdf.writeTo(out);
+        }
+        return file;
+    }
+
+    private void addImage(int width, int height) {
+        byte[] data = new byte[width];
+        addStream("<< /Type /XObject /Subtype /Image /Width " + width + " /Height " + height
+                + " /ColorSpace /DeviceGray /BitsPerComponent 8 /Length " + data.length + " >>",
+                data);
+    }
+
+    private void addContent(String operators, boolean compress) throws IOException {
+        byte[] data = operators.getBytes(StandardCharsets.ISO_8859_1);
+        String filter = "";
+        if (compress) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+                out.write(data);
+            }
+            data = compressed.toByteArray();
+            filter = " /Filter /FlateDecode";
+        }
+        addStream("<< /Length " + data.length + filter + " >>", data);
+    }
+
+    private void addStream(String dictionary, byte[] data) {
+        write(++mObjects + " 0 obj\n" + dictionary + "\nstream\n");
+        mPdf.write(data, 0, data.length);
+        write("\nendstream\nendobj\n");
+    }
+
+    private void addObject(String dictionary) {
+        write(++mObjects + " 0 obj\n" + dictionary + "\nendobj\n");
+    }
+
+    private void write(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        mPdf.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bips.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+@RunWith(AndroidJUnit4.class)
+public class FileUtilsTest {
+    /** Larger than the copy buffer so that several reads are needed */
+    private static final int DATA_SIZE = 1024 * 1024 + 123;
+
+    private File mDir;
+    private byte[] mData;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                getClass().getSimpleName());
+        FileUtils.deleteAll(mDir);
+        FileUtils.makeDirectory(mDir);
+        mData = new byte[DATA_SIZE];
+        new Random(0).nextBytes(mData);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteAll(mDir);
+    }
+
+    /** Pipes cannot be seeked, so must be copied through the buffered path */
+    @Test
+    public void copyFromPipe() throws Exception {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Thread writer = new Thread(() -> {
+            try (OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                out.write(mData);
+            } catch (IOException ignored) {
+            }
+        });
+        writer.start();
+
+        File target = new File(mDir, "pipe");
+        long copied = FileUtils.copy(
+                new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]).getChannel(),
+                new FileOutputStream(target).getChannel());
+        writer.join();
+
+        assertEquals(DATA_SIZE, copied);
+        assertArrayEquals(mData, Files.readAllBytes(target.toPath()));
+    }
+
+    /** Regular files are copied by the kernel */
+    @Test
+    public void copyFromFile() throws Exception {
+        File source = new File(mDir, "source");
+        Files.write(source.toPath(), mData);
+
+        File target = new File(mDir, "file");
+        long copied = FileUtils.copy(new FileInputStream(source).getChannel(),
+                new FileOutputStream(target).getChannel());
+
+        assertEquals(DATA_SIZE, copied);
+        assertArrayEquals(mData, Files.readAllBytes(target.toPath()));
+    }
+}